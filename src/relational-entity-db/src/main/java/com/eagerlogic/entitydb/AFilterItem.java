@@ -1,14 +1,173 @@
 package com.eagerlogic.entitydb;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  *
  * @author dipacs
  */
 public abstract class AFilterItem {
+
+    /**
+     * The maximum number of the values of an IN operator which are passed to
+     * the database. Derby can't compile the statements of larger sets, so
+     * their conditions only select the attribute, and the values are matched
+     * in memory.
+     */
+    static final int MAX_IN_VALUES = 2000;
+
+    /**
+     * The maximum number of the rows of a VALUES list. Derby compiles the
+     * rows of a VALUES list to nested unions, so a long list overflows the
+     * stack of the compiler.
+     */
+    private static final int MAX_VALUES_ROWS = 100;
 	
 	protected AFilterItem() {}
     
-    abstract String getCondition();
-    abstract boolean match(Entity entity);
+    /**
+     * Returns the SQL condition of this filter item over the Attribute table.
+     * The values are not inlined into the SQL, they are added to the given
+     * list in the order of their '?' placeholders, so filters with the same
+     * shape produce the same SQL.
+     *
+     * @param params The list of the statement parameters.
+     *
+     * @return The condition, or null if this item can't be evaluated on a
+     * single attribute row.
+     */
+    abstract String getCondition(List<Object> params);
+
+    /**
+     * Returns a query which finds the attribute rows matched by this item
+     * faster than its condition. Derby doesn't use the index for an IN list
+     * on a column which follows other columns in the index, but it looks up
+     * the rows of a join one by one.
+     *
+     * @param kind The kind of the entities.
+     * @param alias The unique alias prefix of the query.
+     * @param params The list of the statement parameters.
+     *
+     * @return The query which selects the entityId column, or null if this
+     * item is planned by its condition.
+     */
+    String getLookupQuery(String kind, String alias, List<Object> params) {
+        return null;
+    }
+
+    /**
+     * Compiles this item in to a predicate which matches the entities in
+     * memory.
+     *
+     * @return The compiled predicate.
+     */
+    abstract APredicate compile();
+
+    /**
+     * Adds the names of the attributes which are read by the match method to
+     * the given set.
+     *
+     * @param names The set of the attribute names.
+     */
+    abstract void addAttributeNames(Set<String> names);
+
+    /**
+     * Indicates if the SQL condition of this item matches exactly the
+     * entities which are matched by this item, so the results of the SQL don't
+     * need to be matched again.
+     *
+     * @return True if the condition is exact.
+     */
+    boolean isExact() {
+        return true;
+    }
+
+    /**
+     * Estimates the ratio of the entities of the kind which are matched by
+     * this item. The query planner drives the queries by the most selective
+     * items.
+     *
+     * @param statistics The statistics of the attributes of the kind by name,
+     * or null if they haven't been collected. Then the ratio is guessed from
+     * the operator.
+     *
+     * @return The estimated ratio between 0 and 1.
+     */
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+        return 1.0;
+    }
+
+    /**
+     * Returns a condition which checks if the given column is one of the
+     * given values. The values are split in to IN lists of at most
+     * MAX_IN_SIZE parameters, which are padded like the id lists, so only a
+     * few different statements are prepared.
+     */
+    static String getInCondition(String column, List<?> values, List<Object> params) {
+        if (values.isEmpty()) {
+            return "1=0";
+        }
+
+        List<String> lists = new ArrayList<>();
+        for (int from = 0; from < values.size(); from += RelationalDB.MAX_IN_SIZE) {
+            List<?> chunk = values.subList(from, Math.min(values.size(), from + RelationalDB.MAX_IN_SIZE));
+            int size = RelationalDB.getInListSize(chunk.size());
+            addPadded(chunk, size, params);
+            lists.add(column + " IN " + RelationalDB.createInList(size));
+        }
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (String list : lists) {
+            if (sb.length() > 1) {
+                sb.append(" OR ");
+            }
+            sb.append(list);
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Returns a derived table of the given distinct values, which has one
+     * column named x. The values are split in to VALUES lists of at most
+     * MAX_VALUES_ROWS rows, which are padded like the IN lists, and the
+     * padding is removed by the union.
+     *
+     * @param type The SQL type of the values.
+     * @param values The values, at least one.
+     * @param params The list of the statement parameters.
+     */
+    static String getValuesTable(String type, List<?> values, List<Object> params) {
+        StringBuilder sb = new StringBuilder("(");
+        int index = 0;
+        for (int from = 0; from < values.size(); from += MAX_VALUES_ROWS) {
+            List<?> chunk = values.subList(from, Math.min(values.size(), from + MAX_VALUES_ROWS));
+            int size = RelationalDB.getInListSize(chunk.size());
+            addPadded(chunk, size, params);
+            if (index > 0) {
+                sb.append(" UNION ");
+            }
+            sb.append(values.size() > MAX_VALUES_ROWS ? "SELECT x" : "SELECT DISTINCT x").append(" FROM (VALUES ");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append("(CAST(? AS ").append(type).append("))");
+            }
+            sb.append(") t").append(index++).append("(x)");
+        }
+        return sb.append(")").toString();
+    }
+
+    private static void addPadded(List<?> values, int size, List<Object> params) {
+        // the padding repeats the last value, which doesn't change the result
+        for (int i = 0; i < size; i++) {
+            params.add(values.get(Math.min(i, values.size() - 1)));
+        }
+    }
 
 }
@@ -0,0 +1,361 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A filter item compiled for matching entities in memory. The items are
+ * compiled once, when the filter is created, in to predicates which are
+ * specialized for their operator and hold their reference values in the form
+ * which is compared, so matching an entity allocates nothing.
+ *
+ * @author dipacs
+ */
+abstract class APredicate {
+
+    abstract boolean match(Entity entity);
+
+    /**
+     * A predicate on a long attribute. Entities which don't have the attribute
+     * with long type are not matched.
+     */
+    abstract static class ALongPredicate extends APredicate {
+
+        private final String attributeName;
+
+        ALongPredicate(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        final boolean match(Entity entity) {
+            Object value = entity.getAttributes().get(attributeName);
+            return value instanceof Long && test((Long) value);
+        }
+
+        abstract boolean test(long value);
+
+    }
+
+    static final class LongEquals extends ALongPredicate {
+
+        private final long reference;
+
+        LongEquals(String attributeName, long reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(long value) {
+            return value == reference;
+        }
+
+    }
+
+    static final class LongNotEquals extends ALongPredicate {
+
+        private final long reference;
+
+        LongNotEquals(String attributeName, long reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(long value) {
+            return value != reference;
+        }
+
+    }
+
+    static final class LongGreater extends ALongPredicate {
+
+        private final long reference;
+
+        LongGreater(String attributeName, long reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(long value) {
+            return value > reference;
+        }
+
+    }
+
+    static final class LongSmaller extends ALongPredicate {
+
+        private final long reference;
+
+        LongSmaller(String attributeName, long reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(long value) {
+            return value < reference;
+        }
+
+    }
+
+    /**
+     * Matches the long values which are one of the references.
+     */
+    static final class LongIn extends ALongPredicate {
+
+        private final long[] references;
+
+        /**
+         * @param references The sorted distinct values.
+         */
+        LongIn(String attributeName, long[] references) {
+            super(attributeName);
+            this.references = references;
+        }
+
+        @Override
+        boolean test(long value) {
+            return Arrays.binarySearch(references, value) >= 0;
+        }
+
+    }
+
+    /**
+     * A predicate on a string attribute. Entities which don't have the
+     * attribute with string type are not matched.
+     */
+    abstract static class AStringPredicate extends APredicate {
+
+        private final String attributeName;
+
+        AStringPredicate(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        final boolean match(Entity entity) {
+            Object value = entity.getAttributes().get(attributeName);
+            return value instanceof String && test((String) value);
+        }
+
+        abstract boolean test(String value);
+
+    }
+
+    static final class StringEquals extends AStringPredicate {
+
+        private final String reference;
+
+        StringEquals(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value.equals(reference);
+        }
+
+    }
+
+    static final class StringNotEquals extends AStringPredicate {
+
+        private final String reference;
+
+        StringNotEquals(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return !value.equals(reference);
+        }
+
+    }
+
+    static final class StringGreater extends AStringPredicate {
+
+        private final String reference;
+
+        StringGreater(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value.compareTo(reference) > 0;
+        }
+
+    }
+
+    static final class StringSmaller extends AStringPredicate {
+
+        private final String reference;
+
+        StringSmaller(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value.compareTo(reference) < 0;
+        }
+
+    }
+
+    /**
+     * Case insensitive substring search. The characters are compared in
+     * place, so neither the value nor the reference is lowercased per entity.
+     */
+    static final class StringContains extends AStringPredicate {
+
+        private final String reference;
+
+        StringContains(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = Schema.foldCase(reference);
+        }
+
+        @Override
+        boolean test(String value) {
+            int length = reference.length();
+            int max = value.length() - length;
+            for (int i = 0; i <= max; i++) {
+                if (value.regionMatches(true, i, reference, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    static final class StringStartsWith extends AStringPredicate {
+
+        private final String reference;
+
+        StringStartsWith(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value.regionMatches(true, 0, reference, 0, reference.length());
+        }
+
+    }
+
+    static final class StringEqualsIgnoreCase extends AStringPredicate {
+
+        private final String reference;
+
+        StringEqualsIgnoreCase(String attributeName, String reference) {
+            super(attributeName);
+            this.reference = reference;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value.equalsIgnoreCase(reference);
+        }
+
+    }
+
+    static final class StringIn extends AStringPredicate {
+
+        private final Set<String> references;
+
+        StringIn(String attributeName, Collection<String> references) {
+            super(attributeName);
+            this.references = new HashSet<>(references);
+        }
+
+        @Override
+        boolean test(String value) {
+            return references.contains(value);
+        }
+
+    }
+
+    static final class BooleanEquals extends APredicate {
+
+        private final String attributeName;
+        private final Boolean reference;
+
+        BooleanEquals(String attributeName, boolean reference) {
+            this.attributeName = attributeName;
+            this.reference = reference;
+        }
+
+        @Override
+        boolean match(Entity entity) {
+            return reference.equals(entity.getAttributes().get(attributeName));
+        }
+
+    }
+
+    static final class NotNull extends APredicate {
+
+        private final String attributeName;
+
+        NotNull(String attributeName) {
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        boolean match(Entity entity) {
+            return entity.getAttributes().get(attributeName) != null;
+        }
+
+    }
+
+    static final class And extends APredicate {
+
+        private final APredicate[] predicates;
+
+        And(APredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean match(Entity entity) {
+            for (APredicate predicate : predicates) {
+                if (!predicate.match(entity)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    static final class Or extends APredicate {
+
+        private final APredicate[] predicates;
+
+        Or(APredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        @Override
+        boolean match(Entity entity) {
+            for (APredicate predicate : predicates) {
+                if (predicate.match(entity)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
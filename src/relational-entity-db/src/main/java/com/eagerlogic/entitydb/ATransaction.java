@@ -24,10 +24,31 @@ public abstract class ATransaction<T> {
     
     protected abstract T onExecute(DB db) throws TransactionException;
     
+    /**
+     * Executes this transaction. The operations of the onExecute method run
+     * in one database transaction, which is committed when the method
+     * returns, and rolled back when it throws an exception. Transactions
+     * executed inside an other transaction join the outer one.
+     *
+     * @return The value returned by the onExecute method.
+     *
+     * @throws TransactionException If the onExecute method throws it, or the
+     * transaction can't be committed.
+     */
     public T execute() throws TransactionException {
+        EntityDB entityDB = db.getEntityDB();
         lock.lock();
         try {
-            return onExecute(db);
+            entityDB.beginTransaction();
+            T res;
+            try {
+                res = onExecute(db);
+            } catch (TransactionException | RuntimeException | Error ex) {
+                entityDB.rollbackTransaction();
+                throw ex;
+            }
+            entityDB.commitTransaction();
+            return res;
         } finally {
             lock.unlock();
         }
@@ -0,0 +1,86 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the values of the entities to the bytes which are stored in the
+ * database, and back. The codec of a database can be set with
+ * EntityDBConfig.setValueCodec.
+ *
+ * The values which have been stored with Java serialization by the earlier
+ * versions are detected by their stream header, and they are always read
+ * with Java serialization, so the codec doesn't need to handle them.
+ *
+ * The implementations must be thread-safe.
+ *
+ * @author dipacs
+ */
+public abstract class AValueCodec {
+
+    private static final int JAVA_SERIALIZATION_MAGIC_1 = 0xAC;
+    private static final int JAVA_SERIALIZATION_MAGIC_2 = 0xED;
+
+    protected AValueCodec() {
+    }
+
+    /**
+     * Encodes the given value.
+     *
+     * @param value The value, never null.
+     *
+     * @return The encoded value.
+     */
+    public abstract byte[] encode(EntityValue value);
+
+    /**
+     * Decodes a value encoded by this codec.
+     *
+     * @param data The encoded value.
+     *
+     * @return The decoded value.
+     */
+    public abstract EntityValue decode(byte[] data);
+
+    /**
+     * Decodes the given stored value. Java serialized values are read with
+     * Java serialization, the others are decoded by this codec.
+     *
+     * @param data The stored value.
+     *
+     * @return The decoded value.
+     */
+    final EntityValue read(byte[] data) {
+        if (isJavaSerialized(data)) {
+            return (EntityValue) readJavaSerialized(data);
+        }
+        return decode(data);
+    }
+
+    static boolean isJavaSerialized(byte[] data) {
+        return data.length > 1 && (data[0] & 0xFF) == JAVA_SERIALIZATION_MAGIC_1
+                && (data[1] & 0xFF) == JAVA_SERIALIZATION_MAGIC_2;
+    }
+
+    static Object readJavaSerialized(byte[] data) {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new ByteArrayInputStream(data));
+            return ois.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (ois != null) {
+                try {
+                    ois.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(AValueCodec.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+}
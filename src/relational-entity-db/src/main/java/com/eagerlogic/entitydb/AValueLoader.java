@@ -0,0 +1,21 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * Loads the encoded values of the entities which are read without their
+ * values.
+ *
+ * @author dipacs
+ */
+abstract class AValueLoader {
+
+    /**
+     * Loads the encoded value of the given entity.
+     *
+     * @param id The id of the entity.
+     *
+     * @return The encoded value, or null if the entity has no value, or it
+     * doesn't exist anymore.
+     */
+    abstract byte[] loadValue(long id);
+
+}
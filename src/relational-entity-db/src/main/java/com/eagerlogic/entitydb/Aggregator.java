@@ -0,0 +1,74 @@
+package com.eagerlogic.entitydb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes an aggregate function over long values in memory, grouped by a
+ * key. Used for the filters which can't be evaluated by the database.
+ *
+ * @author dipacs
+ */
+final class Aggregator {
+
+    private final EAggregate aggregate;
+    private final Map<Object, long[]> groups = new HashMap<>();
+
+    public Aggregator(EAggregate aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Adds a value to the given group.
+     *
+     * @param key The key of the group, or null if there is no grouping.
+     * @param value The value.
+     */
+    public void add(Object key, long value) {
+        long[] group = groups.get(key);
+        if (group == null) {
+            // count, sum, min, max
+            group = new long[]{0, 0, Long.MAX_VALUE, Long.MIN_VALUE};
+            groups.put(key, group);
+        }
+        group[0]++;
+        group[1] += value;
+        group[2] = Math.min(group[2], value);
+        group[3] = Math.max(group[3], value);
+    }
+
+    /**
+     * Returns the results of the groups.
+     *
+     * @return The results by the keys of the groups.
+     */
+    public Map<Object, Number> getResults() {
+        Map<Object, Number> res = new HashMap<>();
+        for (Map.Entry<Object, long[]> entry : groups.entrySet()) {
+            long[] group = entry.getValue();
+            Number value;
+            switch (aggregate) {
+                case COUNT:
+                    value = group[0];
+                    break;
+                case SUM:
+                    value = group[1];
+                    break;
+                case MIN:
+                    value = group[2];
+                    break;
+                case MAX:
+                    value = group[3];
+                    break;
+                case AVG:
+                    value = (double) group[1] / group[0];
+                    break;
+                default:
+                    throw new RuntimeException("Unknown aggregate: " + aggregate.name());
+            }
+            res.put(entry.getKey(), value);
+        }
+        return res;
+    }
+
+}
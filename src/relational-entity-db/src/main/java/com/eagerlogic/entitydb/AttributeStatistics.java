@@ -0,0 +1,190 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the statistics of an attribute of a kind. The
+ * statistics are collected by EntityDB.refreshStatistics, and they are used
+ * by the query planner to estimate how many entities are matched by a filter
+ * item. They aren't updated by the writes, they are collected again after a
+ * tenth of the kind has been written, so they can be outdated until then.
+ *
+ * @author dipacs
+ */
+public final class AttributeStatistics {
+
+    private final String kind;
+    private final String attributeName;
+    private final long entityCount;
+    private final long longCount;
+    private final long longDistinctCount;
+    private final long minLong;
+    private final long maxLong;
+    private final long[] longHistogram;
+    private final long booleanCount;
+    private final long stringCount;
+    private final long stringDistinctCount;
+
+    AttributeStatistics(String kind, String attributeName, long entityCount, long longCount, long longDistinctCount,
+            long minLong, long maxLong, long[] longHistogram, long booleanCount, long stringCount,
+            long stringDistinctCount) {
+        this.kind = kind;
+        this.attributeName = attributeName;
+        this.entityCount = entityCount;
+        this.longCount = longCount;
+        this.longDistinctCount = longDistinctCount;
+        this.minLong = minLong;
+        this.maxLong = maxLong;
+        this.longHistogram = longHistogram;
+        this.booleanCount = booleanCount;
+        this.stringCount = stringCount;
+        this.stringDistinctCount = stringDistinctCount;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * Returns the number of the entities of the kind, with or without this
+     * attribute.
+     *
+     * @return The number of the entities of the kind.
+     */
+    public long getEntityCount() {
+        return entityCount;
+    }
+
+    /**
+     * Returns the number of the entities which have this attribute.
+     *
+     * @return The number of the attribute values of any type.
+     */
+    public long getCount() {
+        return longCount + booleanCount + stringCount;
+    }
+
+    /**
+     * Returns the number of the long values of this attribute.
+     *
+     * @return The number of the long values.
+     */
+    public long getLongCount() {
+        return longCount;
+    }
+
+    /**
+     * Returns the number of the distinct long values of this attribute.
+     *
+     * @return The number of the distinct long values.
+     */
+    public long getLongDistinctCount() {
+        return longDistinctCount;
+    }
+
+    /**
+     * Returns the smallest long value of this attribute.
+     *
+     * @return The smallest long value, or 0 if there are no long values.
+     */
+    public long getMinLong() {
+        return minLong;
+    }
+
+    /**
+     * Returns the largest long value of this attribute.
+     *
+     * @return The largest long value, or 0 if there are no long values.
+     */
+    public long getMaxLong() {
+        return maxLong;
+    }
+
+    /**
+     * Returns the equi-width histogram of the long values. The range between
+     * the smallest and the largest value is split in to equal buckets, and
+     * every element is the number of the values in a bucket.
+     *
+     * @return The counts of the buckets. Empty if there are no long values.
+     */
+    public long[] getLongHistogram() {
+        return longHistogram.clone();
+    }
+
+    /**
+     * Returns the number of the boolean values of this attribute.
+     *
+     * @return The number of the boolean values.
+     */
+    public long getBooleanCount() {
+        return booleanCount;
+    }
+
+    /**
+     * Returns the number of the string values of this attribute.
+     *
+     * @return The number of the string values.
+     */
+    public long getStringCount() {
+        return stringCount;
+    }
+
+    /**
+     * Returns the number of the distinct string values of this attribute. Only
+     * the indexed prefixes of the values are compared.
+     *
+     * @return The number of the distinct string values.
+     */
+    public long getStringDistinctCount() {
+        return stringDistinctCount;
+    }
+
+    /**
+     * Estimates the ratio of the entities of the kind which have the given
+     * number of values of this attribute.
+     */
+    double getRatio(double count) {
+        if (entityCount <= 0) {
+            return 0;
+        }
+        return Math.min(1.0, count / entityCount);
+    }
+
+    /**
+     * Estimates the number of the long values which are between the given
+     * bounds, inclusive, using the histogram. The values are assumed to be
+     * spread evenly in a bucket.
+     */
+    double estimateLongRange(long from, long to) {
+        if (longHistogram.length == 0 || from > to || to < minLong || from > maxLong) {
+            return 0;
+        }
+        double width = ((double) maxLong - minLong + 1) / longHistogram.length;
+        double lo = Math.max(from, minLong) - (double) minLong;
+        double hi = Math.min(to, maxLong) - (double) minLong + 1;
+        double res = 0;
+        for (int i = 0; i < longHistogram.length; i++) {
+            double start = i * width;
+            double end = start + width;
+            double overlap = Math.min(end, hi) - Math.max(start, lo);
+            if (overlap > 0) {
+                res += longHistogram[i] * overlap / width;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeStatistics{" + "kind=" + kind + ", attributeName=" + attributeName
+                + ", entityCount=" + entityCount + ", longCount=" + longCount
+                + ", longDistinctCount=" + longDistinctCount + ", minLong=" + minLong + ", maxLong=" + maxLong
+                + ", longHistogram=" + Arrays.toString(longHistogram) + ", booleanCount=" + booleanCount
+                + ", stringCount=" + stringCount + ", stringDistinctCount=" + stringDistinctCount + '}';
+    }
+
+}
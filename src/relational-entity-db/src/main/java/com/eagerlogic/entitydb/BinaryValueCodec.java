@@ -0,0 +1,345 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compact, tagged binary codec for the entity values. This is the default
+ * codec.
+ *
+ * Every item of the value is stored as its name and a one byte type tag
+ * followed by the data. Integers are stored as variable length numbers,
+ * strings in UTF-8. The supported item types are null, Boolean, Byte,
+ * Short, Character, Integer, Long, Float, Double, String, byte[], List and
+ * EntityValue. Other Serializable objects are stored with Java
+ * serialization.
+ *
+ * The subclasses of EntityValue can have their own state, so they are stored
+ * with Java serialization as a whole, like by the earlier versions.
+ *
+ * @author dipacs
+ */
+public final class BinaryValueCodec extends AValueCodec {
+
+    static final BinaryValueCodec INSTANCE = new BinaryValueCodec();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte MAGIC = 'E';
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_TRUE = 1;
+    private static final byte TAG_FALSE = 2;
+    private static final byte TAG_BYTE = 3;
+    private static final byte TAG_SHORT = 4;
+    private static final byte TAG_CHAR = 5;
+    private static final byte TAG_INT = 6;
+    private static final byte TAG_LONG = 7;
+    private static final byte TAG_FLOAT = 8;
+    private static final byte TAG_DOUBLE = 9;
+    private static final byte TAG_STRING = 10;
+    private static final byte TAG_BYTES = 11;
+    private static final byte TAG_LIST = 12;
+    private static final byte TAG_VALUE = 13;
+    private static final byte TAG_SERIALIZED = 14;
+
+    public BinaryValueCodec() {
+    }
+
+    @Override
+    public byte[] encode(EntityValue value) {
+        if (value.getClass() != EntityValue.class) {
+            return writeJavaSerialized(value);
+        }
+
+        Output out = new Output();
+        out.write(MAGIC);
+        out.write(FORMAT_VERSION);
+        writeEntityValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public EntityValue decode(byte[] data) {
+        if (data.length < 2 || data[0] != MAGIC) {
+            throw new IllegalArgumentException("The data is not encoded by BinaryValueCodec.");
+        }
+        if (data[1] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported BinaryValueCodec format version: " + data[1]);
+        }
+
+        Input in = new Input(data, 2);
+        return readEntityValue(in);
+    }
+
+    private static void writeEntityValue(Output out, EntityValue value) {
+        out.writeVarLong(value.getNames().size());
+        for (Map.Entry<String, Object> entry : value.entries()) {
+            out.writeString(entry.getKey());
+            writeItem(out, entry.getValue());
+        }
+    }
+
+    private static void writeItem(Output out, Object item) {
+        if (item == null) {
+            out.write(TAG_NULL);
+        } else if (item instanceof Boolean) {
+            out.write((Boolean) item ? TAG_TRUE : TAG_FALSE);
+        } else if (item instanceof Byte) {
+            out.write(TAG_BYTE);
+            out.write((Byte) item);
+        } else if (item instanceof Short) {
+            out.write(TAG_SHORT);
+            out.writeVarLong(zigZag((Short) item));
+        } else if (item instanceof Character) {
+            out.write(TAG_CHAR);
+            out.writeVarLong((Character) item);
+        } else if (item instanceof Integer) {
+            out.write(TAG_INT);
+            out.writeVarLong(zigZag((Integer) item));
+        } else if (item instanceof Long) {
+            out.write(TAG_LONG);
+            out.writeVarLong(zigZag((Long) item));
+        } else if (item instanceof Float) {
+            out.write(TAG_FLOAT);
+            out.writeFixed(Float.floatToIntBits((Float) item), 4);
+        } else if (item instanceof Double) {
+            out.write(TAG_DOUBLE);
+            out.writeFixed(Double.doubleToLongBits((Double) item), 8);
+        } else if (item instanceof String) {
+            out.write(TAG_STRING);
+            out.writeString((String) item);
+        } else if (item instanceof byte[]) {
+            out.write(TAG_BYTES);
+            out.writeBytes((byte[]) item);
+        } else if (item instanceof List) {
+            List<?> list = (List<?>) item;
+            out.write(TAG_LIST);
+            out.writeVarLong(list.size());
+            for (Object o : list) {
+                writeItem(out, o);
+            }
+        } else if (item.getClass() == EntityValue.class) {
+            out.write(TAG_VALUE);
+            writeEntityValue(out, (EntityValue) item);
+        } else if (item instanceof Serializable) {
+            out.write(TAG_SERIALIZED);
+            out.writeBytes(writeJavaSerialized(item));
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + item.getClass().getName());
+        }
+    }
+
+    private static EntityValue readEntityValue(Input in) {
+        EntityValue res = new EntityValue();
+        long count = in.readVarLong();
+        for (long i = 0; i < count; i++) {
+            String name = in.readString();
+            res.put(name, readItem(in));
+        }
+        return res;
+    }
+
+    private static Object readItem(Input in) {
+        byte tag = in.read();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return in.read();
+            case TAG_SHORT:
+                return (short) unZigZag(in.readVarLong());
+            case TAG_CHAR:
+                return (char) in.readVarLong();
+            case TAG_INT:
+                return (int) unZigZag(in.readVarLong());
+            case TAG_LONG:
+                return unZigZag(in.readVarLong());
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int) in.readFixed(4));
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(in.readFixed(8));
+            case TAG_STRING:
+                return in.readString();
+            case TAG_BYTES:
+                return in.readBytes();
+            case TAG_LIST:
+                long size = in.readVarLong();
+                List<Object> list = new ArrayList<>((int) Math.min(size, 1024));
+                for (long i = 0; i < size; i++) {
+                    list.add(readItem(in));
+                }
+                return list;
+            case TAG_VALUE:
+                return readEntityValue(in);
+            case TAG_SERIALIZED:
+                return readJavaSerialized(in.readBytes());
+            default:
+                throw new IllegalArgumentException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] writeJavaSerialized(Object value) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(baos);
+            oos.writeObject(value);
+            oos.flush();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (oos != null) {
+                try {
+                    oos.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(BinaryValueCodec.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A growing byte buffer. Unlike the streams it doesn't synchronize and it
+     * doesn't throw IOException.
+     */
+    private static final class Output {
+
+        private byte[] buf = new byte[64];
+        private int count = 0;
+
+        void write(byte b) {
+            ensureCapacity(1);
+            buf[count++] = b;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        void writeFixed(long value, int size) {
+            ensureCapacity(size);
+            for (int i = size - 1; i >= 0; i--) {
+                buf[count++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void writeString(String s) {
+            writeBytes(s.getBytes(UTF8));
+        }
+
+        private void ensureCapacity(int size) {
+            if (count + size > buf.length) {
+                byte[] newBuf = new byte[Math.max(buf.length * 2, count + size)];
+                System.arraycopy(buf, 0, newBuf, 0, count);
+                buf = newBuf;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] res = new byte[count];
+            System.arraycopy(buf, 0, res, 0, count);
+            return res;
+        }
+
+    }
+
+    private static final class Input {
+
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        byte read() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("Unexpected end of the encoded value.");
+            }
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long res = 0;
+            int shift = 0;
+            while (true) {
+                byte b = read();
+                res |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return res;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Malformed variable length number.");
+                }
+            }
+        }
+
+        long readFixed(int size) {
+            long res = 0;
+            for (int i = 0; i < size; i++) {
+                res = (res << 8) | (read() & 0xFF);
+            }
+            return res;
+        }
+
+        byte[] readBytes() {
+            long length = readVarLong();
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("Unexpected end of the encoded value.");
+            }
+            byte[] res = new byte[(int) length];
+            System.arraycopy(buf, pos, res, 0, res.length);
+            pos += res.length;
+            return res;
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("Unexpected end of the encoded value.");
+            }
+            String res = new String(buf, pos, (int) length, UTF8);
+            pos += (int) length;
+            return res;
+        }
+
+    }
+
+}
@@ -1,5 +1,9 @@
 package com.eagerlogic.entitydb;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  *
  * @author dipacs
@@ -26,21 +30,48 @@ public final class BooleanFilterItem extends AFilterItem {
 	}
 
     @Override
-    String getCondition() {
+    String getCondition(List<Object> params) {
+        params.add(attributeName);
+        params.add(Boolean.toString(referenceValue));
+        params.add(Boolean.toString(referenceValue));
         return "(type=" + RelationalDB.AttributeDTO.EType.BOOLEAN.getType()
-                + " AND name='" + attributeName.replace("'", "''") 
-                + "' AND value='" + referenceValue + "')";
+                + " AND name=? AND valueKey=? AND value=?)";
+    }
+
+    @Override
+    void addAttributeNames(Set<String> names) {
+        names.add(attributeName);
+    }
+
+    @Override
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+        if (statistics == null) {
+            return 0.5;
+        }
+        AttributeStatistics stats = statistics.get(attributeName);
+        return stats == null ? 0 : stats.getRatio(stats.getBooleanCount() / 2.0);
     }
 
     @Override
-    boolean match(Entity entity) {
-        Object attrO = entity.getAttribute(attributeName);
-        if (attrO instanceof Boolean) {
-            if (((Boolean)attrO) == referenceValue) {
-                return true;
-            }
+    APredicate compile() {
+        return new APredicate.BooleanEquals(attributeName, referenceValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * attributeName.hashCode() + (referenceValue ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof BooleanFilterItem)) {
+            return false;
         }
-        return false;
+        BooleanFilterItem other = (BooleanFilterItem) obj;
+        return attributeName.equals(other.attributeName) && referenceValue == other.referenceValue;
     }
 
 }
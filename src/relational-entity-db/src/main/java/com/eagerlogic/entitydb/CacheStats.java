@@ -0,0 +1,78 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * An immutable snapshot of the counters of a cache.
+ *
+ * @author dipacs
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long size;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of lookups which were served from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which weren't found in the cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of items which were removed from the cache to keep
+     * it in its size bound.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of items in the cache.
+     *
+     * @return The size of the cache.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the ratio of the hits and all the lookups.
+     *
+     * @return The hit rate between 0 and 1, or 0 if there was no lookup.
+     */
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" + "hitCount=" + hitCount + ", missCount=" + missCount
+                + ", evictionCount=" + evictionCount + ", size=" + size + '}';
+    }
+
+}
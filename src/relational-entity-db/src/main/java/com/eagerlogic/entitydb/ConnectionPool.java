@@ -0,0 +1,117 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of embedded connections to the same database. Every pooled
+ * connection has its own statement cache. The connections are opened lazily,
+ * when all the open connections are borrowed.
+ *
+ * @author dipacs
+ */
+final class ConnectionPool {
+
+    private final String connStr;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final LinkedList<StatementCache> idle = new LinkedList<>();
+    private final List<StatementCache> connections = new ArrayList<>();
+    private boolean closed = false;
+
+    public ConnectionPool(String connStr, int maxSize, int statementCacheSize) {
+        this.connStr = connStr;
+        this.maxSize = maxSize;
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Borrows a connection from the pool. Waits until a connection is
+     * released if all the connections are in use, and the pool is full.
+     *
+     * @return The borrowed connection with its statement cache.
+     */
+    public synchronized StatementCache borrow() {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("The connection pool is closed.");
+            }
+
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+
+            if (connections.size() < maxSize) {
+                try {
+                    Connection conn = DriverManager.getConnection(connStr);
+                    StatementCache res = new StatementCache(conn, statementCacheSize);
+                    connections.add(res);
+                    return res;
+                } catch (SQLException ex) {
+                    throw new RuntimeException("Can't open pooled connection.", ex);
+                }
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a connection.", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool.
+     *
+     * @param cache The borrowed connection.
+     */
+    public synchronized void release(StatementCache cache) {
+        if (closed) {
+            close(cache);
+            return;
+        }
+        // the most recently used connection is reused first, it's statement
+        // cache is the warmest
+        idle.addFirst(cache);
+        notify();
+    }
+
+    /**
+     * Returns every connection of the pool, including the borrowed ones.
+     *
+     * @return A copy of the list of the connections.
+     */
+    public synchronized List<StatementCache> getConnections() {
+        return new ArrayList<>(connections);
+    }
+
+    /**
+     * Closes the idle connections of the pool. The borrowed connections are
+     * closed when they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (StatementCache cache : idle) {
+            close(cache);
+        }
+        idle.clear();
+        notifyAll();
+    }
+
+    private static void close(StatementCache cache) {
+        cache.clear();
+        try {
+            cache.getConnection().close();
+        } catch (SQLException ex) {
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+}
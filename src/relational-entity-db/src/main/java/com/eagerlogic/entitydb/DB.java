@@ -1,6 +1,8 @@
 package com.eagerlogic.entitydb;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,6 +29,21 @@ public final class DB {
 		entityDB.put(entity);
 	}
 	
+	/**
+	 * Puts the given entities in to the database. This works like calling the put(Entity) method for every entity,
+	 * but it's much faster, because the entities are written in batches, and the changes are committed once per
+	 * chunk. The size of the chunks can be set with EntityDBConfig.setBatchCommitSize(int).
+	 * 
+	 * If a chunk fails, the changes of that chunk are rolled back, and the ids of the new entities in the chunk
+	 * are reset to -1, but the previous chunks remain stored.
+	 * 
+	 * @param entities 
+	 * The entities which will be stored.
+	 */
+	public void putAll(Collection<Entity> entities) {
+		entityDB.putAll(entities);
+	}
+	
 	/**
 	 * Removes an entity from the database by it's id.
 	 * 
@@ -50,6 +67,21 @@ public final class DB {
 		return entityDB.get(id);
 	}
 	
+	/**
+	 * Reads the entities with the given ids from the database. This is much faster than calling the get(long)
+	 * method for every id, because the entities are loaded in a few bulk queries.
+	 * 
+	 * @param ids
+	 * The ids of the entities.
+	 * 
+	 * @return 
+	 * The found entities by their ids, in the iteration order of the given ids. Ids which have no entity in the
+	 * database are left out.
+	 */
+	public Map<Long, Entity> getAll(Collection<Long> ids) {
+		return entityDB.getAll(ids);
+	}
+	
 	/**
 	 * Queryes the database using the given filter.
 	 * 
@@ -75,6 +107,60 @@ public final class DB {
 	public List<Entity> query(Filter filter) {
 		return entityDB.query(filter);
 	}
+	
+	/**
+	 * Queryes the database using the given filter and options. The order, the limit and the start position of the
+	 * results are applied by the database. If the filter matches a fair share of the kind, the page is read in the
+	 * order of an index from its start position, and the filter is checked on each entity, so the cost of a page
+	 * doesn't grow with the size of the kind. If the filter matches only a few entities, they are selected and
+	 * sorted. Strings are ordered by their first 1000 characters.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @param options
+	 * The order, the limit and the start position of the results.
+	 * 
+	 * @return 
+	 * The matching entities in the order given by the options.
+	 */
+	public List<Entity> query(Filter filter, QueryOptions options) {
+		return entityDB.query(filter, options);
+	}
+	
+	/**
+	 * Queryes the database using the given filter and options.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @param options
+	 * The order, the limit and the start position of the results.
+	 * 
+	 * @return 
+	 * The keys of the matching entities in the order given by the options.
+	 */
+	public Set<Long> queryKeys(Filter filter, QueryOptions options) {
+		return entityDB.queryKeys(filter, options);
+	}
+	
+	/**
+	 * Queryes the database using the given filter, and reads only the selected parts of the matching entities. The
+	 * returned entities are partial: they have only the selected attributes. They can be modified and stored, and the
+	 * attributes which weren't read are left untouched.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @param projection
+	 * The attributes to read, and whether the values of the entities are read with them.
+	 * 
+	 * @return 
+	 * The matching partial entities.
+	 */
+	public List<Entity> query(Filter filter, Projection projection) {
+		return entityDB.query(filter, projection);
+	}
         
         public List<Entity> queryAll(String kind) {
             if (kind == null) {
@@ -90,6 +176,134 @@ public final class DB {
             return entityDB.queryAllKeys(kind);
         }
 
+	/**
+	 * Counts the entities matched by the given filter without loading them, if the filter can be evaluated by the
+	 * database.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * The number of the matching entities.
+	 */
+	public long count(Filter filter) {
+		return entityDB.count(filter);
+	}
+	
+	/**
+	 * Counts the entities of the given kind.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @return 
+	 * The number of the entities of the given kind.
+	 */
+	public long countAll(String kind) {
+		if (kind == null) {
+			throw new NullPointerException("The 'kind' attribute can not be null.");
+		}
+		return entityDB.countAll(kind);
+	}
+	
+	/**
+	 * Indicates if any entity is matched by the given filter. The query stops at the first matching entity.
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * True if at least one entity matches the filter.
+	 */
+	public boolean exists(Filter filter) {
+		return entityDB.exists(filter);
+	}
+	
+	/**
+	 * Computes an aggregate function over the values of a long attribute of the entities matched by the filter. The
+	 * function is computed by the database, without loading the entities, if the filter can be evaluated by the
+	 * database. The entities which don't have the attribute with long type are left out.
+	 * 
+	 * @param filter
+	 * The filter which selects the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the long attribute.
+	 * 
+	 * @param aggregate
+	 * The aggregate function.
+	 * 
+	 * @return 
+	 * The result of the function. A Double for AVG, a Long otherwise. Null if there are no values, except for
+	 * COUNT, which returns 0.
+	 */
+	public Number aggregate(Filter filter, String attributeName, EAggregate aggregate) {
+		Number res = entityDB.aggregate(filter, attributeName, aggregate, null).get(null);
+		if (res == null && aggregate == EAggregate.COUNT) {
+			return 0L;
+		}
+		return res;
+	}
+	
+	/**
+	 * Computes an aggregate function over the values of a long attribute of the entities matched by the filter,
+	 * grouped by the value of an other attribute. The entities which don't have the group attribute are left out.
+	 * 
+	 * @param filter
+	 * The filter which selects the entities.
+	 * 
+	 * @param attributeName
+	 * The name of the long attribute.
+	 * 
+	 * @param aggregate
+	 * The aggregate function.
+	 * 
+	 * @param groupBy
+	 * The name of the attribute which groups the entities.
+	 * 
+	 * @return 
+	 * The results of the groups by the values of the group attribute. A result is a Double for AVG, a Long
+	 * otherwise.
+	 */
+	public Map<Object, Number> aggregate(Filter filter, String attributeName, EAggregate aggregate, String groupBy) {
+		if (groupBy == null) {
+			throw new NullPointerException("The groupBy parameter can not be null.");
+		}
+		return entityDB.aggregate(filter, attributeName, aggregate, groupBy);
+	}
+	
+	/**
+	 * Queryes the database using the given filter, and returns a cursor over the matching entities in ascending id
+	 * order. The entities are loaded in batches while the cursor is iterated, so this uses little memory even if
+	 * lots of entities match. The size of the batches can be set with EntityDBConfig.setCursorBatchSize(int).
+	 * 
+	 * @param filter
+	 * The filter which will be used to query the database.
+	 * 
+	 * @return 
+	 * The cursor over the matching entities. It should be closed when it's not needed anymore.
+	 */
+	public EntityCursor iterate(Filter filter) {
+		return entityDB.iterate(filter);
+	}
+	
+	/**
+	 * Returns a cursor over all the entities of the given kind in ascending id order. The entities are loaded in
+	 * batches while the cursor is iterated.
+	 * 
+	 * @param kind
+	 * The kind of the entities.
+	 * 
+	 * @return 
+	 * The cursor over the entities. It should be closed when it's not needed anymore.
+	 */
+	public EntityCursor iterateAll(String kind) {
+		if (kind == null) {
+			throw new NullPointerException("The 'kind' attribute can not be null.");
+		}
+		return entityDB.iterateAll(kind);
+	}
+
 	/**
 	 * Executes a query based on the given filter and returns the only one result returned by the query.
 	 * The query must return exectly one element, otherwise this method throws a RuntimeException.
@@ -0,0 +1,32 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * The aggregate functions which can be computed over a long attribute.
+ *
+ * @author dipacs
+ */
+public enum EAggregate {
+
+    /**
+     * The number of the entities which have the attribute. The result is a
+     * Long.
+     */
+    COUNT,
+    /**
+     * The sum of the values. The result is a Long.
+     */
+    SUM,
+    /**
+     * The smallest value. The result is a Long.
+     */
+    MIN,
+    /**
+     * The largest value. The result is a Long.
+     */
+    MAX,
+    /**
+     * The average of the values. The result is a Double.
+     */
+    AVG
+
+}
@@ -1,16 +1,13 @@
 package com.eagerlogic.entitydb;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * This class represents a persistable object.
@@ -19,10 +16,33 @@ import java.util.logging.Logger;
  */
 public final class Entity implements Serializable {
 
+    /**
+     * The serial version of the first version of this class, so the entities
+     * serialized by it can still be read.
+     */
+    private static final long serialVersionUID = -8478941245386333549L;
+
     private long id = -1;
     private String kind;
+    /**
+     * The encoded value. Null if the entity has no value, or the value has
+     * been set, and it isn't encoded yet.
+     */
     private byte[] value;
+    private transient EntityValue objectValue;
+    private transient AValueCodec codec;
+    /**
+     * Loads the encoded value if the entity has been read without it. Null if
+     * the value is loaded.
+     */
+    private transient AValueLoader loader;
     private final Map<String, Object> attributes = new HashMap<String, Object>();
+    /**
+     * The attributes as they are stored in the database. Null if the entity
+     * hasn't been loaded or stored yet.
+     */
+    private HashMap<String, Object> storedAttributes = null;
+    private boolean valueDirty = false;
 
     Entity() {
     }
@@ -61,106 +81,91 @@ public final class Entity implements Serializable {
     }
 
     /**
-     * Returns the value of this entity.
+     * Returns the stored value of this entity, encoded with the given codec.
+     * The value is encoded only if it has been set since it was last encoded.
      *
-     * @return The value of this entity.
+     * @param codec The codec of the database.
+     *
+     * @return The encoded value, or null if this entity has no value.
      */
-    byte[] getByteValue() {
+    byte[] encodeValue(AValueCodec codec) {
+        loadValue();
+        if (value == null && objectValue != null) {
+            value = codec.encode(objectValue);
+            this.codec = codec;
+        }
         return value;
     }
-    
-//    public String getStringValue() {
-//        if (value == null) {
-//            return null;
-//        }
-//        
-//        try {
-//            return new String(value, "UTF-8");
-//        } catch (UnsupportedEncodingException ex) {
-//            throw new RuntimeException(ex);
-//        }
-//    }
-    
-    public EntityValue getValue() {
-        return getObjectValue();
-    }
-    
-    private <T> T getObjectValue() {
-        if (value == null) {
-            return null;
+
+    /**
+     * Loads the encoded value if the entity has been read without it.
+     */
+    private void loadValue() {
+        if (loader != null) {
+            value = loader.loadValue(id);
+            loader = null;
         }
-        
-        ByteArrayInputStream bais = null;
-        ObjectInputStream ois = null;
-        bais = new ByteArrayInputStream(value);
-        try {
-            ois = new ObjectInputStream(bais);
-            return (T) ois.readObject();
-        } catch (IOException | ClassNotFoundException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (bais != null) {
-                try {
-                    bais.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(Entity.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(Entity.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+    }
+
+    /**
+     * Returns the value of this entity. The value is decoded on the first
+     * call, and the same instance is returned later, so the changes of the
+     * returned value must be stored by calling setValue.
+     *
+     * If the entity has been read without its value, because the values are
+     * loaded lazily or it's a partial entity, the value is read from the
+     * database by the first call of this method. So it returns the value which
+     * is stored at the time of the first call.
+     *
+     * @return The value of this entity.
+     */
+    public EntityValue getValue() {
+        loadValue();
+        if (objectValue == null && value != null) {
+            objectValue = (codec == null ? BinaryValueCodec.INSTANCE : codec).read(value);
         }
+        return objectValue;
     }
 
     /**
-     * Sets the value of this entity.
+     * Sets the encoded value of this entity, which has been read from the
+     * database.
      *
-     * @param value The new value of this entity.
+     * @param value The encoded value.
+     * @param codec The codec which decodes the value.
      */
-    void setByteValue(byte[] value) {
+    void setByteValue(byte[] value, AValueCodec codec) {
         this.value = value;
+        this.objectValue = null;
+        this.codec = codec;
+        this.loader = null;
     }
-    
-    public void setValue(EntityValue value) {
-        setValue((Object) value);
+
+    /**
+     * Sets the loader of the value of this entity, which has been read from
+     * the database without its value.
+     *
+     * @param loader The loader of the encoded value.
+     * @param codec The codec which decodes the value.
+     */
+    void setValueLoader(AValueLoader loader, AValueCodec codec) {
+        this.value = null;
+        this.objectValue = null;
+        this.codec = codec;
+        this.loader = loader;
     }
-    
-    private void setValue(Object obj) {
-        if (obj == null) {
-            this.value = null;
-            return;
-        }
-        
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream baos = null;
-        try {
-            baos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream(baos);
-            oos.writeObject(obj);
-            oos.flush();
-            this.value = baos.toByteArray();
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(Entity.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            if (baos != null) {
-                try {
-                    baos.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(Entity.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-        }
+
+    /**
+     * Sets the value of this entity. The value is encoded when the entity is
+     * stored.
+     *
+     * @param value The new value of this entity.
+     */
+    public void setValue(EntityValue value) {
+        this.objectValue = value;
+        this.value = null;
+        this.loader = null;
+        valueDirty = true;
     }
     
 //    public void setValue(String value) {
@@ -275,4 +280,108 @@ public final class Entity implements Serializable {
         return attributes;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the decoded value and the loader aren't serializable, only the
+        // encoded value
+        encodeValue(codec == null ? BinaryValueCodec.INSTANCE : codec);
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (storedAttributes == null) {
+            // the earlier versions didn't write the stored state, so every
+            // part of the entity is written by the next put
+            valueDirty = true;
+        }
+    }
+
+    /**
+     * Returns an independent copy of this entity, including its stored state.
+     *
+     * @return The copy of this entity.
+     */
+    Entity copy() {
+        Entity res = new Entity(kind);
+        res.id = id;
+        // the value array and the stored attributes are replaced, never
+        // modified, so they can be shared
+        res.value = value;
+        res.codec = codec;
+        res.loader = loader;
+        if (value == null) {
+            res.objectValue = objectValue;
+        }
+        res.attributes.putAll(attributes);
+        res.storedAttributes = storedAttributes;
+        res.valueDirty = valueDirty;
+        return res;
+    }
+
+    /**
+     * Marks the current state of this entity as the stored one. Called after
+     * the entity has been loaded from, or written to the database.
+     */
+    void markClean() {
+        storedAttributes = new HashMap<String, Object>(attributes);
+        valueDirty = false;
+    }
+
+    /**
+     * Indicates if the stored state of this entity is known, so only its dirty
+     * parts need to be written.
+     *
+     * @return True if the entity has been loaded or stored.
+     */
+    boolean isTracked() {
+        return storedAttributes != null;
+    }
+
+    /**
+     * Returns the names of the attributes which have been changed, added or
+     * removed since the entity has been loaded or stored. Attributes which are
+     * unknown for this entity are never reported.
+     *
+     * @return The names of the dirty attributes.
+     */
+    Set<String> getDirtyAttributes() {
+        Set<String> res = new HashSet<String>();
+        if (storedAttributes == null) {
+            res.addAll(attributes.keySet());
+            return res;
+        }
+
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            Object stored = storedAttributes.get(entry.getKey());
+            if (stored == null ? entry.getValue() != null : !stored.equals(entry.getValue())) {
+                res.add(entry.getKey());
+            }
+        }
+        for (String name : storedAttributes.keySet()) {
+            if (!attributes.containsKey(name)) {
+                res.add(name);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Indicates if the value has been set since the entity has been loaded or
+     * stored.
+     *
+     * @return True if the value is dirty.
+     */
+    boolean isValueDirty() {
+        return valueDirty || storedAttributes == null;
+    }
+
+    /**
+     * Indicates if any part of this entity needs to be written.
+     *
+     * @return True if the value or any of the attributes is dirty.
+     */
+    boolean isDirty() {
+        return isValueDirty() || !getDirtyAttributes().isEmpty();
+    }
+
 }
@@ -0,0 +1,104 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of the loaded entities by their ids.
+ * The cache holds private copies, and it returns copies too, so the callers
+ * can modify the returned entities.
+ *
+ * Every invalidation increments the generation of the cache. A loaded entity
+ * is only cached if no invalidation happened since the load started, so a
+ * reader which loaded an entity before a concurrent write can't put a stale
+ * copy back in to the cache.
+ *
+ * This class is thread-safe.
+ *
+ * @author dipacs
+ */
+final class EntityCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<Long, Entity> entities = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public EntityCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a copy of the cached entity with the given id.
+     *
+     * @param id The id of the entity.
+     *
+     * @return The copy of the cached entity, or null if it isn't cached.
+     */
+    public synchronized Entity get(long id) {
+        Entity res = entities.get(id);
+        if (res == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return res.copy();
+    }
+
+    /**
+     * Returns the current generation of the cache. It must be read before the
+     * entities which will be cached are loaded.
+     *
+     * @return The current generation.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a copy of the given loaded entity, unless the cache has been
+     * invalidated since the given generation.
+     *
+     * @param entity The loaded entity.
+     * @param loadGeneration The generation of the cache when the load started.
+     */
+    public synchronized void put(Entity entity, long loadGeneration) {
+        if (maxSize < 1 || loadGeneration != generation) {
+            return;
+        }
+        entities.put(entity.getId(), entity.copy());
+
+        Iterator<Map.Entry<Long, Entity>> it = entities.entrySet().iterator();
+        while (entities.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the entity with the given id from the cache.
+     *
+     * @param id The id of the entity.
+     */
+    public synchronized void invalidate(long id) {
+        generation++;
+        entities.remove(id);
+    }
+
+    /**
+     * Removes every entity from the cache.
+     */
+    public synchronized void clear() {
+        generation++;
+        entities.clear();
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hitCount, missCount, evictionCount, entities.size());
+    }
+
+}
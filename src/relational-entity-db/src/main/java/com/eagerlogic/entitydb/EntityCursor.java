@@ -0,0 +1,95 @@
+package com.eagerlogic.entitydb;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the results of a query in ascending id order. The entities
+ * are loaded in batches when they are needed, so only one batch is held in
+ * memory at a time, however big the result is.
+ *
+ * The cursor doesn't hold a database connection or lock between the batches.
+ * Every batch continues after the last id of the previous one, so the cursor
+ * sees the entities which are written meanwhile if their ids are greater than
+ * the current position.
+ *
+ * This class is not thread-safe.
+ *
+ * @author dipacs
+ */
+public final class EntityCursor implements Iterator<Entity>, Closeable {
+
+    private final EntityDB entityDB;
+    private final Filter filter;
+    private final String kind;
+    private final int batchSize;
+    private long lastId = -1;
+    private Iterator<Entity> batch = Collections.emptyIterator();
+    private boolean exhausted = false;
+    private boolean closed = false;
+
+    EntityCursor(EntityDB entityDB, Filter filter, String kind, int batchSize) {
+        this.entityDB = entityDB;
+        this.filter = filter;
+        this.kind = kind;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            throw new IllegalStateException("This cursor is closed.");
+        }
+
+        while (!batch.hasNext() && !exhausted) {
+            fetch();
+        }
+        return batch.hasNext();
+    }
+
+    @Override
+    public Entity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.next();
+    }
+
+    private void fetch() {
+        List<Long> ids = entityDB.queryKeyBatch(filter, kind, lastId, batchSize);
+        if (ids.size() < batchSize) {
+            exhausted = true;
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        lastId = ids.get(ids.size() - 1);
+
+        List<Entity> entities = new ArrayList<>();
+        for (Entity e : entityDB.getAll(ids).values()) {
+            if (filter == null || filter.match(e)) {
+                entities.add(e);
+            }
+        }
+        batch = entities.iterator();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * Closes this cursor, and releases the loaded batch.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        batch = Collections.emptyIterator();
+    }
+
+}
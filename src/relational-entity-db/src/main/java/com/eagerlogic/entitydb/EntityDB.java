@@ -1,10 +1,24 @@
 package com.eagerlogic.entitydb;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class represents a database connection. You need one EntityDB instance
@@ -15,17 +29,95 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 public final class EntityDB {
 
     public static synchronized EntityDB connect(String url) throws DatabaseException {
-        return new EntityDB(url);
+        return new EntityDB(url, new EntityDBConfig());
+    }
+
+    /**
+     * Connects to the given database using the given settings.
+     *
+     * @param url The path of the database.
+     * @param config The settings of the database.
+     *
+     * @return The connected database.
+     *
+     * @throws DatabaseException If the database can't be opened or created.
+     */
+    public static synchronized EntityDB connect(String url, EntityDBConfig config) throws DatabaseException {
+        if (config == null) {
+            throw new NullPointerException("The config parameter can not be null.");
+        }
+        return new EntityDB(url, config);
     }
     
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    /**
+     * The reads don't take the read lock in the lock-free read mode. They rely
+     * on the row locks of the database and the atomic writes instead.
+     */
+    private final boolean lockFreeReads;
     private boolean closed = false;
     private boolean newDatabase = false;
     private final RelationalDB rdb;
+    private final EntityCache entityCache;
+    private final QueryCache queryCache;
+    private final int cursorBatchSize;
+    /**
+     * Refreshes the attribute statistics in the background, or null if the
+     * background refresh is disabled.
+     */
+    private final ScheduledExecutorService statisticsRefresher;
+    /**
+     * The ids and the kinds of the entities written by the running
+     * transaction. They are invalidated again when the transaction ends,
+     * because other threads could have cached their committed state
+     * meanwhile, which is outdated by the commit.
+     */
+    private final Set<Long> transactionWrites = new HashSet<>();
+    private final Set<String> transactionKinds = new HashSet<>();
 
-    private EntityDB(String url) throws DatabaseException {
+    private EntityDB(String url, EntityDBConfig config) throws DatabaseException {
         newDatabase = !RelationalDB.isDatabaseExists(url);
-        rdb = RelationalDB.openOrCreateDatabase(url);
+        rdb = RelationalDB.openOrCreateDatabase(url, config);
+        lockFreeReads = config.isLockFreeReads();
+        entityCache = new EntityCache(config.getEntityCacheSize());
+        queryCache = new QueryCache(config.getQueryCacheSize());
+        cursorBatchSize = config.getCursorBatchSize();
+        if (config.getStatisticsRefreshInterval() > 0) {
+            statisticsRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread res = new Thread(r, "EntityDB statistics");
+                    res.setDaemon(true);
+                    return res;
+                }
+
+            });
+            statisticsRefresher.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        refreshStatistics();
+                    } catch (RuntimeException ex) {
+                        if (!closed) {
+                            Logger.getLogger(EntityDB.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }
+
+            }, 0, config.getStatisticsRefreshInterval(), TimeUnit.SECONDS);
+        } else {
+            statisticsRefresher = null;
+        }
+        rdb.setValueLoader(new AValueLoader() {
+
+            @Override
+            byte[] loadValue(long id) {
+                return EntityDB.this.loadValue(id);
+            }
+
+        });
     }
 
     public synchronized DB getDB() {
@@ -43,9 +135,39 @@ public final class EntityDB {
 
         WriteLock lock = readWriteLock.writeLock();
         lock.lock();
+        // a failed put may have written a part of the entity
+        boolean written = true;
+        try {
+            written = rdb.put(entity);
+        } finally {
+            if (written) {
+                invalidate(entity.getId(), entity.getKind());
+            }
+            lock.unlock();
+        }
+    }
+
+    void putAll(Collection<Entity> entities) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (entities == null) {
+            throw new NullPointerException("The entities parameter can not be null.");
+        }
+
+        WriteLock lock = readWriteLock.writeLock();
+        lock.lock();
+        // a failed putAll may have committed some of its chunks
+        boolean written = true;
         try {
-            rdb.put(entity);
+            written = rdb.putAll(entities);
         } finally {
+            if (written) {
+                for (Entity entity : entities) {
+                    invalidate(entity.getId(), entity.getKind());
+                }
+            }
             lock.unlock();
         }
     }
@@ -57,9 +179,14 @@ public final class EntityDB {
 
         WriteLock lock = readWriteLock.writeLock();
         lock.lock();
+        String kind = null;
         try {
+            if (queryCache.isEnabled()) {
+                kind = rdb.getKind(id);
+            }
             rdb.delete(id);
         } finally {
+            invalidate(id, kind);
             lock.unlock();
         }
     }
@@ -69,15 +196,127 @@ public final class EntityDB {
             throw new IllegalStateException("This db is closed.");
         }
 
-        ReadLock lock = readWriteLock.readLock();
-        lock.lock();
+        boolean cacheable = isCacheable();
+        Entity res = cacheable ? entityCache.get(id) : null;
+        if (res != null) {
+            return res;
+        }
+
+        lockRead();
         try {
-            return rdb.get(id);
+            long generation = entityCache.getGeneration();
+            res = rdb.get(id);
+            if (res != null && cacheable) {
+                entityCache.put(res, generation);
+            }
+            return res;
         } finally {
-            lock.unlock();
+            unlockRead();
         }
     }
 
+    Map<Long, Entity> getAll(Collection<Long> ids) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (ids == null) {
+            throw new NullPointerException("The ids parameter can not be null.");
+        }
+
+        boolean cacheable = isCacheable();
+        Map<Long, Entity> res = new LinkedHashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            Entity e = cacheable ? entityCache.get(id) : null;
+            res.put(id, e);
+            if (e == null) {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            lockRead();
+            try {
+                long generation = entityCache.getGeneration();
+                for (Entity e : rdb.getAll(missing).values()) {
+                    if (cacheable) {
+                        entityCache.put(e, generation);
+                    }
+                    res.put(e.getId(), e);
+                }
+            } finally {
+                unlockRead();
+            }
+        }
+
+        // leaves out the ids which aren't found
+        res.values().removeAll(Collections.singleton(null));
+        return res;
+    }
+
+    private byte[] loadValue(long id) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            return rdb.loadValue(id);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Removes the given entity from the entity cache, and the queries of its
+     * kind from the query cache after it has been written.
+     */
+    private void invalidate(long id, String kind) {
+        if (id > -1) {
+            entityCache.invalidate(id);
+        }
+        if (kind != null) {
+            queryCache.invalidate(kind);
+        }
+        if (rdb.isInTransaction()) {
+            if (id > -1) {
+                transactionWrites.add(id);
+            }
+            if (kind != null) {
+                transactionKinds.add(kind);
+            }
+        }
+    }
+
+    /**
+     * Indicates if the caches can be read and filled. They are bypassed while
+     * a transaction runs, because the transaction thread reads the
+     * uncommitted state of its writes, which must not be seen by the other
+     * threads, and which is lost if the transaction is rolled back.
+     */
+    private boolean isCacheable() {
+        return !rdb.isInTransaction();
+    }
+
+    /**
+     * Invalidates the entities written by the transaction if the outermost
+     * transaction has ended.
+     */
+    private void endTransaction() {
+        if (rdb.isInTransaction()) {
+            return;
+        }
+        for (Long id : transactionWrites) {
+            entityCache.invalidate(id);
+        }
+        for (String kind : transactionKinds) {
+            queryCache.invalidate(kind);
+        }
+        transactionWrites.clear();
+        transactionKinds.clear();
+    }
+
     Set<Long> queryKeys(Filter filter) {
         if (closed) {
             throw new IllegalStateException("This db is closed.");
@@ -87,21 +326,49 @@ public final class EntityDB {
             throw new NullPointerException("The filter parameter can not be null.");
         }
 
-        ReadLock lock = readWriteLock.readLock();
-        lock.lock();
+        boolean cacheable = isCacheable();
+        Set<Long> cached = cacheable ? queryCache.get(filter) : null;
+        if (cached != null) {
+            return new TreeSet<>(cached);
+        }
+
+        lockRead();
         try {
-            return rdb.queryKeys(filter);
+            long generation = queryCache.getGeneration(filter.getKind());
+            Set<Long> res = rdb.queryKeys(filter);
+            if (cacheable) {
+                queryCache.put(filter, res, generation);
+            }
+            return res;
         } finally {
-            lock.unlock();
+            unlockRead();
         }
     }
     
     List<Entity> queryAll(String kind) {
-        return rdb.queryAll(kind);
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            return rdb.queryAll(kind);
+        } finally {
+            unlockRead();
+        }
     }
     
     Set<Long> queryAllKeys(String kind) {
-        return rdb.queryAllKeys(kind);
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            return rdb.queryAllKeys(kind);
+        } finally {
+            unlockRead();
+        }
     }
 
     List<Entity> query(Filter filter) {
@@ -113,16 +380,38 @@ public final class EntityDB {
             throw new NullPointerException("The filter parameter can not be null.");
         }
 
-        ReadLock lock = readWriteLock.readLock();
-        lock.lock();
+        boolean cacheable = isCacheable();
+        Set<Long> cached = cacheable ? queryCache.get(filter) : null;
+        if (cached != null) {
+            // the entities are matched again, because they can change after
+            // the ids are read in lock-free mode
+            List<Entity> res = new ArrayList<>();
+            for (Entity e : getAll(cached).values()) {
+                if (filter.match(e)) {
+                    res.add(e);
+                }
+            }
+            return res;
+        }
+
+        lockRead();
         try {
-            return rdb.query(filter);
+            long generation = queryCache.getGeneration(filter.getKind());
+            List<Entity> res = rdb.query(filter);
+            if (cacheable && queryCache.isEnabled()) {
+                Set<Long> ids = new TreeSet<>();
+                for (Entity e : res) {
+                    ids.add(e.getId());
+                }
+                queryCache.put(filter, ids, generation);
+            }
+            return res;
         } finally {
-            lock.unlock();
+            unlockRead();
         }
     }
 
-    Entity querySingleton(Filter filter) {
+    List<Entity> query(Filter filter, QueryOptions options) {
         if (closed) {
             throw new IllegalStateException("This db is closed.");
         }
@@ -131,16 +420,19 @@ public final class EntityDB {
             throw new NullPointerException("The filter parameter can not be null.");
         }
 
-        ReadLock lock = readWriteLock.readLock();
-        lock.lock();
+        if (options == null) {
+            throw new NullPointerException("The options parameter can not be null.");
+        }
+
+        lockRead();
         try {
-            return rdb.querySingleton(filter);
+            return rdb.query(filter, options);
         } finally {
-            lock.unlock();
+            unlockRead();
         }
     }
 
-    Entity queryFirst(Filter filter) {
+    List<Entity> query(Filter filter, Projection projection) {
         if (closed) {
             throw new IllegalStateException("This db is closed.");
         }
@@ -149,15 +441,185 @@ public final class EntityDB {
             throw new NullPointerException("The filter parameter can not be null.");
         }
 
-        ReadLock lock = readWriteLock.readLock();
-        lock.lock();
+        if (projection == null) {
+            throw new NullPointerException("The projection parameter can not be null.");
+        }
+
+        lockRead();
         try {
-            return rdb.queryFirst(filter);
+            return rdb.query(filter, projection);
         } finally {
-            lock.unlock();
+            unlockRead();
+        }
+    }
+
+    Set<Long> queryKeys(Filter filter, QueryOptions options) {
+        Set<Long> res = new LinkedHashSet<>();
+        for (Entity e : query(filter, options)) {
+            res.add(e.getId());
+        }
+        return res;
+    }
+
+    long count(Filter filter) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        boolean cacheable = isCacheable();
+        Set<Long> cached = cacheable ? queryCache.get(filter) : null;
+        if (cached != null) {
+            return cached.size();
+        }
+
+        lockRead();
+        try {
+            if (filter.getFilterItem() == null) {
+                return rdb.countAll(filter.getKind());
+            }
+            return rdb.count(filter);
+        } finally {
+            unlockRead();
         }
     }
 
+    long countAll(String kind) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            return rdb.countAll(kind);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    boolean exists(Filter filter) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        boolean cacheable = isCacheable();
+        Set<Long> cached = cacheable ? queryCache.get(filter) : null;
+        if (cached != null) {
+            return !cached.isEmpty();
+        }
+
+        lockRead();
+        try {
+            return rdb.exists(filter);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    Map<Object, Number> aggregate(Filter filter, String attributeName, EAggregate aggregate, String groupBy) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        if (attributeName == null) {
+            throw new NullPointerException("The attributeName parameter can not be null.");
+        }
+
+        if (aggregate == null) {
+            throw new NullPointerException("The aggregate parameter can not be null.");
+        }
+
+        lockRead();
+        try {
+            return rdb.aggregate(filter, attributeName, aggregate, groupBy);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    EntityCursor iterate(Filter filter) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        return new EntityCursor(this, filter, filter.getKind(), cursorBatchSize);
+    }
+
+    EntityCursor iterateAll(String kind) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        return new EntityCursor(this, null, kind, cursorBatchSize);
+    }
+
+    /**
+     * Returns the next batch of ids for a cursor. If the filter is null, the
+     * ids of every entity of the kind are returned.
+     */
+    List<Long> queryKeyBatch(Filter filter, String kind, long afterId, int size) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            if (filter == null) {
+                return rdb.queryAllKeyBatch(kind, afterId, size);
+            }
+            return rdb.queryKeyBatch(filter, afterId, size);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    Entity querySingleton(Filter filter) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        List<Entity> resList = query(filter);
+        if (resList.size() != 1) {
+            throw new RuntimeException("Singleton result required but there are " + resList.size() + " results.");
+        }
+        return resList.get(0);
+    }
+
+    Entity queryFirst(Filter filter) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (filter == null) {
+            throw new NullPointerException("The filter parameter can not be null.");
+        }
+
+        List<Entity> resList = query(filter);
+        if (resList.isEmpty()) {
+            return null;
+        }
+        return resList.get(0);
+    }
+
     long querySingletonKey(Filter filter) {
         Set<Long> results = queryKeys(filter);
         if (results.size() > 1) {
@@ -183,6 +645,205 @@ public final class EntityDB {
         return null;
     }
 
+    void beginTransaction() {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+        assertWriteLocked();
+
+        rdb.beginTransaction();
+    }
+
+    void commitTransaction() throws TransactionException {
+        assertWriteLocked();
+
+        try {
+            rdb.commitTransaction();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    void rollbackTransaction() {
+        assertWriteLocked();
+
+        try {
+            rdb.rollbackTransaction();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    private void assertWriteLocked() {
+        if (!readWriteLock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("The current thread doesn't hold the write lock.");
+        }
+    }
+
+    /**
+     * Checks the indexes of the database. Reports the missing indexes and the
+     * tables whose indexes are inconsistent with the stored data.
+     *
+     * @return The list of the found problems. Empty if every index is healthy.
+     *
+     * @throws DatabaseException If the check can't be executed.
+     */
+    public List<String> checkIndexes() throws DatabaseException {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            return rdb.checkIndexes();
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Recreates the missing indexes, and rebuilds the inconsistent ones.
+     *
+     * @throws DatabaseException If the repair fails.
+     */
+    public void repairIndexes() throws DatabaseException {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        WriteLock lock = readWriteLock.writeLock();
+        lock.lock();
+        try {
+            rdb.repairIndexes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the stored trigram index of an attribute. The index of an
+     * attribute is kept when the database is opened without it, but it isn't
+     * maintained, and it's rebuilt if it's configured again. Dropping it frees
+     * its space.
+     *
+     * @param kind The kind of the entities.
+     * @param attributeName The name of the attribute.
+     *
+     * @throws DatabaseException If the index can't be dropped.
+     * @throws IllegalStateException If the index is configured for this
+     * database.
+     */
+    public void dropTrigramIndex(String kind, String attributeName) throws DatabaseException {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (kind == null) {
+            throw new NullPointerException("The kind parameter can not be null.");
+        }
+
+        if (attributeName == null) {
+            throw new NullPointerException("The attributeName parameter can not be null.");
+        }
+
+        WriteLock lock = readWriteLock.writeLock();
+        lock.lock();
+        try {
+            rdb.dropTrigramIndex(kind, attributeName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the counters of the prepared statement cache.
+     *
+     * @return The statistics of the statement cache.
+     */
+    public CacheStats getStatementCacheStats() {
+        return rdb.getStatementCacheStats();
+    }
+
+    /**
+     * Returns the counters of the entity cache.
+     *
+     * @return The statistics of the entity cache.
+     */
+    public CacheStats getEntityCacheStats() {
+        return entityCache.getStats();
+    }
+
+    /**
+     * Returns the counters of the query cache.
+     *
+     * @return The statistics of the query cache.
+     */
+    public CacheStats getQueryCacheStats() {
+        return queryCache.getStats();
+    }
+
+    /**
+     * Collects the statistics of the attributes of every kind. The query
+     * planner uses them to decide which items of a filter drive a query, and
+     * whether the whole kind is read instead. This reads every attribute of
+     * the database.
+     */
+    public void refreshStatistics() {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        lockRead();
+        try {
+            for (String kind : rdb.getKinds()) {
+                rdb.refreshStatistics(kind);
+            }
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Collects the statistics of the attributes of the given kind.
+     *
+     * @param kind The kind.
+     */
+    public void refreshStatistics(String kind) {
+        if (closed) {
+            throw new IllegalStateException("This db is closed.");
+        }
+
+        if (kind == null) {
+            throw new NullPointerException("The kind parameter can not be null.");
+        }
+
+        lockRead();
+        try {
+            rdb.refreshStatistics(kind);
+        } finally {
+            unlockRead();
+        }
+    }
+
+    /**
+     * Returns the last collected statistics of the attributes of the given
+     * kind. They are collected by the first filtered query of the kind, and
+     * collected again by the first filtered query after 50 entities and a
+     * tenth of the kind have been written. They aren't updated by the writes
+     * themselves.
+     *
+     * @param kind The kind.
+     *
+     * @return The statistics by attribute name. Empty if they haven't been
+     * collected.
+     */
+    public Map<String, AttributeStatistics> getStatistics(String kind) {
+        if (kind == null) {
+            throw new NullPointerException("The kind parameter can not be null.");
+        }
+        return rdb.getStatistics(kind);
+    }
+
     public boolean isClosed() {
         return closed;
     }
@@ -192,6 +853,16 @@ public final class EntityDB {
      */
     public synchronized void close() {
         closed = true;
+        if (statisticsRefresher != null) {
+            // a running refresh is waited for, because interrupting Derby
+            // can invalidate its connection
+            statisticsRefresher.shutdown();
+            try {
+                statisticsRefresher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
         rdb.close();
     }
 
@@ -199,6 +870,18 @@ public final class EntityDB {
         return newDatabase;
     }
     
+    private void lockRead() {
+        if (!lockFreeReads) {
+            readWriteLock.readLock().lock();
+        }
+    }
+
+    private void unlockRead() {
+        if (!lockFreeReads) {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
     ReadLock getReadLock() {
         return readWriteLock.readLock();
     }
@@ -0,0 +1,328 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The settings of an EntityDB instance. The settings are read when the
+ * database is connected, later changes have no effect on it.
+ *
+ * @author dipacs
+ */
+public final class EntityDBConfig {
+
+    private int statementCacheSize = 100;
+    private int batchCommitSize = 1000;
+    private int readerPoolSize = Runtime.getRuntime().availableProcessors();
+    private boolean lockFreeReads = false;
+    private int entityCacheSize = 0;
+    private int queryCacheSize = 0;
+    private int cursorBatchSize = 100;
+    private AValueCodec valueCodec = BinaryValueCodec.INSTANCE;
+    private boolean lazyValues = false;
+    private int statisticsRefreshInterval = 0;
+    private final Map<String, Set<String>> trigramIndexes = new HashMap<>();
+
+    /**
+     * Creates a new config with the default settings.
+     */
+    public EntityDBConfig() {
+    }
+
+    /**
+     * Returns the maximum number of prepared statements which are cached per
+     * database connection.
+     *
+     * @return The size of the statement cache.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of prepared statements which are cached per
+     * database connection. The least recently used statements are closed when
+     * the cache is full. 0 disables caching. The default is 100.
+     *
+     * @param statementCacheSize The size of the statement cache.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("The statementCacheSize can not be negative.");
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Returns the number of entities which are written in one transaction by
+     * DB.putAll.
+     *
+     * @return The number of entities per commit.
+     */
+    public int getBatchCommitSize() {
+        return batchCommitSize;
+    }
+
+    /**
+     * Sets the number of entities which are written in one transaction by
+     * DB.putAll. Larger chunks need fewer disk syncs, but more memory and log
+     * space. The default is 1000.
+     *
+     * @param batchCommitSize The number of entities per commit.
+     */
+    public void setBatchCommitSize(int batchCommitSize) {
+        if (batchCommitSize < 1) {
+            throw new IllegalArgumentException("The batchCommitSize must be at least 1.");
+        }
+        this.batchCommitSize = batchCommitSize;
+    }
+
+    /**
+     * Returns the maximum number of connections which are used by the read
+     * operations.
+     *
+     * @return The size of the reader connection pool.
+     */
+    public int getReaderPoolSize() {
+        return readerPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of connections which are used by the read
+     * operations. Every concurrent reader thread uses its own connection, and
+     * waits if all of them are in use. The writes use one more, dedicated
+     * connection. The default is the number of available processors.
+     *
+     * @param readerPoolSize The size of the reader connection pool.
+     */
+    public void setReaderPoolSize(int readerPoolSize) {
+        if (readerPoolSize < 1) {
+            throw new IllegalArgumentException("The readerPoolSize must be at least 1.");
+        }
+        this.readerPoolSize = readerPoolSize;
+    }
+
+    /**
+     * Indicates if the read operations run without taking the read lock of
+     * the database.
+     *
+     * @return True if the lock-free read mode is enabled.
+     */
+    public boolean isLockFreeReads() {
+        return lockFreeReads;
+    }
+
+    /**
+     * Enables or disables the lock-free read mode. By default every read
+     * takes the read lock of the database, so a running write or transaction
+     * blocks all the reads.
+     *
+     * In lock-free mode the reads don't take the lock. Every write is applied
+     * in one database transaction, and a read only waits for the rows which
+     * are locked by an uncommitted write, so a long transaction only blocks
+     * the readers of the entities it has changed. The readers never see a
+     * partially applied write of an entity, but a query can see the changes of
+     * a transaction which commits while the query runs. The default is false.
+     *
+     * @param lockFreeReads True to enable the lock-free read mode.
+     */
+    public void setLockFreeReads(boolean lockFreeReads) {
+        this.lockFreeReads = lockFreeReads;
+    }
+
+    /**
+     * Returns the maximum number of entities which are cached in memory.
+     *
+     * @return The size of the entity cache.
+     */
+    public int getEntityCacheSize() {
+        return entityCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of entities which are cached in memory by
+     * DB.get and DB.getAll. The least recently used entities are evicted when
+     * the cache is full. The cached entities are invalidated when they are
+     * put or deleted, and every read returns a copy, so the callers can modify
+     * the returned entities. 0 disables caching. The default is 0.
+     *
+     * @param entityCacheSize The size of the entity cache.
+     */
+    public void setEntityCacheSize(int entityCacheSize) {
+        if (entityCacheSize < 0) {
+            throw new IllegalArgumentException("The entityCacheSize can not be negative.");
+        }
+        this.entityCacheSize = entityCacheSize;
+    }
+
+    /**
+     * Returns the maximum number of query results which are cached in memory.
+     *
+     * @return The size of the query cache.
+     */
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of query results which are cached in memory.
+     * The ids matched by a filter are cached, and they are invalidated when an
+     * entity of the same kind is put or deleted. The least recently used
+     * results are evicted when the cache is full. 0 disables caching. The
+     * default is 0.
+     *
+     * @param queryCacheSize The size of the query cache.
+     */
+    public void setQueryCacheSize(int queryCacheSize) {
+        if (queryCacheSize < 0) {
+            throw new IllegalArgumentException("The queryCacheSize can not be negative.");
+        }
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    /**
+     * Returns the number of entities which are loaded at once by the cursors.
+     *
+     * @return The batch size of the cursors.
+     */
+    public int getCursorBatchSize() {
+        return cursorBatchSize;
+    }
+
+    /**
+     * Sets the number of entities which are loaded at once by the cursors
+     * returned by DB.iterate and DB.iterateAll. The default is 100.
+     *
+     * @param cursorBatchSize The batch size of the cursors.
+     */
+    public void setCursorBatchSize(int cursorBatchSize) {
+        if (cursorBatchSize < 1) {
+            throw new IllegalArgumentException("The cursorBatchSize must be at least 1.");
+        }
+        this.cursorBatchSize = cursorBatchSize;
+    }
+
+    /**
+     * Returns the codec which encodes the values of the entities.
+     *
+     * @return The value codec.
+     */
+    public AValueCodec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the codec which encodes the values of the entities. The values
+     * stored with Java serialization by the earlier versions are always
+     * readable, and they are rewritten with this codec when they are set
+     * again. The default is a BinaryValueCodec.
+     *
+     * @param valueCodec The value codec.
+     */
+    public void setValueCodec(AValueCodec valueCodec) {
+        if (valueCodec == null) {
+            throw new NullPointerException("The valueCodec parameter can not be null.");
+        }
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Indicates if the values of the entities are read when they are first
+     * accessed.
+     *
+     * @return True if the values are loaded lazily.
+     */
+    public boolean isLazyValues() {
+        return lazyValues;
+    }
+
+    /**
+     * Sets if the values of the entities are read when they are first
+     * accessed by Entity.getValue, instead of reading them with the entities.
+     * This saves reading the values which are never used, but the value of an
+     * entity is read at the time of the first access, so it can be newer than
+     * the attributes of the entity, and it's null if the entity has been
+     * deleted meanwhile. The default is false, the values are read with the
+     * entities.
+     *
+     * @param lazyValues True to load the values lazily.
+     */
+    public void setLazyValues(boolean lazyValues) {
+        this.lazyValues = lazyValues;
+    }
+
+    /**
+     * Returns the number of seconds between the refreshes of the attribute
+     * statistics in the background.
+     *
+     * @return The refresh interval in seconds, or 0 if the statistics aren't
+     * refreshed in the background.
+     */
+    public int getStatisticsRefreshInterval() {
+        return statisticsRefreshInterval;
+    }
+
+    /**
+     * Sets the number of seconds between the refreshes of the attribute
+     * statistics of every kind, which are used by the query planner. The
+     * statistics are collected by a background thread, which reads every
+     * attribute of the database, so the interval shouldn't be too short. 0
+     * disables the background refresh, then the statistics of a kind are
+     * collected by its first filtered query, and collected again by the first
+     * filtered query after 50 entities and a tenth of the kind have been
+     * written, or by EntityDB.refreshStatistics. The default is 0.
+     *
+     * @param statisticsRefreshInterval The refresh interval in seconds.
+     */
+    public void setStatisticsRefreshInterval(int statisticsRefreshInterval) {
+        if (statisticsRefreshInterval < 0) {
+            throw new IllegalArgumentException("The statisticsRefreshInterval can not be negative.");
+        }
+        this.statisticsRefreshInterval = statisticsRefreshInterval;
+    }
+
+    /**
+     * Returns the string attributes which have a trigram index.
+     *
+     * @return The names of the indexed attributes by kind.
+     */
+    public Map<String, Set<String>> getTrigramIndexes() {
+        Map<String, Set<String>> res = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : trigramIndexes.entrySet()) {
+            res.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(res);
+    }
+
+    /**
+     * Adds a trigram index to a string attribute of a kind. The CONTAINS
+     * searches of the attribute look up the candidates in the index, instead
+     * of scanning every value of the attribute. The index is maintained by
+     * every write, and it takes much more space than the values, so it should
+     * only be added to the attributes which are searched. The index is built
+     * when the database is opened with it the first time. If the database is
+     * opened without it, the index is kept but it isn't maintained, and it's
+     * rebuilt when it's added again. EntityDB.dropTrigramIndex deletes it.
+     *
+     * @param kind The kind of the entities.
+     * @param attributeName The name of the string attribute.
+     */
+    public void addTrigramIndex(String kind, String attributeName) {
+        if (kind == null) {
+            throw new NullPointerException("The kind parameter can not be null.");
+        }
+        if (attributeName == null) {
+            throw new NullPointerException("The attributeName parameter can not be null.");
+        }
+        Set<String> names = trigramIndexes.get(kind);
+        if (names == null) {
+            names = new HashSet<>();
+            trigramIndexes.put(kind, names);
+        }
+        names.add(attributeName);
+    }
+
+}
@@ -1,5 +1,9 @@
 package com.eagerlogic.entitydb;
 
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
 /**
  *
  * @author dipacs
@@ -8,6 +12,7 @@ public final class Filter {
 
     private final String kind;
     private final AFilterItem filterItem;
+    private final APredicate predicate;
 
     public Filter(String kind, AFilterItem filterItem) {
         if (kind == null) {
@@ -16,6 +21,7 @@ public final class Filter {
         this.kind = kind;
 
         this.filterItem = filterItem;
+        this.predicate = filterItem == null ? null : filterItem.compile();
     }
 
     public String getKind() {
@@ -26,15 +32,23 @@ public final class Filter {
         return filterItem;
     }
 
-    String getCondition() {
-        String res = "(entityKind='" + kind.replace("'", "''") + "'";
+    /**
+     * Indicates if the SQL condition of this filter matches exactly the
+     * entities which are matched by this filter. A filter without an item
+     * selects the Entity rows of the kind, so it's exact.
+     */
+    boolean isExact() {
+        return filterItem == null || filterItem.isExact();
+    }
+
+    /**
+     * Returns the names of the attributes which are read by the match method.
+     */
+    Set<String> getAttributeNames() {
+        Set<String> res = new HashSet<>();
         if (filterItem != null) {
-            String cond = filterItem.getCondition();
-            if (cond != null) {
-                res += " AND " + cond;
-            }
+            filterItem.addAttributeNames(res);
         }
-        res += ")";
         return res;
     }
 
@@ -42,10 +56,27 @@ public final class Filter {
         if (!kind.equals(entity.getKind())) {
             return false;
         }
-        if (filterItem == null) {
+        if (predicate == null) {
             return true;
         }
-        return filterItem.match(entity);
+        return predicate.match(entity);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * kind.hashCode() + Objects.hashCode(filterItem);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Filter)) {
+            return false;
+        }
+        Filter other = (Filter) obj;
+        return kind.equals(other.kind) && Objects.equals(filterItem, other.filterItem);
     }
 
 }
@@ -1,7 +1,13 @@
 package com.eagerlogic.entitydb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -17,6 +23,11 @@ public final class FilterGroupItem extends AFilterItem {
 
     private final EOperator operator;
     private final List<AFilterItem> filters;
+    /**
+     * The child filters without their order and duplicates, which don't
+     * change the result of the group.
+     */
+    private final Set<AFilterItem> filterSet;
 
     public FilterGroupItem(EOperator operator, AFilterItem filter1, AFilterItem filter2, AFilterItem... otherFilters) {
         if (operator == null) {
@@ -40,6 +51,7 @@ public final class FilterGroupItem extends AFilterItem {
                 this.filters.add(filter);
             }
         }
+        this.filterSet = new HashSet<>(filters);
     }
 
     public EOperator getOperator() {
@@ -50,56 +62,125 @@ public final class FilterGroupItem extends AFilterItem {
         return filters;
     }
 
+    /**
+     * Returns the condition of an OR group of items which can be evaluated on
+     * a single attribute row. The other groups can't be evaluated on one row,
+     * they are compiled by the QueryPlanner.
+     */
     @Override
-    String getCondition() {
-        String op = "OR";
+    String getCondition(List<Object> params) {
+        if (operator != EOperator.OR) {
+            return null;
+        }
 
-        String res = null;
+        List<Object> childParams = new ArrayList<>();
+        String res = "(";
         boolean isFirst = true;
         for (AFilterItem filter : filters) {
-            String cond = filter.getCondition();
+            String cond = filter.getCondition(childParams);
             if (cond == null) {
-                continue;
+                return null;
             }
 
             if (isFirst) {
-                res = "(";
                 isFirst = false;
             } else {
-                res += " " + op + " ";
+                res += " OR ";
             }
-
             res += cond;
         }
+        res += ")";
 
-        if (!isFirst) {
-            res += ")";
-        }
-
+        params.addAll(childParams);
         return res;
     }
 
     @Override
-    boolean match(Entity entity) {
-        boolean res = true;
-        boolean isFirst = true;
+    boolean isExact() {
+        for (AFilterItem filter : filters) {
+            if (!filter.isExact()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+        double res = operator == EOperator.AND ? 1.0 : 0.0;
         for (AFilterItem filter : filters) {
-            boolean filterRes = filter.match(entity);
+            double selectivity = filter.estimateSelectivity(statistics);
             if (operator == EOperator.AND) {
-                if (!filterRes) {
-                    return false;
-                }
+                res = Math.min(res, selectivity);
             } else {
-                if (isFirst) {
-                    isFirst = false;
-                    res = filterRes;
-                } else {
-                    res |= filterRes;
+                res += selectivity;
+            }
+        }
+        return Math.min(res, 1.0);
+    }
+
+    @Override
+    void addAttributeNames(Set<String> names) {
+        for (AFilterItem filter : filters) {
+            filter.addAttributeNames(names);
+        }
+    }
+
+    /**
+     * Compiles the children in to a flat array. The children of the nested
+     * groups of the same operator are merged in to it, and an AND group checks
+     * its most selective children first, so it fails fast.
+     */
+    @Override
+    APredicate compile() {
+        List<AFilterItem> children = new ArrayList<>();
+        addChildren(this, children);
+        if (operator == EOperator.AND) {
+            Collections.sort(children, new Comparator<AFilterItem>() {
+
+                @Override
+                public int compare(AFilterItem o1, AFilterItem o2) {
+                    return Double.compare(o1.estimateSelectivity(null), o2.estimateSelectivity(null));
                 }
+
+            });
+        }
+
+        APredicate[] predicates = new APredicate[children.size()];
+        for (int i = 0; i < predicates.length; i++) {
+            predicates[i] = children.get(i).compile();
+        }
+        if (operator == EOperator.AND) {
+            return new APredicate.And(predicates);
+        }
+        return new APredicate.Or(predicates);
+    }
+
+    private void addChildren(FilterGroupItem group, List<AFilterItem> res) {
+        for (AFilterItem filter : group.filters) {
+            if (filter instanceof FilterGroupItem && ((FilterGroupItem) filter).operator == operator) {
+                addChildren((FilterGroupItem) filter, res);
+            } else {
+                res.add(filter);
             }
         }
-        
-        return res;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * operator.hashCode() + filterSet.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FilterGroupItem)) {
+            return false;
+        }
+        FilterGroupItem other = (FilterGroupItem) obj;
+        return operator == other.operator && filterSet.equals(other.filterSet);
     }
 
 }
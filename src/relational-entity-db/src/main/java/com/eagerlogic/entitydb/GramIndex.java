@@ -0,0 +1,345 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The trigram index of the string attributes which are searched by CONTAINS.
+ * The distinct case folded three character substrings of the values of the
+ * indexed attributes are stored in the AttributeGram table, so the candidates
+ * of a CONTAINS search are found by an index lookup of the grams of the
+ * searched text, instead of scanning every value.
+ *
+ * The GramAttribute table lists the attributes whose grams are stored. An
+ * attribute is backfilled when it's added to the config. When the database is
+ * opened without it, its grams are kept but they aren't maintained anymore, so
+ * the attribute is marked stale, and its grams are rebuilt if it's added to
+ * the config again. The grams of an attribute are only deleted by drop.
+ *
+ * @author dipacs
+ */
+final class GramIndex {
+
+    /**
+     * The length of the grams.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * The number of the grams which are looked up by a search. Every entity
+     * which contains the text has all of its grams, so a subset of them is
+     * enough to narrow the candidates, and the searches use one statement.
+     */
+    private static final int QUERY_GRAMS = 8;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String INSERT_SQL = "INSERT INTO AttributeGram (entityId, entityKind, name, gram)"
+            + " VALUES (?, ?, ?, ?)";
+
+    private final Map<String, Set<String>> attributes;
+
+    /**
+     * Creates the index of the given attributes.
+     *
+     * @param attributes The names of the indexed attributes by kind.
+     */
+    GramIndex(Map<String, Set<String>> attributes) {
+        Map<String, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : attributes.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        }
+        this.attributes = copy;
+    }
+
+    /**
+     * Indicates if the given attribute is indexed.
+     */
+    boolean isIndexed(String kind, String name) {
+        Set<String> names = attributes.get(kind);
+        return names != null && names.contains(name);
+    }
+
+    /**
+     * Returns the distinct grams of the given text.
+     */
+    static Set<String> getGrams(String text) {
+        String lower = Schema.foldCase(text);
+        Set<String> res = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= lower.length(); i++) {
+            res.add(lower.substring(i, i + GRAM_LENGTH));
+        }
+        return res;
+    }
+
+    /**
+     * Adds the grams of a new attribute of a new entity.
+     */
+    void insert(StatementCache writer, long entityId, String kind, String name, Object value) throws SQLException {
+        if (!(value instanceof String) || !isIndexed(kind, name)) {
+            return;
+        }
+
+        PreparedStatement ps = writer.prepare(INSERT_SQL);
+        try {
+            for (String gram : getGrams((String) value)) {
+                ps.setLong(1, entityId);
+                ps.setString(2, kind);
+                ps.setString(3, name);
+                ps.setString(4, gram);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } finally {
+            ps.clearBatch();
+            writer.release(ps);
+        }
+    }
+
+    /**
+     * Replaces the grams of an attribute which has been inserted, updated or
+     * removed.
+     */
+    void update(StatementCache writer, long entityId, String kind, String name, Object value) throws SQLException {
+        if (!isIndexed(kind, name)) {
+            return;
+        }
+
+        PreparedStatement ps = writer.prepare("DELETE FROM AttributeGram WHERE entityId=? AND name=?");
+        try {
+            ps.setLong(1, entityId);
+            ps.setString(2, name);
+            ps.execute();
+        } finally {
+            writer.release(ps);
+        }
+        insert(writer, entityId, kind, name, value);
+    }
+
+    /**
+     * Removes the grams of a deleted entity.
+     */
+    void delete(StatementCache writer, long entityId) throws SQLException {
+        if (attributes.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement ps = writer.prepare("DELETE FROM AttributeGram WHERE entityId=?");
+        try {
+            ps.setLong(1, entityId);
+            ps.execute();
+        } finally {
+            writer.release(ps);
+        }
+    }
+
+    /**
+     * Returns the query of the candidate ids of a CONTAINS search, whose
+     * entities have every looked up gram of the text. The candidates are
+     * verified by the given condition on their attribute rows.
+     *
+     * @param kind The kind.
+     * @param name The name of the attribute.
+     * @param text The searched text, at least GRAM_LENGTH long.
+     * @param condition The condition of the search on the attribute rows.
+     * @param conditionParams The parameters of the condition.
+     * @param alias The unique alias prefix of the query.
+     * @param params The list of the statement parameters.
+     *
+     * @return The query which selects the entityId column.
+     */
+    String getSearchQuery(String kind, String name, String text, String condition, List<Object> conditionParams,
+            String alias, List<Object> params) {
+        List<String> grams = new ArrayList<>(getGrams(text));
+        List<String> selected = new ArrayList<>();
+        for (int i = 0; i < Math.min(QUERY_GRAMS, grams.size()); i++) {
+            // the grams are picked evenly from the text
+            selected.add(grams.get(i * grams.size() / Math.min(QUERY_GRAMS, grams.size())));
+        }
+
+        String res = "SELECT " + alias + ".entityId FROM (SELECT entityId FROM AttributeGram"
+                + " WHERE entityKind=? AND name=? AND gram IN (";
+        params.add(kind);
+        params.add(name);
+        for (int i = 0; i < QUERY_GRAMS; i++) {
+            if (i > 0) {
+                res += ", ";
+            }
+            res += "?";
+            // the padding repeats the last gram, which doesn't change the
+            // result
+            params.add(selected.get(Math.min(i, selected.size() - 1)));
+        }
+        res += ") GROUP BY entityId HAVING COUNT(*)=?) " + alias + " WHERE EXISTS (SELECT 1 FROM Attribute v" + alias
+                + " WHERE v" + alias + ".entityId=" + alias + ".entityId AND " + condition + ")";
+        params.add(selected.size());
+        params.addAll(conditionParams);
+        return res;
+    }
+
+    /**
+     * Brings the stored grams in sync with the indexed attributes. Backfills
+     * the grams of the newly indexed attributes, rebuilds the grams of the
+     * stale ones, and marks the attributes which aren't indexed anymore stale.
+     *
+     * @param conn The connection to the database, in auto-commit mode.
+     *
+     * @throws SQLException If the sync fails.
+     */
+    void sync(Connection conn) throws SQLException {
+        // the stale flags of the stored attributes by kind and name
+        Map<String, Map<String, Boolean>> stored = new HashMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = conn.prepareStatement("SELECT entityKind, name, stale FROM GramAttribute");
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Map<String, Boolean> names = stored.get(rs.getString(1));
+                if (names == null) {
+                    names = new HashMap<>();
+                    stored.put(rs.getString(1), names);
+                }
+                names.put(rs.getString(2), rs.getInt(3) != 0);
+            }
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (ps != null) {
+                ps.close();
+            }
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            for (Map.Entry<String, Map<String, Boolean>> entry : stored.entrySet()) {
+                for (Map.Entry<String, Boolean> name : entry.getValue().entrySet()) {
+                    if (!isIndexed(entry.getKey(), name.getKey()) && !name.getValue()) {
+                        Logger.getLogger(GramIndex.class.getName()).log(Level.WARNING,
+                                "The trigram index of {0}.{1} isn''t configured, so it isn''t maintained anymore. It''s"
+                                + " rebuilt when it''s configured again, use dropTrigramIndex to delete it.",
+                                new Object[]{entry.getKey(), name.getKey()});
+                        execute(conn, "UPDATE GramAttribute SET stale=1 WHERE entityKind=? AND name=?",
+                                entry.getKey(), name.getKey());
+                        conn.commit();
+                    }
+                }
+            }
+            for (Map.Entry<String, Set<String>> entry : attributes.entrySet()) {
+                Map<String, Boolean> done = stored.get(entry.getKey());
+                for (String name : entry.getValue()) {
+                    if (done == null || !done.containsKey(name)) {
+                        backfill(conn, entry.getKey(), name);
+                        execute(conn, "INSERT INTO GramAttribute (entityKind, name) VALUES (?, ?)", entry.getKey(), name);
+                        conn.commit();
+                    } else if (done.get(name)) {
+                        execute(conn, "DELETE FROM AttributeGram WHERE entityKind=? AND name=?", entry.getKey(), name);
+                        backfill(conn, entry.getKey(), name);
+                        execute(conn, "UPDATE GramAttribute SET stale=0 WHERE entityKind=? AND name=?", entry.getKey(), name);
+                        conn.commit();
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Deletes the grams of an attribute which isn't indexed anymore.
+     *
+     * @param conn The connection to the database, in auto-commit mode.
+     * @param kind The kind.
+     * @param name The name of the attribute.
+     *
+     * @throws SQLException If the grams can't be deleted.
+     */
+    void drop(Connection conn, String kind, String name) throws SQLException {
+        if (isIndexed(kind, name)) {
+            throw new IllegalStateException("The trigram index of " + kind + "." + name
+                    + " is configured, it can't be dropped.");
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            Logger.getLogger(GramIndex.class.getName()).log(Level.INFO,
+                    "Dropping the trigram index of {0}.{1}.", new Object[]{kind, name});
+            execute(conn, "DELETE FROM AttributeGram WHERE entityKind=? AND name=?", kind, name);
+            execute(conn, "DELETE FROM GramAttribute WHERE entityKind=? AND name=?", kind, name);
+            conn.commit();
+        } catch (SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static void backfill(Connection conn, String kind, String name) throws SQLException {
+        Logger.getLogger(GramIndex.class.getName()).log(Level.INFO,
+                "Building the trigram index of {0}.{1}.", new Object[]{kind, name});
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        ResultSet rs = null;
+        try {
+            select = conn.prepareStatement("SELECT entityId, value FROM Attribute WHERE entityKind=? AND name=? AND type="
+                    + RelationalDB.AttributeDTO.EType.STRING.getType());
+            select.setString(1, kind);
+            select.setString(2, name);
+            insert = conn.prepareStatement(INSERT_SQL);
+            rs = select.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                for (String gram : getGrams(rs.getString(2))) {
+                    insert.setLong(1, rs.getLong(1));
+                    insert.setString(2, kind);
+                    insert.setString(3, name);
+                    insert.setString(4, gram);
+                    insert.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            insert.executeBatch();
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (select != null) {
+                select.close();
+            }
+            if (insert != null) {
+                insert.close();
+            }
+        }
+    }
+
+    private static void execute(Connection conn, String sql, String kind, String name) throws SQLException {
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            ps.setString(1, kind);
+            ps.setString(2, name);
+            ps.execute();
+        } finally {
+            ps.close();
+        }
+    }
+
+}
@@ -1,5 +1,12 @@
 package com.eagerlogic.entitydb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  *
  * @author dipacs
@@ -11,12 +18,17 @@ public final class LongFilterItem extends AFilterItem {
         SMALLER,
         GREATER,
         EQUALS,
-        NOT_EQUALS
+        NOT_EQUALS,
+        IN
     }
 
     private final String attributeName;
     private final EOperator operator;
     private final long referenceValue;
+    /**
+     * The sorted distinct values of the IN operator.
+     */
+    private final long[] referenceValues;
 
     public LongFilterItem(String attributeName, EOperator operator, long referenceValue) {
         if (attributeName == null) {
@@ -25,9 +37,48 @@ public final class LongFilterItem extends AFilterItem {
         if (operator == null) {
             throw new NullPointerException("The operator parameter can not be null.");
         }
+        if (operator == EOperator.IN) {
+            throw new IllegalArgumentException("The IN operator needs a collection of reference values.");
+        }
         this.attributeName = attributeName;
         this.operator = operator;
         this.referenceValue = referenceValue;
+        this.referenceValues = null;
+    }
+
+    /**
+     * Creates an IN filter item, which matches the entities whose attribute
+     * is one of the given values.
+     *
+     * @param attributeName The name of the attribute.
+     * @param referenceValues The values.
+     */
+    public LongFilterItem(String attributeName, Collection<Long> referenceValues) {
+        if (attributeName == null) {
+            throw new NullPointerException("The attributeName parameter can not be null.");
+        }
+        if (referenceValues == null) {
+            throw new NullPointerException("The referenceValues parameter can not be null.");
+        }
+        long[] values = new long[referenceValues.size()];
+        int count = 0;
+        for (Long value : referenceValues) {
+            if (value == null) {
+                throw new NullPointerException("The referenceValues can not contain null. Use NullFilterItem instead.");
+            }
+            values[count++] = value;
+        }
+        Arrays.sort(values);
+        int distinct = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[distinct - 1]) {
+                values[distinct++] = values[i];
+            }
+        }
+        this.attributeName = attributeName;
+        this.operator = EOperator.IN;
+        this.referenceValue = 0;
+        this.referenceValues = Arrays.copyOf(values, distinct);
     }
 
     public String getAttributeName() {
@@ -42,48 +93,153 @@ public final class LongFilterItem extends AFilterItem {
         return referenceValue;
     }
 
+    /**
+     * Returns the values of the IN operator.
+     *
+     * @return The sorted distinct values, or null if the operator isn't IN.
+     */
+    public long[] getReferenceValues() {
+        return referenceValues == null ? null : referenceValues.clone();
+    }
+
     @Override
-    String getCondition() {
+    String getCondition(List<Object> params) {
         String res = "(type=" + RelationalDB.AttributeDTO.EType.LONG.getType()
-                + " AND name='" + attributeName.replace("'", "''")
-                + "' AND value";
+                + " AND name=?";
+        params.add(attributeName);
+        if (operator == EOperator.IN) {
+            if (referenceValues.length > MAX_IN_VALUES) {
+                return res + ")";
+            }
+            return res + " AND " + getInCondition("longValue", getReferenceValueList(), params) + ")";
+        }
 
+        res += " AND longValue";
         if (operator == EOperator.EQUALS) {
             res += "=";
         } else if (operator == EOperator.GREATER) {
-            res += " IS NOT NULL )";
-            return res;
+            res += ">";
         } else if (operator == EOperator.SMALLER) {
-            res += " IS NOT NULL )";
-            return res;
+            res += "<";
         } else if (operator == EOperator.NOT_EQUALS) {
             res += "<>";
         } else {
             throw new RuntimeException("Unknown LongFilterItem operator: " + operator.name());
         }
 
-        res += "'" + referenceValue + "')";
+        res += "?)";
+        params.add(referenceValue);
+        return res;
+    }
+
+    @Override
+    String getLookupQuery(String kind, String alias, List<Object> params) {
+        if (operator != EOperator.IN || referenceValues.length == 0 || referenceValues.length > MAX_IN_VALUES) {
+            return null;
+        }
+
+        String res = "SELECT " + alias + ".entityId FROM " + getValuesTable("BIGINT", getReferenceValueList(), params)
+                + " v" + alias + ", Attribute " + alias + " WHERE " + alias + ".entityKind=? AND " + alias + ".name=? AND "
+                + alias + ".type=" + RelationalDB.AttributeDTO.EType.LONG.getType()
+                + " AND " + alias + ".longValue=v" + alias + ".x";
+        params.add(kind);
+        params.add(attributeName);
         return res;
     }
 
+    private List<Long> getReferenceValueList() {
+        List<Long> res = new ArrayList<>(referenceValues.length);
+        for (long value : referenceValues) {
+            res.add(value);
+        }
+        return res;
+    }
+
+    @Override
+    boolean isExact() {
+        return operator != EOperator.IN || referenceValues.length <= MAX_IN_VALUES;
+    }
+
+    @Override
+    void addAttributeNames(Set<String> names) {
+        names.add(attributeName);
+    }
+
     @Override
-    boolean match(Entity entity) {
-        Object attrO = entity.getAttribute(attributeName);
-        if (attrO instanceof Long) {
-            long value = (Long) attrO;
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+        if (statistics == null) {
             if (operator == EOperator.EQUALS) {
-                return value == referenceValue;
-            } else if (operator == EOperator.GREATER) {
-                return value > referenceValue;
-            } else if (operator == EOperator.SMALLER) {
-                return value < referenceValue;
+                return 0.01;
+            } else if (operator == EOperator.IN) {
+                return Math.min(1.0, referenceValues.length * 0.01);
             } else if (operator == EOperator.NOT_EQUALS) {
-                return value != referenceValue;
-            } else {
-                throw new RuntimeException("Unknown LongFilterItem operator: " + operator.name());
+                return 0.9;
             }
+            return 0.3;
+        }
+
+        AttributeStatistics stats = statistics.get(attributeName);
+        if (stats == null || stats.getLongCount() == 0) {
+            return 0;
+        }
+        double equal = (double) stats.getLongCount() / Math.max(1, stats.getLongDistinctCount());
+        if (operator == EOperator.EQUALS) {
+            return stats.getRatio(stats.estimateLongRange(referenceValue, referenceValue) > 0 ? equal : 0);
+        } else if (operator == EOperator.IN) {
+            double count = 0;
+            for (long value : referenceValues) {
+                if (stats.estimateLongRange(value, value) > 0) {
+                    count += equal;
+                }
+            }
+            return stats.getRatio(count);
+        } else if (operator == EOperator.NOT_EQUALS) {
+            return stats.getRatio(stats.getLongCount() - equal);
+        } else if (operator == EOperator.GREATER) {
+            return referenceValue == Long.MAX_VALUE ? 0
+                    : stats.getRatio(stats.estimateLongRange(referenceValue + 1, Long.MAX_VALUE));
+        }
+        return referenceValue == Long.MIN_VALUE ? 0
+                : stats.getRatio(stats.estimateLongRange(Long.MIN_VALUE, referenceValue - 1));
+    }
+
+    @Override
+    APredicate compile() {
+        if (operator == EOperator.EQUALS) {
+            return new APredicate.LongEquals(attributeName, referenceValue);
+        } else if (operator == EOperator.GREATER) {
+            return new APredicate.LongGreater(attributeName, referenceValue);
+        } else if (operator == EOperator.SMALLER) {
+            return new APredicate.LongSmaller(attributeName, referenceValue);
+        } else if (operator == EOperator.NOT_EQUALS) {
+            return new APredicate.LongNotEquals(attributeName, referenceValue);
+        } else if (operator == EOperator.IN) {
+            return new APredicate.LongIn(attributeName, referenceValues);
+        } else {
+            throw new RuntimeException("Unknown LongFilterItem operator: " + operator.name());
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = attributeName.hashCode();
+        hash = 31 * hash + operator.hashCode();
+        hash = 31 * hash + (int) (referenceValue ^ (referenceValue >>> 32));
+        hash = 31 * hash + Arrays.hashCode(referenceValues);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof LongFilterItem)) {
+            return false;
         }
-        return false;
+        LongFilterItem other = (LongFilterItem) obj;
+        return attributeName.equals(other.attributeName) && operator == other.operator
+                && referenceValue == other.referenceValue && Arrays.equals(referenceValues, other.referenceValues);
     }
 
 }
@@ -1,5 +1,10 @@
 package com.eagerlogic.entitydb;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
 /**
  *
  * @author dipacs
@@ -30,14 +35,45 @@ public final class NullFilterItem extends AFilterItem {
 	}
 
     @Override
-    String getCondition() {
-        return "(name='" + attributeName.replace("'", "''") 
-                + "' AND value IS NOT NULL)";
+    String getCondition(List<Object> params) {
+        params.add(attributeName);
+        return "(name=? AND value IS NOT NULL)";
+    }
+
+    @Override
+    void addAttributeNames(Set<String> names) {
+        names.add(attributeName);
+    }
+
+    @Override
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+        if (statistics == null) {
+            return 0.9;
+        }
+        AttributeStatistics stats = statistics.get(attributeName);
+        return stats == null ? 0 : stats.getRatio(stats.getCount());
+    }
+
+    @Override
+    APredicate compile() {
+        return new APredicate.NotNull(attributeName);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * attributeName.hashCode() + Objects.hashCode(operator);
     }
 
     @Override
-    boolean match(Entity entity) {
-        return entity.getAttribute(attributeName) != null;
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NullFilterItem)) {
+            return false;
+        }
+        NullFilterItem other = (NullFilterItem) obj;
+        return attributeName.equals(other.attributeName) && operator == other.operator;
     }
 	
 }
@@ -0,0 +1,84 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Selects the parts of the entities which are read by a query. The entities
+ * returned by a projection query are partial: they only have the selected
+ * attributes. A partial entity can be modified and stored, and the attributes
+ * which haven't been read are left untouched.
+ *
+ * If the value isn't selected, it's read from the database when it's first
+ * accessed.
+ *
+ * @author dipacs
+ */
+public final class Projection {
+
+    private final boolean value;
+    private final Set<String> attributeNames;
+
+    /**
+     * Creates a new projection.
+     *
+     * @param value True if the values of the entities are read with them.
+     * @param attributeNames The names of the attributes which are read.
+     */
+    public Projection(boolean value, String... attributeNames) {
+        this(value, attributeNames == null ? Collections.<String>emptySet() : Arrays.asList(attributeNames));
+    }
+
+    /**
+     * Creates a new projection.
+     *
+     * @param value True if the values of the entities are read with them.
+     * @param attributeNames The names of the attributes which are read.
+     */
+    public Projection(boolean value, Collection<String> attributeNames) {
+        if (attributeNames == null) {
+            throw new NullPointerException("The attributeNames parameter can not be null.");
+        }
+        for (String name : attributeNames) {
+            if (name == null) {
+                throw new NullPointerException("The attribute name can not be null.");
+            }
+        }
+        this.value = value;
+        this.attributeNames = Collections.unmodifiableSet(new LinkedHashSet<>(attributeNames));
+    }
+
+    /**
+     * Indicates if the values of the entities are read with them.
+     *
+     * @return True if the value is selected.
+     */
+    public boolean isValue() {
+        return value;
+    }
+
+    /**
+     * Returns the names of the selected attributes.
+     *
+     * @return The names of the selected attributes.
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * Returns a projection which selects the given attributes too.
+     */
+    Projection with(Set<String> names) {
+        if (attributeNames.containsAll(names)) {
+            return this;
+        }
+        Set<String> all = new LinkedHashSet<>(attributeNames);
+        all.addAll(names);
+        return new Projection(value, all);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A bounded, least recently used cache of the ids matched by the queries. The
+ * filters are the keys, so they are compared by value. Writing an entity
+ * invalidates every cached query of its kind.
+ *
+ * Every kind has its own generation, which is incremented when the kind is
+ * invalidated. A query result is only cached if its kind hasn't been
+ * invalidated since the query started.
+ *
+ * This class is thread-safe.
+ *
+ * @author dipacs
+ */
+final class QueryCache {
+
+    private final int maxSize;
+    private final LinkedHashMap<Filter, Set<Long>> results = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Filter>> filtersByKind = new HashMap<>();
+    private final Map<String, Long> generations = new HashMap<>();
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public QueryCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns the cached ids matched by the given filter.
+     *
+     * @param filter The filter of the query.
+     *
+     * @return The sorted, unmodifiable set of the matching ids, or null if the
+     * query isn't cached.
+     */
+    public synchronized Set<Long> get(Filter filter) {
+        Set<Long> res = results.get(filter);
+        if (res == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return res;
+    }
+
+    /**
+     * Returns the current generation of the given kind. It must be read before
+     * the query which will be cached is executed.
+     *
+     * @param kind The kind of the query.
+     *
+     * @return The current generation of the kind.
+     */
+    public synchronized long getGeneration(String kind) {
+        Long res = generations.get(kind);
+        return res == null ? 0 : res;
+    }
+
+    /**
+     * Caches the ids matched by the given filter, unless its kind has been
+     * invalidated since the given generation.
+     *
+     * @param filter The filter of the query.
+     * @param ids The matching ids.
+     * @param queryGeneration The generation of the kind when the query started.
+     */
+    public synchronized void put(Filter filter, Set<Long> ids, long queryGeneration) {
+        if (maxSize < 1 || queryGeneration != getGeneration(filter.getKind())) {
+            return;
+        }
+        results.put(filter, Collections.unmodifiableSet(new TreeSet<>(ids)));
+        Set<Filter> filters = filtersByKind.get(filter.getKind());
+        if (filters == null) {
+            filters = new HashSet<>();
+            filtersByKind.put(filter.getKind(), filters);
+        }
+        filters.add(filter);
+
+        Iterator<Map.Entry<Filter, Set<Long>>> it = results.entrySet().iterator();
+        while (results.size() > maxSize && it.hasNext()) {
+            Filter evicted = it.next().getKey();
+            it.remove();
+            filtersByKind.get(evicted.getKind()).remove(evicted);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes every cached query of the given kind.
+     *
+     * @param kind The kind of the written entity.
+     */
+    public synchronized void invalidate(String kind) {
+        generations.put(kind, getGeneration(kind) + 1);
+        Set<Filter> filters = filtersByKind.remove(kind);
+        if (filters != null) {
+            for (Filter filter : filters) {
+                results.remove(filter);
+            }
+        }
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hitCount, missCount, evictionCount, results.size());
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.eagerlogic.entitydb;
+
+/**
+ * The options of a query: the order of the results, the maximum number of the
+ * results, and the position after which the results start.
+ *
+ * The results are ordered by their ids by default, or by the value of an
+ * attribute, and then by their ids. The next page of an ordered query can be
+ * fetched by setting the last entity of the previous page as the position.
+ * The entities which don't have the order attribute with the given type are
+ * not returned by an ordered query. The strings are ordered by their first
+ * 1000 characters, so the longer strings with the same prefix are ordered by
+ * their ids.
+ *
+ * @author dipacs
+ */
+public final class QueryOptions {
+
+    public static enum EOrderType {
+
+        LONG,
+        STRING
+    }
+
+    private int limit = 0;
+    private String orderBy = null;
+    private EOrderType orderType = null;
+    private boolean descending = false;
+    private long afterId = -1;
+    private Object afterValue = null;
+
+    /**
+     * Creates new options, which return every result in ascending id order.
+     */
+    public QueryOptions() {
+    }
+
+    /**
+     * Returns the maximum number of the results.
+     *
+     * @return The maximum number of the results, or 0 if it's unlimited.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of the results. 0 means unlimited, which is the
+     * default.
+     *
+     * @param limit The maximum number of the results.
+     */
+    public void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit can not be negative.");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the name of the attribute which orders the results.
+     *
+     * @return The name of the order attribute, or null if the results are
+     * ordered by their ids.
+     */
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public EOrderType getOrderType() {
+        return orderType;
+    }
+
+    /**
+     * Orders the results by the value of the given attribute. The entities
+     * with equal values are ordered by their ids.
+     *
+     * @param attributeName The name of the order attribute, or null to order
+     * the results by their ids.
+     * @param orderType The type of the order attribute.
+     */
+    public void setOrderBy(String attributeName, EOrderType orderType) {
+        if (attributeName != null && orderType == null) {
+            throw new NullPointerException("The orderType parameter can not be null.");
+        }
+        this.orderBy = attributeName;
+        this.orderType = attributeName == null ? null : orderType;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Sets if the results are returned in descending order. The default is
+     * false.
+     *
+     * @param descending True for descending order.
+     */
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    /**
+     * Returns the id of the entity after which the results start.
+     *
+     * @return The id, or -1 if the results start at the beginning.
+     */
+    public long getAfterId() {
+        return afterId;
+    }
+
+    /**
+     * Returns the value of the order attribute after which the results start.
+     *
+     * @return The value, or null if the results start at the beginning.
+     */
+    public Object getAfterValue() {
+        return afterValue;
+    }
+
+    /**
+     * Sets the position after which the results start. Only the results
+     * following the given id, or the given order value and id, are returned.
+     *
+     * @param afterId The id of the last entity of the previous page, or -1 to
+     * start at the beginning.
+     * @param afterValue The value of the order attribute of the last entity of
+     * the previous page. Must be set if the results are ordered by an
+     * attribute, otherwise it's ignored.
+     */
+    public void setAfter(long afterId, Object afterValue) {
+        if (afterValue != null && !(afterValue instanceof Long) && !(afterValue instanceof String)) {
+            throw new IllegalArgumentException("The afterValue must be Long or String and not: "
+                    + afterValue.getClass().getName());
+        }
+        this.afterId = afterId;
+        this.afterValue = afterValue;
+    }
+
+    /**
+     * Sets the position after the given entity, which is usually the last
+     * entity of the previous page. The order attribute must be set before
+     * calling this method.
+     *
+     * @param entity The last entity of the previous page.
+     */
+    public void setAfter(Entity entity) {
+        if (entity == null) {
+            throw new NullPointerException("The entity parameter can not be null.");
+        }
+        setAfter(entity.getId(), orderBy == null ? null : entity.getAttribute(orderBy));
+    }
+
+    /**
+     * Checks if the options are consistent.
+     */
+    void validate() {
+        if (orderBy == null || afterId < 0) {
+            return;
+        }
+        if (afterValue == null) {
+            throw new IllegalStateException("The afterValue must be set, because the results are ordered by: " + orderBy);
+        }
+        Class<?> expected = orderType == EOrderType.LONG ? Long.class : String.class;
+        if (!expected.isInstance(afterValue)) {
+            throw new IllegalStateException("The afterValue must be " + expected.getSimpleName()
+                    + " and not: " + afterValue.getClass().getName());
+        }
+    }
+
+}
@@ -0,0 +1,580 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles filters to SQL queries over the Attribute table which select the
+ * ids of the matching entities.
+ *
+ * The condition of a leaf item, and of an OR group of leaf items, is
+ * evaluated on a single attribute row. An AND group is driven by its most
+ * selective child which can be evaluated on a single row, and the other
+ * children are checked by correlated EXISTS subqueries on the attributes of
+ * the driving entity, which are found by the entityId index. So an AND query
+ * reads about as many attribute rows as the driving child matches, not the
+ * union of the children. An OR group which has an AND child is compiled to a
+ * UNION of the queries of its children.
+ *
+ * A CONTAINS item of an attribute which has a trigram index is looked up in
+ * the index, and an IN item is looked up by a join with its values, so these
+ * items are planned like groups: they can drive an AND group, and they get
+ * their own branches in an OR group. Their checks use their row conditions.
+ *
+ * The children are never checked by IN subqueries, because Derby evaluates an
+ * IN subquery which has a UNION again for every row of the outer query.
+ *
+ * The generated queries can return the same id more than once.
+ *
+ * @author dipacs
+ */
+final class QueryPlanner {
+
+    /**
+     * The estimated ratio of the matching entities above which the ids of
+     * the whole kind are read instead of the ids of the matching attributes.
+     */
+    private static final double KIND_SCAN_RATIO = 0.5;
+
+    /**
+     * The estimated ratio of the entities which are matched by a CONTAINS
+     * item which is looked up in the trigram index.
+     */
+    private static final double GRAM_SELECTIVITY = 0.05;
+
+    /**
+     * The estimated ratio of the matching entities above which the pages of
+     * a query are read in the order of an index, and the filter is checked on
+     * every entity, instead of sorting every candidate of the filter.
+     */
+    private static final double ORDER_SCAN_RATIO = 0.05;
+
+    /**
+     * The optimizer override which makes Derby look up the attributes of a
+     * check by the entityId index for every id, instead of hashing every
+     * attribute. The override must end the line.
+     */
+    private static final String LOOKUP_HINT = " --DERBY-PROPERTIES index=IX_ATTRIBUTE_ENTITYID, joinStrategy=NESTEDLOOP\n";
+
+    private final Map<String, Map<String, AttributeStatistics>> statistics;
+    private final GramIndex gramIndex;
+
+    /**
+     * Creates a new planner.
+     *
+     * @param statistics The attribute statistics by kind and attribute name.
+     * The selectivity of the items is estimated from them. Without statistics
+     * of a kind, it's guessed from the operators.
+     * @param gramIndex The trigram index of the database.
+     */
+    QueryPlanner(Map<String, Map<String, AttributeStatistics>> statistics, GramIndex gramIndex) {
+        this.statistics = statistics;
+        this.gramIndex = gramIndex;
+    }
+
+    /**
+     * Indicates if the entities of the given filter are found faster by
+     * reading every entity of the kind and matching them in memory. This is
+     * only chosen if the statistics of the kind are collected.
+     *
+     * @param filter The filter.
+     *
+     * @return True if the filter matches most of the entities of its kind.
+     */
+    boolean isKindScan(Filter filter) {
+        Map<String, AttributeStatistics> stats = statistics.get(filter.getKind());
+        if (stats == null || filter.getFilterItem() == null) {
+            return false;
+        }
+        return estimateSelectivity(filter.getKind(), filter.getFilterItem(), stats) >= KIND_SCAN_RATIO;
+    }
+
+    /**
+     * Indicates if the pages of the given filter are read in the order of the
+     * Entity index or the index of the order attribute. Then the filter is
+     * checked on every entity of the index by getFilterCheck, so the cost of
+     * a page depends on its size and on the ratio of the matching entities,
+     * but not on the size of the kind.
+     *
+     * @param filter The filter.
+     *
+     * @return False if the filter matches only a few entities, which are
+     * selected and sorted faster.
+     */
+    boolean isOrderScan(Filter filter) {
+        AFilterItem item = filter.getFilterItem();
+        return item == null || estimateSelectivity(filter.getKind(), item) >= ORDER_SCAN_RATIO;
+    }
+
+    /**
+     * Returns the SQL query of a page of the candidates of the given filter.
+     * The query selects the entityId column, and the order value if the
+     * options order by an attribute. The strings are ordered by their indexed
+     * prefix.
+     * <p>
+     * The order scan of an attribute starts after the order value, so the
+     * entities of the same value after the id are read by getTieQuery first.
+     *
+     * @param filter The filter.
+     * @param options The order of the query.
+     * @param scan The result of isOrderScan.
+     * @param afterId The id after which the page starts, or -1.
+     * @param afterValue The order value after which the page starts.
+     * @param size The size of the page.
+     * @param params The list of the statement parameters.
+     *
+     * @return The SQL query.
+     */
+    String getPageQuery(Filter filter, QueryOptions options, boolean scan, long afterId, Object afterValue,
+            int size, List<Object> params) {
+        String dir = options.isDescending() ? " DESC" : " ASC";
+        String cmp = options.isDescending() ? "<" : ">";
+
+        String column = null;
+        RelationalDB.AttributeDTO.EType type = null;
+        if (options.getOrderBy() != null) {
+            if (options.getOrderType() == QueryOptions.EOrderType.LONG) {
+                type = RelationalDB.AttributeDTO.EType.LONG;
+                column = "o.longValue";
+            } else {
+                type = RelationalDB.AttributeDTO.EType.STRING;
+                column = "o.valueKey";
+            }
+            if (afterValue instanceof String) {
+                afterValue = Schema.toValueKey((String) afterValue);
+            }
+        }
+
+        String sql;
+        if (!scan) {
+            // the few candidates are selected, and sorted
+            if (column == null) {
+                if (afterId > -1) {
+                    sql = getIdQuery(filter, true, cmp + "?", params);
+                    params.add(afterId);
+                } else {
+                    sql = getIdQuery(filter, true, null, params);
+                }
+                sql += " ORDER BY entityId" + dir;
+            } else {
+                String candidates = getIdQuery(filter, true, null, params);
+                sql = "SELECT c.entityId, " + column + " FROM (" + candidates + ") c, Attribute o"
+                        + " WHERE o.entityId=c.entityId AND o.entityKind=? AND o.name=? AND o.type=?";
+                params.add(filter.getKind());
+                params.add(options.getOrderBy());
+                params.add(type.getType());
+                if (afterId > -1) {
+                    sql += " AND (" + column + cmp + "? OR (" + column + "=? AND c.entityId" + cmp + "?))";
+                    params.add(afterValue);
+                    params.add(afterValue);
+                    params.add(afterId);
+                }
+                sql += " ORDER BY " + column + dir + ", c.entityId" + dir;
+            }
+        } else if (column == null) {
+            // the ids are read from the index of the kind, and the filter is
+            // checked on each of them, so Derby stops after the page
+            sql = "SELECT e.id FROM Entity e" + getIndexHint("IX_ENTITY_KIND_ID", options) + " WHERE e.kind=?";
+            params.add(filter.getKind());
+            if (afterId > -1) {
+                sql += " AND e.id" + cmp + "?";
+                params.add(afterId);
+            }
+            sql += getFilterCheck(filter, "e.id", params) + " ORDER BY e.id" + dir;
+        } else {
+            // the attributes are read from the index of the order values, and
+            // the filter is checked on their entities. The position is a
+            // range condition, so the index scan starts at it.
+            sql = getOrderScan(filter, options, column, type, params);
+            if (afterId > -1) {
+                sql += " AND " + column + cmp + "?";
+                params.add(afterValue);
+            }
+            sql += getFilterCheck(filter, "o.entityId", params) + " ORDER BY " + column + dir + ", o.entityId" + dir;
+        }
+        return sql + " FETCH FIRST " + size + " ROWS ONLY";
+    }
+
+    /**
+     * Returns the SQL query of the entities of an order scan, which have the
+     * same order value as the entity after which the page starts, and which
+     * follow its id. Derby can't start an index scan at a pair of values, but
+     * it starts at an equal value and an id, so the many entities of the same
+     * value before the id aren't read.
+     *
+     * @param filter The filter.
+     * @param options The order of the query, which orders by an attribute.
+     * @param afterId The id after which the page starts.
+     * @param afterValue The order value after which the page starts.
+     * @param size The size of the page.
+     * @param params The list of the statement parameters.
+     *
+     * @return The SQL query, which selects the same columns as getPageQuery.
+     */
+    String getTieQuery(Filter filter, QueryOptions options, long afterId, Object afterValue, int size,
+            List<Object> params) {
+        String dir = options.isDescending() ? " DESC" : " ASC";
+        String cmp = options.isDescending() ? "<" : ">";
+        String column;
+        RelationalDB.AttributeDTO.EType type;
+        if (options.getOrderType() == QueryOptions.EOrderType.LONG) {
+            type = RelationalDB.AttributeDTO.EType.LONG;
+            column = "o.longValue";
+        } else {
+            type = RelationalDB.AttributeDTO.EType.STRING;
+            column = "o.valueKey";
+            afterValue = Schema.toValueKey((String) afterValue);
+        }
+
+        String sql = getOrderScan(filter, options, column, type, params)
+                + " AND " + column + "=? AND o.entityId" + cmp + "?";
+        params.add(afterValue);
+        params.add(afterId);
+        return sql + getFilterCheck(filter, "o.entityId", params) + " ORDER BY o.entityId" + dir
+                + " FETCH FIRST " + size + " ROWS ONLY";
+    }
+
+    /**
+     * Returns the start of an order scan, which selects the order attributes
+     * of the kind from the index of the order.
+     */
+    private static String getOrderScan(Filter filter, QueryOptions options, String column,
+            RelationalDB.AttributeDTO.EType type, List<Object> params) {
+        String index = type == RelationalDB.AttributeDTO.EType.LONG
+                ? "IX_ATTRIBUTE_LONGVALUE_ID" : "IX_ATTRIBUTE_VALUE_ID";
+        params.add(filter.getKind());
+        params.add(options.getOrderBy());
+        params.add(type.getType());
+        return "SELECT o.entityId, " + column + " FROM Attribute o" + getIndexHint(index, options)
+                + " WHERE o.entityKind=? AND o.name=? AND o.type=?";
+    }
+
+    /**
+     * Returns the optimizer override which reads the table by the given index
+     * of the page order, or by its descending pair. The index is forced,
+     * because Derby can choose the index of the other direction, and sort.
+     */
+    private static String getIndexHint(String index, QueryOptions options) {
+        return " --DERBY-PROPERTIES index=" + index + (options.isDescending() ? "_DESC" : "") + "\n";
+    }
+
+    /**
+     * Returns the condition which checks if the entity of the given id column
+     * is matched by the given filter, with a leading AND. The checks are
+     * EXISTS subqueries over the attributes of the entity.
+     *
+     * @return The condition, or an empty string if the filter has no item.
+     */
+    private String getFilterCheck(Filter filter, String idColumn, List<Object> params) {
+        if (filter.getFilterItem() == null) {
+            return "";
+        }
+        return " AND " + getCheck(filter.getKind(), filter.getFilterItem(), idColumn, 1, true, params);
+    }
+
+    /**
+     * Returns the SQL query which selects the ids of the entities matched by
+     * the given filter. The query selects one column which is named entityId.
+     *
+     * @param filter The filter.
+     * @param distinct True if the query has to return every id only once.
+     * @param idComparison A comparison which is appended to the id column and
+     * added to the conditions of the query, like "&gt;?", or null. Its
+     * parameters have to be added to the list after this method returns.
+     * @param params The list of the statement parameters.
+     *
+     * @return The SQL query.
+     */
+    String getIdQuery(Filter filter, boolean distinct, String idComparison, List<Object> params) {
+        String select = distinct ? "SELECT DISTINCT " : "SELECT ";
+        String kind = filter.getKind();
+        AFilterItem item = filter.getFilterItem();
+        if (item == null) {
+            // the entities without attributes have no attribute rows
+            params.add(kind);
+            return "SELECT id AS entityId FROM Entity WHERE kind=?" + and("id", idComparison);
+        }
+        if (isRowItem(kind, item)) {
+            params.add(kind);
+            return select + "entityId FROM Attribute WHERE entityKind=? AND " + item.getCondition(params)
+                    + and("entityId", idComparison);
+        }
+        if (isAnd(item)) {
+            return getAndQuery(select, kind, getChildren(item), 0, idComparison, params);
+        }
+
+        // an OR group which can't be evaluated on one row, or an indexed
+        // CONTAINS item
+
+        String res = select + "a0.entityId FROM (" + getSubquery(kind, item, 1, params) + ") a0";
+        if (idComparison != null) {
+            res += " WHERE a0.entityId" + idComparison;
+        }
+        return res;
+    }
+
+    /**
+     * Returns the query of the ids of the entities matched by the given item,
+     * which isn't an AND group.
+     */
+    private String getSubquery(String kind, AFilterItem item, int depth, List<Object> params) {
+        if (isRowItem(kind, item)) {
+            params.add(kind);
+            return "SELECT entityId FROM Attribute WHERE entityKind=? AND " + item.getCondition(params);
+        }
+        if (isGramItem(kind, item)) {
+            StringFilterItem contains = (StringFilterItem) item;
+            List<Object> conditionParams = new ArrayList<>();
+            String condition = item.getCondition(conditionParams);
+            return gramIndex.getSearchQuery(kind, contains.getAttributeName(), contains.getReferenceValue(),
+                    condition, conditionParams, "g" + depth, params);
+        }
+        if (isLookupItem(kind, item)) {
+            return item.getLookupQuery(kind, "l" + depth, params);
+        }
+
+        // the children which can be evaluated on one row are merged in to
+        // one branch of the union
+        List<AFilterItem> rowItems = new ArrayList<>();
+        List<AFilterItem> setItems = new ArrayList<>();
+        split(kind, getChildren(item), rowItems, setItems);
+        List<String> branches = new ArrayList<>();
+        if (!rowItems.isEmpty()) {
+            params.add(kind);
+            branches.add("SELECT entityId FROM Attribute WHERE entityKind=? AND " + getOrCondition(rowItems, params));
+        }
+        for (AFilterItem child : setItems) {
+            if (isAnd(child)) {
+                branches.add(getAndQuery("SELECT ", kind, getChildren(child), depth, null, params));
+            } else {
+                branches.add(getSubquery(kind, child, depth, params));
+            }
+        }
+        return join(branches, " UNION ALL ");
+    }
+
+    private String getAndQuery(String select, String kind, List<AFilterItem> children, int depth,
+            String idComparison, List<Object> params) {
+        List<AFilterItem> rowItems = new ArrayList<>();
+        List<AFilterItem> setItems = new ArrayList<>();
+        split(kind, children, rowItems, setItems);
+        sortBySelectivity(rowItems, kind);
+        sortBySelectivity(setItems, kind);
+
+        String alias = "a" + depth;
+        String res;
+        List<String> conds = new ArrayList<>();
+        // an item which is looked up drives the query if it's more selective
+        // than every row item
+        boolean lookupDriver = !setItems.isEmpty() && isLookupItem(kind, setItems.get(0))
+                && (rowItems.isEmpty()
+                || estimateSelectivity(kind, setItems.get(0)) < estimateSelectivity(kind, rowItems.get(0)));
+        if (!rowItems.isEmpty() && !lookupDriver) {
+            AFilterItem driver = rowItems.remove(0);
+            res = select + alias + ".entityId FROM Attribute " + alias;
+            params.add(kind);
+            conds.add(alias + ".entityKind=?");
+            conds.add(driver.getCondition(params));
+        } else {
+            AFilterItem driver = setItems.remove(0);
+            res = select + alias + ".entityId FROM (" + getSubquery(kind, driver, depth + 1, params) + ") " + alias;
+        }
+
+        for (AFilterItem child : rowItems) {
+            conds.add(getCheck(kind, child, alias + ".entityId", depth + 1, false, params));
+        }
+        for (AFilterItem child : setItems) {
+            conds.add(getCheck(kind, child, alias + ".entityId", depth + 1, false, params));
+        }
+        if (idComparison != null) {
+            conds.add(alias + ".entityId" + idComparison);
+        }
+        return res + " WHERE " + join(conds, " AND ");
+    }
+
+    /**
+     * Returns the condition which checks if the entity of the given id is
+     * matched by the given item. The attributes of the entity are found by
+     * the entityId index, so the check reads only a few rows.
+     *
+     * @param lookup True if the attributes are looked up for every id one by
+     * one. Otherwise Derby can join them by a hash table, which reads every
+     * attribute of the kind, so it's faster only if most ids are checked.
+     */
+    private String getCheck(String kind, AFilterItem item, String idColumn, int depth, boolean lookup,
+            List<Object> params) {
+        String alias = "a" + depth;
+        String from = "EXISTS (SELECT 1 FROM Attribute " + alias + (lookup ? LOOKUP_HINT : "");
+        if (isRowItem(null, item)) {
+            return from + " WHERE " + alias + ".entityId=" + idColumn
+                    + " AND " + item.getCondition(params) + ")";
+        }
+
+        List<AFilterItem> rowItems = new ArrayList<>();
+        List<AFilterItem> setItems = new ArrayList<>();
+        split(null, getChildren(item), rowItems, setItems);
+        List<String> checks = new ArrayList<>();
+        if (isAnd(item)) {
+            sortBySelectivity(rowItems, kind);
+            for (AFilterItem child : rowItems) {
+                checks.add(getCheck(kind, child, idColumn, depth, lookup, params));
+            }
+            for (AFilterItem child : setItems) {
+                checks.add(getCheck(kind, child, idColumn, depth, lookup, params));
+            }
+            return "(" + join(checks, " AND ") + ")";
+        }
+
+        if (!rowItems.isEmpty()) {
+            checks.add(from + " WHERE " + alias + ".entityId=" + idColumn
+                    + " AND " + getOrCondition(rowItems, params) + ")");
+        }
+        for (AFilterItem child : setItems) {
+            checks.add(getCheck(kind, child, idColumn, depth, lookup, params));
+        }
+        return "(" + join(checks, " OR ") + ")";
+    }
+
+    private static String getOrCondition(List<AFilterItem> items, List<Object> params) {
+        List<String> conds = new ArrayList<>();
+        for (AFilterItem item : items) {
+            conds.add(item.getCondition(params));
+        }
+        return "(" + join(conds, " OR ") + ")";
+    }
+
+    /**
+     * Indicates if the given item is planned as a condition on a single
+     * attribute row.
+     *
+     * @param kind The kind, or null if the items aren't looked up.
+     * @param item The item.
+     */
+    private boolean isRowItem(String kind, AFilterItem item) {
+        if (kind != null && hasLookupItem(kind, item)) {
+            return false;
+        }
+        return item.getCondition(new ArrayList<>()) != null;
+    }
+
+    /**
+     * Indicates if the given item is a CONTAINS item which is looked up in
+     * the trigram index. The shorter texts than a gram are not.
+     */
+    private boolean isGramItem(String kind, AFilterItem item) {
+        if (!(item instanceof StringFilterItem)) {
+            return false;
+        }
+        StringFilterItem stringItem = (StringFilterItem) item;
+        return stringItem.getOperator() == StringFilterItem.EOperator.CONTAINS
+                && stringItem.getReferenceValue().length() >= GramIndex.GRAM_LENGTH
+                && gramIndex.isIndexed(kind, stringItem.getAttributeName());
+    }
+
+    /**
+     * Indicates if the given item is looked up by a query of its own, instead
+     * of its condition.
+     */
+    private boolean isLookupItem(String kind, AFilterItem item) {
+        return isGramItem(kind, item) || item.getLookupQuery(kind, "l", new ArrayList<>()) != null;
+    }
+
+    private boolean hasLookupItem(String kind, AFilterItem item) {
+        if (!(item instanceof FilterGroupItem)) {
+            return isLookupItem(kind, item);
+        }
+        for (AFilterItem child : getChildren(item)) {
+            if (hasLookupItem(kind, child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimates the ratio of the entities of the kind matched by the given
+     * item, with the indexed CONTAINS items estimated by the planner.
+     */
+    private double estimateSelectivity(String kind, AFilterItem item) {
+        return estimateSelectivity(kind, item, statistics.get(kind));
+    }
+
+    private double estimateSelectivity(String kind, AFilterItem item, Map<String, AttributeStatistics> stats) {
+        if (isGramItem(kind, item)) {
+            return GRAM_SELECTIVITY;
+        }
+        if (isAnd(item)) {
+            double res = 1.0;
+            for (AFilterItem child : getChildren(item)) {
+                res = Math.min(res, estimateSelectivity(kind, child, stats));
+            }
+            return res;
+        }
+        return item.estimateSelectivity(stats);
+    }
+
+    private void split(String kind, List<AFilterItem> items, List<AFilterItem> rowItems, List<AFilterItem> setItems) {
+        for (AFilterItem item : items) {
+            if (isRowItem(kind, item)) {
+                rowItems.add(item);
+            } else {
+                setItems.add(item);
+            }
+        }
+    }
+
+    /**
+     * Returns the children of the given group, with the children of the
+     * nested groups of the same operator.
+     */
+    private static List<AFilterItem> getChildren(AFilterItem item) {
+        FilterGroupItem group = (FilterGroupItem) item;
+        List<AFilterItem> res = new ArrayList<>();
+        for (AFilterItem child : group.getFilters()) {
+            if (child instanceof FilterGroupItem && ((FilterGroupItem) child).getOperator() == group.getOperator()) {
+                res.addAll(getChildren(child));
+            } else {
+                res.add(child);
+            }
+        }
+        return res;
+    }
+
+    private static boolean isAnd(AFilterItem item) {
+        return item instanceof FilterGroupItem
+                && ((FilterGroupItem) item).getOperator() == FilterGroupItem.EOperator.AND;
+    }
+
+    private void sortBySelectivity(List<AFilterItem> items, final String kind) {
+        Collections.sort(items, new Comparator<AFilterItem>() {
+
+            @Override
+            public int compare(AFilterItem o1, AFilterItem o2) {
+                return Double.compare(estimateSelectivity(kind, o1), estimateSelectivity(kind, o2));
+            }
+
+        });
+    }
+
+    private static String and(String column, String idComparison) {
+        if (idComparison == null) {
+            return "";
+        }
+        return " AND " + column + idComparison;
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+}
@@ -15,13 +15,20 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.rowset.serial.SerialBlob;
@@ -32,25 +39,92 @@ import javax.sql.rowset.serial.SerialBlob;
  */
 class RelationalDB {
 
-    public static RelationalDB openOrCreateDatabase(String url) throws DatabaseException {
+    public static RelationalDB openOrCreateDatabase(String url, EntityDBConfig config) throws DatabaseException {
         if (isDatabaseExists(url)) {
-            return new RelationalDB(url, false);
+            return new RelationalDB(url, config, false);
         } 
-        return new RelationalDB(url, true);
+        return new RelationalDB(url, config, true);
     }
 
-    public static RelationalDB openDatabase(String url) throws DatabaseException {
-        return new RelationalDB(url, false);
+    public static RelationalDB openDatabase(String url, EntityDBConfig config) throws DatabaseException {
+        return new RelationalDB(url, config, false);
     }
 
     public static boolean isDatabaseExists(String url) {
         return new File(url).exists();
     }
 
+    /**
+     * The maximum number of parameters in one IN list.
+     */
+    static final int MAX_IN_SIZE = 500;
+
+    /**
+     * The sizes of the generated IN lists. Shorter id lists are padded to the
+     * next size, so only a few different statements are prepared for them.
+     */
+    private static final int[] IN_LIST_SIZES = new int[]{1, 10, 50, 100, 250, MAX_IN_SIZE};
+
+    /**
+     * The maximum number of times an entity is loaded again when it changes
+     * while it's read without locks.
+     */
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    /**
+     * The number of the buckets of the histograms of the long attributes.
+     */
+    private static final int HISTOGRAM_SIZE = 16;
+
+    /**
+     * The number of the written entities of a kind, above a tenth of the
+     * kind, after which its statistics are collected again.
+     */
+    private static final int STATISTICS_MIN_WRITES = 50;
+
+    private static final String INSERT_ATTRIBUTE_SQL = "INSERT INTO Attribute "
+            + "(entityId, entityKind, name, type, value, valueKey, longValue, lowerKey) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
     private final String url;
     private final Connection conn;
-
-    private RelationalDB(String url, boolean create) throws DatabaseException {
+    private final StatementCache writer;
+    private final ConnectionPool readers;
+    private final int batchCommitSize;
+    private final boolean validateReads;
+    private final AValueCodec codec;
+    private final boolean lazyValues;
+    /**
+     * The collected attribute statistics by kind and attribute name.
+     */
+    private final Map<String, Map<String, AttributeStatistics>> statistics = new ConcurrentHashMap<>();
+    /**
+     * The kinds whose statistics have been collected, including the ones
+     * which had no attributes.
+     */
+    private final Set<String> statisticsKinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * The number of the entity writes by kind which are left until the
+     * statistics of the kind are outdated.
+     */
+    private final Map<String, AtomicLong> statisticsWrites = new ConcurrentHashMap<>();
+    private final GramIndex gramIndex;
+    private final QueryPlanner planner;
+    private AValueLoader valueLoader = null;
+    private int transactionDepth = 0;
+    private boolean rollbackOnly = false;
+    private volatile Thread transactionThread = null;
+    /**
+     * The entities written by the running transaction. They are marked clean
+     * when the transaction is committed.
+     */
+    private final List<Entity> writtenEntities = new ArrayList<>();
+    /**
+     * The entities inserted by the running transaction. Their ids are reset
+     * when the transaction is rolled back, because the rows don't exist.
+     */
+    private final List<Entity> insertedEntities = new ArrayList<>();
+
+    private RelationalDB(String url, EntityDBConfig config, boolean create) throws DatabaseException {
         this.url = url;
 
         try {
@@ -73,46 +147,26 @@ class RelationalDB {
             throw new DatabaseException("Can't open database. Reason: " + ex.getMessage(), ex);
         }
 
-        if (!exists) {
-            init();
-        }
-    }
-
-    private void init() throws DatabaseException {
-        String entitySql = "CREATE TABLE Entity ("
-                + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
-                + "kind VARCHAR(4096) NOT NULL,"
-                + "value BLOB)";
-
-        String attributeQuery = "CREATE TABLE Attribute ("
-                + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
-                + "entityId BIGINT NOT NULL,"
-                + "entityKind VARCHAR(4096) NOT NULL,"
-                + "name VARCHAR(128) NOT NULL,"
-                + "type INT NOT NULL,"
-                + "value VARCHAR(32000) NOT NULL)";
-
-        Statement stmt = null;
+        Schema.migrate(conn);
+        gramIndex = new GramIndex(config.getTrigramIndexes());
         try {
-            stmt = conn.createStatement();
-            stmt.execute(entitySql);
-            stmt.execute(attributeQuery);
+            gramIndex.sync(conn);
         } catch (SQLException ex) {
-            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-            throw new DatabaseException("Initializing database failed.", ex);
-        } finally {
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            throw new DatabaseException("Can't build the trigram indexes. Reason: " + ex.getMessage(), ex);
         }
+        planner = new QueryPlanner(statistics, gramIndex);
+        writer = new StatementCache(conn, config.getStatementCacheSize());
+        readers = new ConnectionPool("jdbc:derby:" + url, config.getReaderPoolSize(), config.getStatementCacheSize());
+        batchCommitSize = config.getBatchCommitSize();
+        validateReads = config.isLockFreeReads();
+        codec = config.getValueCodec();
+        lazyValues = config.isLazyValues();
     }
 
-    public void close() {
+    public synchronized void close() {
+        readers.close();
         try {
+            writer.clear();
             conn.close();
             DriverManager.getConnection("jdbc:derby:;shutdown=true");
         } catch (SQLException ex) {
@@ -120,447 +174,1784 @@ class RelationalDB {
         }
     }
 
+    /**
+     * Returns a connection for a read operation. The thread of the running
+     * transaction reads through the writer connection, so it sees its own
+     * uncommitted changes. Other threads borrow a connection from the reader
+     * pool.
+     */
+    private StatementCache borrowReader() {
+        if (Thread.currentThread() == transactionThread) {
+            return writer;
+        }
+        return readers.borrow();
+    }
+
+    private void releaseReader(StatementCache reader) {
+        if (reader != writer) {
+            readers.release(reader);
+        }
+    }
+
     public Entity get(long id) {
-        assertClosed();
+        return getAll(Collections.singletonList(id)).get(id);
+    }
 
-        Entity res = null;
+    /**
+     * Loads the entities with the given ids. The entities are loaded in chunks
+     * of at most MAX_IN_SIZE ids, using one query for the entity rows and one
+     * for the attribute rows of each chunk.
+     *
+     * @param ids The ids of the entities.
+     *
+     * @return The found entities by id, in the iteration order of the given
+     * ids. Ids without entity are left out.
+     */
+    public Map<Long, Entity> getAll(Collection<Long> ids) {
+        assertClosed();
 
-        String sql = "SELECT * FROM Entity WHERE id=" + id;
-        Statement stmt = null;
-        ResultSet rs = null;
+        StatementCache reader = borrowReader();
         try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            if (rs.next()) {
-                res = new Entity(rs.getString("kind"));
-                res.setId(rs.getLong("id"));
-                Blob value = rs.getBlob("value");
-                res.setByteValue(value == null ? null : value.getBytes(1, (int) value.length()));
-
-                Collection<AttributeDTO> attributes = getAttributes(id).values();
-                for (AttributeDTO attr : attributes) {
-                    if (attr.getType() == AttributeDTO.EType.BOOLEAN) {
-                        res.putAttribute(attr.getName(), Boolean.valueOf(attr.getValue()));
-                    } else if (attr.getType() == AttributeDTO.EType.LONG) {
-                        res.putAttribute(attr.getName(), Long.parseLong(attr.getValue()));
-                    } else if (attr.getType() == AttributeDTO.EType.STRING) {
-                        res.putAttribute(attr.getName(), attr.getValue());
-                    } else {
-                        throw new RuntimeException("Unknown attribute type: " + attr.getType());
-                    }
-                }
-            }
-        } catch (SQLException | DatabaseException ex) {
-            throw new RuntimeException(ex);
+            return getAll(reader, ids);
         } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            releaseReader(reader);
         }
-
-        return res;
     }
 
-    public void put(Entity entity) {
-        if (entity.getId() > -1) {
-            update(entity);
-        } else {
-            putNew(entity);
-        }
+    private Map<Long, Entity> getAll(StatementCache statements, Collection<Long> ids) {
+        return getAll(statements, ids, null);
     }
 
-    private void putNew(Entity entity) {
-        String sql = "INSERT INTO Entity (kind, value) VALUES (?, ?)";
-
-        PreparedStatement ps = null;
-        try {
-            ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            ps.setString(1, entity.getKind());
-            if (entity.getByteValue() != null) {
-                ps.setBlob(2, new SerialBlob(entity.getByteValue()));
+    /**
+     * Loads the entities with the given ids. If a projection is given, only
+     * its parts of the entities are read.
+     */
+    private Map<Long, Entity> getAll(StatementCache statements, Collection<Long> ids, Projection projection) {
+        List<Long> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Long, Entity> loaded = new HashMap<>();
+        for (int from = 0; from < idList.size(); from += MAX_IN_SIZE) {
+            List<Long> chunk = idList.subList(from, Math.min(idList.size(), from + MAX_IN_SIZE));
+            if (validateReads) {
+                loadConsistentEntities(statements, chunk, loaded, projection);
             } else {
-                ps.setNull(2, Types.BLOB);
+                loadEntities(statements, chunk, loaded, null, projection);
             }
-            ps.execute();
-            entity.setId(getLastInsertedId(ps));
+        }
 
-            for (Map.Entry<String, Object> entry : entity.getAttributes().entrySet()) {
-                putAttribute(entity.getId(), entity.getKind(), entry.getKey(), entry.getValue());
+        Map<Long, Entity> res = new LinkedHashMap<>();
+        for (Long id : idList) {
+            Entity e = loaded.get(id);
+            if (e != null) {
+                res.put(id, e);
             }
+        }
+        return res;
+    }
 
-        } catch (SQLException | DatabaseException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (ps != null) {
-                try {
-                    ps.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * Loads the given entities without holding locks between the statements.
+     * The entity and the attribute rows are read by separate statements, so a
+     * write committed between them could mix two versions of an entity.
+     * Every write increments the version of the entity row in the same
+     * transaction, so the entities whose version has changed since they were
+     * read are loaded again.
+     */
+    private void loadConsistentEntities(StatementCache statements, List<Long> ids, Map<Long, Entity> res, Projection projection) {
+        List<Long> pending = ids;
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt >= MAX_READ_ATTEMPTS) {
+                throw new RuntimeException("Can't read a consistent state of the entities, they are changing too fast.");
+            }
+
+            Map<Long, Long> versions = new HashMap<>();
+            loadEntities(statements, pending, res, versions, projection);
+            Map<Long, Long> currentVersions = new HashMap<>();
+            queryVersions(statements, new ArrayList<>(versions.keySet()), currentVersions);
+
+            List<Long> changed = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : versions.entrySet()) {
+                if (!entry.getValue().equals(currentVersions.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                    res.remove(entry.getKey());
                 }
             }
+            pending = changed;
         }
     }
 
-    private void putAttribute(long entityId, String entityKind, String name, Object value) {
-        AttributeDTO.EType type = null;
-        if (value instanceof Boolean) {
-            type = AttributeDTO.EType.BOOLEAN;
-        } else if (value instanceof Long) {
-            type = AttributeDTO.EType.LONG;
-        } else if (value instanceof String) {
-            type = AttributeDTO.EType.STRING;
-        } else if (value == null) {
-            // skip
+    private void queryVersions(StatementCache statements, List<Long> ids, Map<Long, Long> res) {
+        if (ids.isEmpty()) {
             return;
-        } else {
-            throw new IllegalArgumentException("Attribute value must be String, Boolean or Long and not: " + value.getClass().getName());
         }
 
-        String sql = "INSERT INTO Attribute (entityId, entityKind, name, type, value) VALUES (?, ?, ?, ?, ?)";
-
+        int size = getInListSize(ids.size());
         PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-            ps.setLong(1, entityId);
-            ps.setString(2, entityKind);
-            ps.setString(3, name);
-            ps.setInt(4, type.getType());
-            ps.setString(5, value.toString());
-            ps.execute();
+            ps = statements.prepare("SELECT id, version FROM Entity WHERE id IN " + createInList(size));
+            setInList(ps, ids, size);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                res.put(rs.getLong(1), rs.getLong(2));
+            }
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
         } finally {
-            if (ps != null) {
-                try {
-                    ps.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            close(rs);
+            statements.release(ps);
         }
     }
 
-    private long getLastInsertedId(Statement statement) throws SQLException, DatabaseException {
-        ResultSet rs = statement.getGeneratedKeys();
+    private void loadEntities(StatementCache statements, List<Long> ids, Map<Long, Entity> res, Map<Long, Long> versions,
+            Projection projection) {
+        int size = getInListSize(ids.size());
+        boolean lazy = valueLoader != null && (projection == null ? lazyValues : !projection.isValue());
+        String entitySql = "SELECT id, kind, version" + (lazy ? "" : ", value") + " FROM Entity WHERE id IN " + createInList(size);
+        String attributeSql = "SELECT * FROM Attribute WHERE entityId IN " + createInList(size);
+        List<Object> names = new ArrayList<>();
+        if (projection != null) {
+            names.addAll(projection.getAttributeNames());
+            attributeSql += " AND name IN " + createInList(names.size());
+        }
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            if (rs.next()) {
-                return rs.getLong(1);
-            } else {
-                throw new DatabaseException("Can't get last generated id.");
+            ps = statements.prepare(entitySql);
+            setInList(ps, ids, size);
+            rs = ps.executeQuery();
+            readEntities(rs, lazy, res, versions);
+            close(rs);
+            rs = null;
+            statements.release(ps);
+
+            if (projection == null || !names.isEmpty()) {
+                ps = statements.prepare(attributeSql);
+                setInList(ps, ids, size);
+                setParams(ps, size + 1, names);
+                rs = ps.executeQuery();
+                readAttributes(rs, res);
             }
-        } finally {
-            if (rs != null) {
-                rs.close();
+            for (Long id : ids) {
+                Entity e = res.get(id);
+                if (e != null) {
+                    e.markClean();
+                }
             }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
         }
-
     }
 
-    private void update(Entity entity) {
-        deleteAttributes(entity.getId());
-        updateEntity(entity);
-    }
-    
-    private void deleteAttributes(long entityId) {
-        String attributeSql = "DELETE FROM Attribute WHERE entityId=" + entityId;
+    /**
+     * Loads every entity of the given kind by reading the entity and the
+     * attribute rows of the kind, instead of looking them up by their ids.
+     */
+    private Collection<Entity> scanKind(StatementCache statements, String kind) {
+        if (validateReads) {
+            // the versions are only checked by the lookups by id
+            return getAll(statements, queryAllKeys(statements, kind)).values();
+        }
 
-        Statement stmt = null;
+        boolean lazy = lazyValues && valueLoader != null;
+        Map<Long, Entity> res = new TreeMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
         try {
-            stmt = conn.createStatement();
-            stmt.execute(attributeSql);
+            ps = statements.prepare("SELECT id, kind, version" + (lazy ? "" : ", value") + " FROM Entity WHERE kind=?");
+            ps.setString(1, kind);
+            rs = ps.executeQuery();
+            readEntities(rs, lazy, res, null);
+            close(rs);
+            rs = null;
+            statements.release(ps);
+
+            ps = statements.prepare("SELECT * FROM Attribute WHERE entityKind=?");
+            ps.setString(1, kind);
+            rs = ps.executeQuery();
+            readAttributes(rs, res);
+            for (Entity e : res.values()) {
+                e.markClean();
+            }
         } catch (SQLException ex) {
-            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("Deleting entity failed.", ex);
+            throw new RuntimeException(ex);
         } finally {
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            close(rs);
+            statements.release(ps);
         }
+        return res.values();
     }
-    
-    private void updateEntity(Entity entity) {
-        String sql = "UPDATE Entity SET kind=?, value=? WHERE id=" + entity.getId();
-        
-        PreparedStatement ps = null;
-        try {
-            ps = conn.prepareStatement(sql);
-            ps.setString(1, entity.getKind());
-            if (entity.getValue() != null) {
-                ps.setBlob(2, new SerialBlob(entity.getByteValue()));
+
+    private void readEntities(ResultSet rs, boolean lazy, Map<Long, Entity> res, Map<Long, Long> versions)
+            throws SQLException {
+        while (rs.next()) {
+            Entity e = new Entity(rs.getString("kind"));
+            e.setId(rs.getLong("id"));
+            if (lazy) {
+                e.setValueLoader(valueLoader, codec);
             } else {
-                ps.setNull(2, Types.BLOB);
+                Blob value = rs.getBlob("value");
+                e.setByteValue(value == null ? null : value.getBytes(1, (int) value.length()), codec);
             }
-            ps.execute();
-
-            for (Map.Entry<String, Object> entry : entity.getAttributes().entrySet()) {
-                putAttribute(entity.getId(), entity.getKind(), entry.getKey(), entry.getValue());
+            res.put(e.getId(), e);
+            if (versions != null) {
+                versions.put(e.getId(), rs.getLong("version"));
             }
+        }
+    }
 
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (ps != null) {
-                try {
-                    ps.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
+    private void readAttributes(ResultSet rs, Map<Long, Entity> res) throws SQLException {
+        while (rs.next()) {
+            AttributeDTO attr = createAttributeFromResultSet(rs);
+            Entity e = res.get(attr.getEntityId());
+            if (e != null) {
+                addAttribute(e, attr);
             }
         }
     }
 
-    public void delete(long id) {
-        String attributeSql = "DELETE FROM Attribute WHERE entityId=" + id;
-        String entitySql = "DELETE FROM Entity WHERE id=" + id;
+    private void addAttribute(Entity entity, AttributeDTO attr) {
+        entity.getAttributes().put(attr.getName(), getAttributeValue(attr));
+    }
 
-        Statement stmt = null;
-        try {
-            stmt = conn.createStatement();
-            stmt.execute(attributeSql);
-            stmt.execute(entitySql);
-        } catch (SQLException ex) {
-            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("Deleting entity failed.", ex);
-        } finally {
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+    private static Object getAttributeValue(AttributeDTO attr) {
+        if (attr.getType() == AttributeDTO.EType.BOOLEAN) {
+            return Boolean.valueOf(attr.getValue());
+        } else if (attr.getType() == AttributeDTO.EType.LONG) {
+            return Long.parseLong(attr.getValue());
+        } else if (attr.getType() == AttributeDTO.EType.STRING) {
+            return attr.getValue();
+        } else {
+            throw new RuntimeException("Unknown attribute type: " + attr.getType());
         }
     }
-    
-    public List<Entity> queryAll(String kind) {
-        String sql = "SELECT id FROM Entity WHERE kind='" + kind + "'";
-        
-        Set<Long> ids = new TreeSet<>();
-        
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                ids.add(rs.getLong(1));
-            }
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
+
+    static int getInListSize(int count) {
+        for (int size : IN_LIST_SIZES) {
+            if (count <= size) {
+                return size;
             }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
+        }
+        throw new IllegalArgumentException("Too many values for an IN list: " + count);
+    }
+
+    static String createInList(int size) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
             }
+            sb.append("?");
         }
-        
-        List<Entity> res = new ArrayList<>();
-        Iterator<Long> it = ids.iterator();
-        while (it.hasNext()) {
-            Long id = it.next();
-            Entity e = get(id);
-            res.add(e);
+        sb.append(")");
+        return sb.toString();
+    }
+
+    private static void setInList(PreparedStatement ps, List<Long> values, int size) throws SQLException {
+        // the padding repeats the last value, which doesn't change the result
+        for (int i = 0; i < size; i++) {
+            ps.setLong(i + 1, values.get(Math.min(i, values.size() - 1)));
         }
-        
-        return res;
     }
 
-    public List<Entity> query(Filter filter) {
-        String sql = "SELECT entityId FROM Attribute WHERE " + filter.getCondition();
-        
-        Set<Long> ids = new TreeSet<>();
-        
-        Statement stmt = null;
-        ResultSet rs = null;
+    private static void setParams(PreparedStatement ps, List<Object> params) throws SQLException {
+        setParams(ps, 1, params);
+    }
+
+    private static void setParams(PreparedStatement ps, int index, List<Object> params) throws SQLException {
+        for (Object param : params) {
+            if (param instanceof Long) {
+                ps.setLong(index, (Long) param);
+            } else if (param instanceof Integer) {
+                ps.setInt(index, (Integer) param);
+            } else if (param instanceof String) {
+                ps.setString(index, (String) param);
+            } else if (param instanceof Double) {
+                ps.setDouble(index, (Double) param);
+            } else {
+                throw new IllegalArgumentException("Unsupported parameter type: " + param);
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Stores the given entity. Only the dirty parts of a stored entity are
+     * written.
+     *
+     * @param entity The entity to store.
+     *
+     * @return false if the entity is clean, and nothing has been written.
+     */
+    public synchronized boolean put(Entity entity) {
+        assertClosed();
+
+        boolean isNew = entity.getId() < 0;
+        if (!isNew && !entity.isDirty()) {
+            return false;
+        }
+        boolean local = beginWrite();
         try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                ids.add(rs.getLong(1));
+            if (isNew) {
+                putNew(entity);
+            } else {
+                update(entity);
             }
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
-        } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
+            commitWrite(local);
+            written(entity, local);
+            if (isNew && !local) {
+                insertedEntities.add(entity);
             }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
+            countWrite(entity.getKind());
+            return true;
+        } catch (RuntimeException ex) {
+            failWrite(local);
+            if (isNew) {
+                entity.setId(-1);
             }
+            throw ex;
+        } finally {
+            endWrite(local);
         }
-        
-        List<Entity> res = new ArrayList<>();
-        Iterator<Long> it = ids.iterator();
-        while (it.hasNext()) {
-            Long id = it.next();
-            Entity e = get(id);
-            if (filter.match(e)) {
-                res.add(e);
-            }
+    }
+
+    private void putNew(Entity entity) {
+        insertEntity(entity);
+        for (Map.Entry<String, Object> entry : entity.getAttributes().entrySet()) {
+            putAttribute(entity.getId(), entity.getKind(), entry.getKey(), entry.getValue());
         }
-        
-        return res;
     }
-    
-    public Set<Long> queryAllKeys(String kind) {
-        String sql = "SELECT id FROM Entity WHERE kind='" + kind + "'";
-        
-        Set<Long> res = new TreeSet<>();
-        
-        Statement stmt = null;
-        ResultSet rs = null;
+
+    /**
+     * Inserts the entity row of the given entity, and sets the generated id on
+     * it.
+     */
+    private void insertEntity(Entity entity) {
+        String sql = "INSERT INTO Entity (kind, value) VALUES (?, ?)";
+
+        PreparedStatement ps = null;
         try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                res.add(rs.getLong(1));
+            ps = writer.prepareReturningKeys(sql);
+            ps.setString(1, entity.getKind());
+            byte[] value = entity.encodeValue(codec);
+            if (value != null) {
+                ps.setBlob(2, new SerialBlob(value));
+            } else {
+                ps.setNull(2, Types.BLOB);
             }
-        } catch (SQLException ex) {
+            ps.execute();
+            entity.setId(getLastInsertedId(ps));
+        } catch (SQLException | DatabaseException ex) {
             throw new RuntimeException(ex);
         } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            writer.release(ps);
         }
-        
-        return res;
     }
 
-    public Set<Long> queryKeys(Filter filter) {
-        String sql = "SELECT entityId FROM Attribute WHERE " + filter.getCondition();
-        
-        Set<Long> res = new TreeSet<>();
-        
-        Statement stmt = null;
-        ResultSet rs = null;
+    private void putAttribute(long entityId, String entityKind, String name, Object value) {
+        PreparedStatement ps = null;
         try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                res.add(rs.getLong(1));
+            ps = writer.prepare(INSERT_ATTRIBUTE_SQL);
+            if (setAttributeParams(ps, entityId, entityKind, name, value)) {
+                ps.execute();
             }
+            gramIndex.insert(writer, entityId, entityKind, name, value);
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
         } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
-                }
-            }
+            writer.release(ps);
         }
-        
-        Iterator<Long> it = res.iterator();
-        while (it.hasNext()) {
-            Long id = it.next();
-            Entity e = get(id);
-            if (!filter.match(e)) {
-                it.remove();
-            }
+    }
+
+    /**
+     * Sets the parameters of the INSERT_ATTRIBUTE_SQL statement.
+     *
+     * @return false if the value is null, and the attribute must not be
+     * stored.
+     */
+    private static boolean setAttributeParams(PreparedStatement ps, long entityId, String entityKind, String name, Object value) throws SQLException {
+        AttributeDTO.EType type = getAttributeType(value);
+        if (type == null) {
+            // skip
+            return false;
         }
-        
-        return res;
+
+        ps.setLong(1, entityId);
+        ps.setString(2, entityKind);
+        ps.setString(3, name);
+        ps.setInt(4, type.getType());
+        setValueParams(ps, 5, type, value);
+        return true;
     }
 
-    public Entity queryFirst(Filter filter) {
-        List<Entity> resList = query(filter);
-        if (resList.size() < 1) {
-            return null;
+    /**
+     * Sets the value, valueKey, longValue and lowerKey columns of an attribute
+     * statement starting at the given parameter index.
+     */
+    private static void setValueParams(PreparedStatement ps, int index, AttributeDTO.EType type, Object value) throws SQLException {
+        ps.setString(index, value.toString());
+        ps.setString(index + 1, Schema.toValueKey(value.toString()));
+        if (type == AttributeDTO.EType.LONG) {
+            ps.setLong(index + 2, (Long) value);
+        } else {
+            ps.setNull(index + 2, Types.BIGINT);
+        }
+        if (type == AttributeDTO.EType.STRING) {
+            ps.setString(index + 3, Schema.toLowerKey((String) value));
         } else {
-            return resList.get(0);
+            ps.setNull(index + 3, Types.VARCHAR);
         }
     }
 
-    public Entity querySingleton(Filter filter) {
-        List<Entity> resList = query(filter);
-        if (resList.size() != 1) {
-            throw new RuntimeException("Singleton result required but there are " + resList.size() + " results.");
+    /**
+     * Returns the stored type of the given attribute value.
+     *
+     * @return The type, or null if the value is null, and the attribute must
+     * not be stored.
+     */
+    private static AttributeDTO.EType getAttributeType(Object value) {
+        if (value instanceof Boolean) {
+            return AttributeDTO.EType.BOOLEAN;
+        } else if (value instanceof Long) {
+            return AttributeDTO.EType.LONG;
+        } else if (value instanceof String) {
+            return AttributeDTO.EType.STRING;
+        } else if (value == null) {
+            return null;
         } else {
-            return resList.get(0);
+            throw new IllegalArgumentException("Attribute value must be String, Boolean or Long and not: " + value.getClass().getName());
         }
     }
 
-    private Map<String, AttributeDTO> getAttributes(long entityId) throws DatabaseException {
-        Map<String, AttributeDTO> res = new HashMap<>();
+    /**
+     * Stores the given entities. Outside of a transaction it commits after
+     * every batchCommitSize entities, so a failure only rolls back the current
+     * chunk. The ids of the new entities of a failed chunk are reset to -1.
+     *
+     * The entity rows are inserted one by one, because Derby doesn't return
+     * the generated keys of a batch, but the attribute rows of a chunk are
+     * inserted in one JDBC batch.
+     *
+     * @param entities The entities to store.
+     *
+     * @return false if every entity is clean, and nothing has been written.
+     */
+    public synchronized boolean putAll(Collection<Entity> entities) {
+        assertClosed();
 
-        String sql = "SELECT * FROM Attribute WHERE entityId=" + entityId;
-        Statement stmt = null;
-        ResultSet rs = null;
+        List<Entity> chunk = new ArrayList<>();
+        boolean local = beginWrite();
+        boolean res = false;
         try {
-            stmt = conn.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                AttributeDTO attr = createAttributeFromResultSet(rs);
-                res.put(attr.getName(), attr);
-            }
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex);
-        } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException ex) {
-                    Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+            for (Entity entity : entities) {
+                chunk.add(entity);
+                if (chunk.size() >= batchCommitSize) {
+                    res |= putChunk(chunk, local);
+                    chunk.clear();
                 }
             }
+            if (!chunk.isEmpty()) {
+                res |= putChunk(chunk, local);
+            }
+            return res;
+        } finally {
+            endWrite(local);
         }
-        return res;
     }
 
-    private AttributeDTO createAttributeFromResultSet(ResultSet rs) throws SQLException {
-        AttributeDTO res = new AttributeDTO();
+    /**
+     * Stores a chunk of putAll.
+     *
+     * @return false if every entity of the chunk is clean.
+     */
+    private boolean putChunk(List<Entity> chunk, boolean local) {
+        List<Entity> inserted = new ArrayList<>();
+        boolean res = false;
+        try {
+            for (Entity entity : chunk) {
+                if (entity.getId() > -1) {
+                    if (update(entity)) {
+                        countWrite(entity.getKind());
+                        res = true;
+                    }
+                } else {
+                    insertEntity(entity);
+                    inserted.add(entity);
+                    countWrite(entity.getKind());
+                }
+            }
+
+            insertAttributes(inserted);
+            // the grams are inserted after the attribute batch is released,
+            // because preparing their statement can evict it from the cache
+            for (Entity entity : inserted) {
+                for (Map.Entry<String, Object> entry : entity.getAttributes().entrySet()) {
+                    gramIndex.insert(writer, entity.getId(), entity.getKind(), entry.getKey(), entry.getValue());
+                }
+            }
+            commitWrite(local);
+            for (Entity entity : chunk) {
+                written(entity, local);
+            }
+            if (!local) {
+                insertedEntities.addAll(inserted);
+            }
+            return res || !inserted.isEmpty();
+        } catch (SQLException | RuntimeException ex) {
+            failWrite(local);
+            for (Entity entity : inserted) {
+                entity.setId(-1);
+            }
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Inserts the attribute rows of the given new entities in one JDBC batch.
+     */
+    private void insertAttributes(List<Entity> entities) throws SQLException {
+        PreparedStatement ps = writer.prepare(INSERT_ATTRIBUTE_SQL);
+        try {
+            int count = 0;
+            for (Entity entity : entities) {
+                for (Map.Entry<String, Object> entry : entity.getAttributes().entrySet()) {
+                    if (setAttributeParams(ps, entity.getId(), entity.getKind(), entry.getKey(), entry.getValue())) {
+                        ps.addBatch();
+                        count++;
+                    }
+                }
+            }
+            if (count > 0) {
+                ps.executeBatch();
+            }
+        } finally {
+            ps.clearBatch();
+            writer.release(ps);
+        }
+    }
+
+    /**
+     * Starts a write operation. Outside of a transaction the operation gets
+     * its own JDBC transaction, so its statements are applied atomically and
+     * committed with one disk sync.
+     *
+     * @return true if the operation runs in its own JDBC transaction.
+     */
+    private boolean beginWrite() {
+        if (transactionDepth > 0) {
+            return false;
+        }
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+        return true;
+    }
+
+    private void commitWrite(boolean local) {
+        if (!local) {
+            return;
+        }
+        try {
+            conn.commit();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Marks the given entity clean if its write has been committed, otherwise
+     * registers it to be marked clean when the transaction commits.
+     */
+    private void written(Entity entity, boolean local) {
+        if (local) {
+            entity.markClean();
+        } else {
+            writtenEntities.add(entity);
+        }
+    }
+
+    /**
+     * Resets the ids of the entities inserted by the rolled back transaction,
+     * so they are inserted again when they are put the next time.
+     */
+    private void resetInserted() {
+        for (Entity entity : insertedEntities) {
+            entity.setId(-1);
+        }
+    }
+
+    /**
+     * Handles a failed write operation. Rolls back the operation if it has its
+     * own JDBC transaction, otherwise marks the enclosing transaction as
+     * rollback-only, because it contains a partially applied operation.
+     */
+    private void failWrite(boolean local) {
+        if (!local) {
+            rollbackOnly = true;
+            return;
+        }
+        try {
+            conn.rollback();
+        } catch (SQLException ex) {
+            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void endWrite(boolean local) {
+        if (!local) {
+            return;
+        }
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException ex) {
+            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Starts a transaction. The write operations are not committed until the
+     * transaction is committed. Nested calls join the outermost transaction.
+     */
+    public synchronized void beginTransaction() {
+        assertClosed();
+
+        if (transactionDepth == 0) {
+            try {
+                conn.setAutoCommit(false);
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+            rollbackOnly = false;
+            writtenEntities.clear();
+            insertedEntities.clear();
+            transactionThread = Thread.currentThread();
+        }
+        transactionDepth++;
+    }
+
+    /**
+     * Commits the current transaction. Nested calls only leave the nested
+     * transaction, the changes are committed by the outermost call.
+     *
+     * @throws TransactionException If the transaction can't be committed, or
+     * it's marked as rollback-only. The transaction is rolled back in this
+     * case.
+     */
+    public synchronized void commitTransaction() throws TransactionException {
+        if (transactionDepth < 1) {
+            throw new IllegalStateException("There is no active transaction.");
+        }
+        transactionDepth--;
+        if (transactionDepth > 0) {
+            return;
+        }
+
+        try {
+            if (rollbackOnly) {
+                conn.rollback();
+                resetInserted();
+                throw new TransactionException("The transaction has been rolled back, because one of its operations failed.");
+            }
+            conn.commit();
+            for (Entity entity : writtenEntities) {
+                entity.markClean();
+            }
+        } catch (SQLException ex) {
+            try {
+                conn.rollback();
+            } catch (SQLException ex1) {
+                Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+            resetInserted();
+            throw new TransactionException("Committing the transaction failed.", ex);
+        } finally {
+            writtenEntities.clear();
+            insertedEntities.clear();
+            transactionThread = null;
+            endWrite(true);
+        }
+    }
+
+    /**
+     * Rolls back the current transaction. A nested call marks the outermost
+     * transaction as rollback-only.
+     */
+    public synchronized void rollbackTransaction() {
+        if (transactionDepth < 1) {
+            throw new IllegalStateException("There is no active transaction.");
+        }
+        transactionDepth--;
+        if (transactionDepth > 0) {
+            rollbackOnly = true;
+            return;
+        }
+
+        resetInserted();
+        writtenEntities.clear();
+        insertedEntities.clear();
+        transactionThread = null;
+        failWrite(true);
+        endWrite(true);
+    }
+
+    /**
+     * Indicates if a transaction is running.
+     *
+     * @return True if a transaction is running.
+     */
+    public boolean isInTransaction() {
+        // it's called before the reads take their locks, so it doesn't wait
+        // for the running write
+        return transactionThread != null;
+    }
+
+    private long getLastInsertedId(Statement statement) throws SQLException, DatabaseException {
+        ResultSet rs = statement.getGeneratedKeys();
+        try {
+            if (rs.next()) {
+                return rs.getLong(1);
+            } else {
+                throw new DatabaseException("Can't get last generated id.");
+            }
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+        }
+
+    }
+
+    /**
+     * Updates the stored entity to the state of the given one. Only the dirty
+     * attributes are written, so the attributes which are unknown for the
+     * entity are left untouched. The changed attribute rows are updated,
+     * inserted or deleted, and the value is only rewritten if it differs from
+     * the stored one. Nothing is written for a clean entity.
+     *
+     * @return false if the entity is clean.
+     */
+    private boolean update(Entity entity) {
+        if (!entity.isDirty()) {
+            return false;
+        }
+
+        updateEntity(entity, entity.isValueDirty());
+
+        List<Long> deleted = new ArrayList<>();
+        Map<String, AttributeDTO> stored = getStoredAttributes(entity.getId(), deleted);
+        Set<String> names = entity.getDirtyAttributes();
+        if (!entity.isTracked()) {
+            // the removed attributes are unknown, so every stored one is checked
+            names.addAll(stored.keySet());
+        }
+        for (String name : names) {
+            Object value = entity.getAttributes().get(name);
+            AttributeDTO.EType type = getAttributeType(value);
+            AttributeDTO old = stored.get(name);
+            if (type == null) {
+                if (old != null) {
+                    deleted.add(old.getId());
+                    updateGrams(entity, name, null);
+                }
+            } else if (old == null) {
+                putAttribute(entity.getId(), entity.getKind(), name, value);
+            } else if (old.getType() != type || !old.getValue().equals(value.toString())) {
+                updateAttribute(old.getId(), type, value);
+                updateGrams(entity, name, value);
+            }
+        }
+
+        for (Long id : deleted) {
+            execute("DELETE FROM Attribute WHERE id=?", id);
+        }
+        return true;
+    }
+
+    private void updateGrams(Entity entity, String name, Object value) {
+        try {
+            gramIndex.update(writer, entity.getId(), entity.getKind(), name, value);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the stored attributes of the given entity by name. If more rows
+     * are stored with the same name, the ids of the extra rows are added to
+     * the given list.
+     */
+    private Map<String, AttributeDTO> getStoredAttributes(long entityId, List<Long> duplicates) {
+        Map<String, AttributeDTO> res = new HashMap<>();
+        try {
+            for (AttributeDTO attr : getAttributes(entityId)) {
+                AttributeDTO old = res.put(attr.getName(), attr);
+                if (old != null) {
+                    duplicates.add(old.getId());
+                }
+            }
+        } catch (DatabaseException ex) {
+            throw new RuntimeException(ex);
+        }
+        return res;
+    }
+
+    private void updateAttribute(long attributeId, AttributeDTO.EType type, Object value) {
+        String sql = "UPDATE Attribute SET type=?, value=?, valueKey=?, longValue=?, lowerKey=? WHERE id=?";
+
+        PreparedStatement ps = null;
+        try {
+            ps = writer.prepare(sql);
+            ps.setInt(1, type.getType());
+            setValueParams(ps, 2, type, value);
+            ps.setLong(6, attributeId);
+            ps.execute();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            writer.release(ps);
+        }
+    }
+
+    /**
+     * Updates the entity row of the given entity. It's the first statement of
+     * an update, so the row lock serializes the concurrent readers of the
+     * entity. The value is only rewritten if it's dirty, and it differs from
+     * the stored one.
+     */
+    private void updateEntity(Entity entity, boolean valueDirty) {
+        PreparedStatement ps = null;
+        try {
+            // the value is only encoded, or loaded if it's lazy, when it's
+            // rewritten
+            byte[] value = valueDirty ? entity.encodeValue(codec) : null;
+            if (valueDirty && !isValueStored(entity.getId(), value)) {
+                ps = writer.prepare("UPDATE Entity SET value=?, version=version+1 WHERE id=?");
+                if (value != null) {
+                    ps.setBlob(1, new SerialBlob(value));
+                } else {
+                    ps.setNull(1, Types.BLOB);
+                }
+                ps.setLong(2, entity.getId());
+            } else {
+                ps = writer.prepare("UPDATE Entity SET version=version+1 WHERE id=?");
+                ps.setLong(1, entity.getId());
+            }
+            if (ps.executeUpdate() < 1) {
+                throw new IllegalStateException("The entity doesn't exist in the database: " + entity.getId());
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            writer.release(ps);
+        }
+    }
+
+    private boolean isValueStored(long id, byte[] value) throws SQLException {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = writer.prepare("SELECT value FROM Entity WHERE id=?");
+            ps.setLong(1, id);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                return false;
+            }
+            Blob stored = rs.getBlob(1);
+            if (stored == null || value == null) {
+                return stored == null && value == null;
+            }
+            return stored.length() == value.length
+                    && Arrays.equals(stored.getBytes(1, (int) stored.length()), value);
+        } finally {
+            close(rs);
+            writer.release(ps);
+        }
+    }
+
+    public synchronized void delete(long id) {
+        assertClosed();
+
+        boolean local = beginWrite();
+        try {
+            if (!statisticsWrites.isEmpty()) {
+                String kind = getKind(id);
+                if (kind != null) {
+                    countWrite(kind);
+                }
+            }
+            execute("DELETE FROM Attribute WHERE entityId=?", id);
+            gramIndex.delete(writer, id);
+            execute("DELETE FROM Entity WHERE id=?", id);
+            commitWrite(local);
+        } catch (SQLException | RuntimeException ex) {
+            failWrite(local);
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex);
+        } finally {
+            endWrite(local);
+        }
+    }
+
+    /**
+     * Sets the loader which is set on the entities which are read without
+     * their values. The values are read eagerly until it's set.
+     *
+     * @param valueLoader The loader of the values.
+     */
+    public void setValueLoader(AValueLoader valueLoader) {
+        this.valueLoader = valueLoader;
+    }
+
+    /**
+     * Reads the encoded value of the given entity.
+     *
+     * @param id The id of the entity.
+     *
+     * @return The encoded value, or null if the entity has no value, or it
+     * doesn't exist.
+     */
+    public byte[] loadValue(long id) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = reader.prepare("SELECT value FROM Entity WHERE id=?");
+            ps.setLong(1, id);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            Blob value = rs.getBlob(1);
+            return value == null ? null : value.getBytes(1, (int) value.length());
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            reader.release(ps);
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Returns the kind of the stored entity with the given id. It reads
+     * through the writer connection, so it must be called by the writer.
+     *
+     * @param id The id of the entity.
+     *
+     * @return The kind of the entity, or null if it doesn't exist.
+     */
+    public synchronized String getKind(long id) {
+        assertClosed();
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = writer.prepare("SELECT kind FROM Entity WHERE id=?");
+            ps.setLong(1, id);
+            rs = ps.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            writer.release(ps);
+        }
+    }
+
+    private void execute(String sql, long id) {
+        PreparedStatement ps = null;
+        try {
+            ps = writer.prepare(sql);
+            ps.setLong(1, id);
+            ps.execute();
+        } catch (SQLException ex) {
+            Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("Deleting entity failed.", ex);
+        } finally {
+            writer.release(ps);
+        }
+    }
+
+    /**
+     * Executes the given query, and adds the values of the first column of the
+     * result to the given collection.
+     */
+    private void queryIds(StatementCache statements, String sql, List<Object> params, Collection<Long> res) {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare(sql);
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                res.add(rs.getLong(1));
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+    }
+    
+    public List<Entity> queryAll(String kind) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            return new ArrayList<>(getAll(reader, queryAllKeys(reader, kind)).values());
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    public List<Entity> query(Filter filter) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            return query(reader, filter);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Queries the database using the given filter, and reads only the given
+     * parts of the matching entities. The attributes of the filter are read
+     * too if the entities need to be matched, but they are removed from the
+     * returned entities unless they are selected.
+     *
+     * @param filter The filter.
+     * @param projection The selected parts of the entities.
+     *
+     * @return The partial entities.
+     */
+    public List<Entity> query(Filter filter, Projection projection) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            List<Object> params = new ArrayList<>();
+            String sql = planner.getIdQuery(filter, false, null, params);
+            Set<Long> ids = new TreeSet<>();
+            queryIds(reader, sql, params, ids);
+
+            boolean exact = filter.isExact();
+            Projection load = exact ? projection : projection.with(filter.getAttributeNames());
+            List<Entity> res = new ArrayList<>();
+            for (Entity e : getAll(reader, ids, load).values()) {
+                if (exact || filter.match(e)) {
+                    if (load != projection) {
+                        e.getAttributes().keySet().retainAll(projection.getAttributeNames());
+                        e.markClean();
+                    }
+                    res.add(e);
+                }
+            }
+            return res;
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private List<Entity> query(StatementCache statements, Filter filter) {
+        Collection<Entity> candidates;
+        if (planner.isKindScan(filter)) {
+            candidates = scanKind(statements, filter.getKind());
+        } else {
+            List<Object> params = new ArrayList<>();
+            String sql = planner.getIdQuery(filter, false, null, params);
+            Set<Long> ids = new TreeSet<>();
+            queryIds(statements, sql, params, ids);
+            candidates = getAll(statements, ids).values();
+        }
+        
+        List<Entity> res = new ArrayList<>();
+        for (Entity e : candidates) {
+            if (filter.match(e)) {
+                res.add(e);
+            }
+        }
+        
+        return res;
+    }
+    
+    public Set<Long> queryAllKeys(String kind) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            return queryAllKeys(reader, kind);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private Set<Long> queryAllKeys(StatementCache statements, String kind) {
+        List<Object> params = new ArrayList<>();
+        params.add(kind);
+        
+        Set<Long> res = new TreeSet<>();
+        queryIds(statements, "SELECT id FROM Entity WHERE kind=?", params, res);
+        return res;
+    }
+
+    /**
+     * Queries the database using the given filter and options. The order, the
+     * position and the limit are applied by the SQL, which reads the page in
+     * the order of an index unless the filter is selective, see
+     * QueryPlanner.isOrderScan. The SQL returns the candidates, which are
+     * matched against the filter, so more rounds are fetched if some of them
+     * don't match.
+     *
+     * @param filter The filter.
+     * @param options The options of the query.
+     *
+     * @return The matching entities in the order given by the options.
+     */
+    public List<Entity> query(Filter filter, QueryOptions options) {
+        assertClosed();
+        options.validate();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            return query(reader, filter, options);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private List<Entity> query(StatementCache statements, Filter filter, QueryOptions options) {
+        List<Entity> res = new ArrayList<>();
+        Set<Long> found = new HashSet<>();
+        long afterId = options.getAfterId();
+        Object afterValue = options.getAfterValue();
+        int limit = options.getLimit();
+        while (true) {
+            int size = limit > 0 ? getInListSize(Math.min(limit - res.size(), MAX_IN_SIZE)) : MAX_IN_SIZE;
+            List<Object> values = new ArrayList<>();
+            List<Long> ids = queryPage(statements, filter, options, afterId, afterValue, size, values);
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            Map<Long, Entity> loaded = getAll(statements, ids);
+            for (Long id : ids) {
+                Entity e = loaded.get(id);
+                if (e != null && filter.match(e) && found.add(id)) {
+                    res.add(e);
+                    if (res.size() == limit) {
+                        return res;
+                    }
+                }
+            }
+
+            if (ids.size() < size) {
+                break;
+            }
+            afterId = ids.get(ids.size() - 1);
+            if (!values.isEmpty()) {
+                afterValue = values.get(values.size() - 1);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns one page of the candidate ids of the given query. If the query
+     * is ordered by an attribute, the order values of the ids are added to the
+     * given list.
+     */
+    private List<Long> queryPage(StatementCache statements, Filter filter, QueryOptions options,
+            long afterId, Object afterValue, int size, List<Object> values) {
+        boolean ordered = options.getOrderBy() != null;
+        boolean scan = planner.isOrderScan(filter);
+        List<Long> res = new ArrayList<>();
+        if (scan && ordered && afterId > -1) {
+            List<Object> params = new ArrayList<>();
+            String sql = planner.getTieQuery(filter, options, afterId, afterValue, size, params);
+            readPage(statements, sql, params, ordered, res, values);
+            if (res.size() == size) {
+                return res;
+            }
+        }
+
+        List<Object> params = new ArrayList<>();
+        String sql = planner.getPageQuery(filter, options, scan, afterId, afterValue, size - res.size(), params);
+        readPage(statements, sql, params, ordered, res, values);
+        return res;
+    }
+
+    /**
+     * Runs the given query of a page, and adds its ids and order values to
+     * the given lists.
+     */
+    private void readPage(StatementCache statements, String sql, List<Object> params, boolean ordered,
+            List<Long> res, List<Object> values) {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare(sql);
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                res.add(rs.getLong(1));
+                if (ordered) {
+                    values.add(rs.getObject(2));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+    }
+
+    /**
+     * Counts the entities matched by the given filter. Exact filters are
+     * counted by the SQL, otherwise the candidates are loaded in batches and
+     * matched.
+     *
+     * @param filter The filter.
+     *
+     * @return The number of the matching entities.
+     */
+    public long count(Filter filter) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            if (filter.isExact()) {
+                List<Object> params = new ArrayList<>();
+                return queryLong(reader, "SELECT COUNT(*) FROM ("
+                        + planner.getIdQuery(filter, true, null, params) + ") c", params);
+            }
+
+            long res = 0;
+            QueryOptions options = new QueryOptions();
+            long afterId = -1;
+            while (true) {
+                List<Long> ids = queryPage(reader, filter, options, afterId, null, MAX_IN_SIZE, new ArrayList<>());
+                for (Entity e : getAll(reader, ids).values()) {
+                    if (filter.match(e)) {
+                        res++;
+                    }
+                }
+                if (ids.size() < MAX_IN_SIZE) {
+                    return res;
+                }
+                afterId = ids.get(ids.size() - 1);
+            }
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Counts the entities of the given kind.
+     *
+     * @param kind The kind of the entities.
+     *
+     * @return The number of the entities.
+     */
+    public long countAll(String kind) {
+        assertClosed();
+
+        List<Object> params = new ArrayList<>();
+        params.add(kind);
+        StatementCache reader = borrowReader();
+        try {
+            return queryLong(reader, "SELECT COUNT(*) FROM Entity WHERE kind=?", params);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Indicates if any entity is matched by the given filter. Stops at the
+     * first matching entity.
+     *
+     * @param filter The filter.
+     *
+     * @return True if an entity matches.
+     */
+    public boolean exists(Filter filter) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            if (filter.isExact()) {
+                List<Object> params = new ArrayList<>();
+                List<Long> ids = new ArrayList<>();
+                queryIds(reader, planner.getIdQuery(filter, false, null, params) + " FETCH FIRST 1 ROWS ONLY",
+                        params, ids);
+                return !ids.isEmpty();
+            }
+
+            QueryOptions options = new QueryOptions();
+            options.setLimit(1);
+            return !query(reader, filter, options).isEmpty();
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    /**
+     * Computes the given aggregate function over the values of a long
+     * attribute of the entities matched by the filter. For exact filters the
+     * function is computed by one SQL query over the Attribute table,
+     * otherwise the candidates are loaded in batches, matched and aggregated
+     * in memory.
+     *
+     * @param filter The filter.
+     * @param attributeName The name of the long attribute.
+     * @param aggregate The aggregate function.
+     * @param groupBy The name of the attribute whose values group the
+     * entities, or null to compute one result.
+     *
+     * @return The results by the values of the group attribute. The key is
+     * null if the results are not grouped. The groups without values are left
+     * out.
+     */
+    public Map<Object, Number> aggregate(Filter filter, String attributeName, EAggregate aggregate, String groupBy) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            if (filter.isExact()) {
+                return aggregateSql(reader, filter, attributeName, aggregate, groupBy);
+            }
+
+            Aggregator aggregator = new Aggregator(aggregate);
+            QueryOptions options = new QueryOptions();
+            long afterId = -1;
+            while (true) {
+                List<Long> ids = queryPage(reader, filter, options, afterId, null, MAX_IN_SIZE, new ArrayList<>());
+                for (Entity e : getAll(reader, ids).values()) {
+                    Object value = e.getAttribute(attributeName);
+                    Object key = groupBy == null ? null : e.getAttribute(groupBy);
+                    if (value instanceof Long && (groupBy == null || key != null) && filter.match(e)) {
+                        aggregator.add(key, (Long) value);
+                    }
+                }
+                if (ids.size() < MAX_IN_SIZE) {
+                    return aggregator.getResults();
+                }
+                afterId = ids.get(ids.size() - 1);
+            }
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private Map<Object, Number> aggregateSql(StatementCache statements, Filter filter, String attributeName,
+            EAggregate aggregate, String groupBy) {
+        String function;
+        if (aggregate == EAggregate.AVG) {
+            // the average of BIGINT values is truncated to BIGINT
+            function = "AVG(CAST(a.longValue AS DOUBLE))";
+        } else {
+            function = aggregate.name() + "(a.longValue)";
+        }
+
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT " + (groupBy == null ? "" : "g.type, g.value, ") + function + " FROM ";
+        if (filter.getFilterItem() != null) {
+            // the candidates are joined, because Derby evaluates an IN
+            // subquery which can't be flattened again for every row
+            sql += "(" + planner.getIdQuery(filter, true, null, params) + ") c, ";
+        }
+        sql += "Attribute a";
+        if (groupBy != null) {
+            sql += ", Attribute g";
+        }
+        sql += " WHERE a.entityKind=? AND a.name=? AND a.type=?";
+        params.add(filter.getKind());
+        params.add(attributeName);
+        params.add(AttributeDTO.EType.LONG.getType());
+        if (filter.getFilterItem() != null) {
+            sql += " AND a.entityId=c.entityId";
+        }
+        if (groupBy != null) {
+            sql += " AND g.entityId=a.entityId AND g.name=?";
+            params.add(groupBy);
+        }
+        if (groupBy != null) {
+            sql += " GROUP BY g.type, g.value";
+        }
+
+        Map<Object, Number> res = new HashMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare(sql);
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Object key = null;
+                if (groupBy != null) {
+                    AttributeDTO attr = new AttributeDTO(-1, -1, AttributeDTO.EType.getFromType(rs.getInt(1)), groupBy, rs.getString(2));
+                    key = getAttributeValue(attr);
+                }
+                Number value = (Number) rs.getObject(groupBy == null ? 1 : 3);
+                if (value == null) {
+                    continue;
+                }
+                if (aggregate == EAggregate.AVG) {
+                    res.put(key, value.doubleValue());
+                } else {
+                    res.put(key, value.longValue());
+                }
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+        return res;
+    }
+
+    private long queryLong(StatementCache statements, String sql, List<Object> params) {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare(sql);
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+    }
+
+    /**
+     * Returns the kinds which have entities in the database.
+     *
+     * @return The kinds.
+     */
+    public Set<String> getKinds() {
+        assertClosed();
+
+        Set<String> res = new TreeSet<>();
+        StatementCache reader = borrowReader();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = reader.prepare("SELECT DISTINCT kind FROM Entity");
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                res.add(rs.getString(1));
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            reader.release(ps);
+            releaseReader(reader);
+        }
+        return res;
+    }
+
+    /**
+     * Collects the statistics of the attributes of the given kind, and
+     * replaces the previous statistics of the kind with them.
+     *
+     * @param kind The kind.
+     */
+    public void refreshStatistics(String kind) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            refreshStatistics(reader, kind);
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private void refreshStatistics(StatementCache statements, String kind) {
+        List<Object> params = new ArrayList<>();
+        params.add(kind);
+        long entityCount = queryLong(statements, "SELECT COUNT(*) FROM Entity WHERE kind=?", params);
+        statisticsWrites.put(kind, new AtomicLong(STATISTICS_MIN_WRITES + entityCount / 10));
+
+        Map<String, AttributeStatistics> res = collectStatistics(statements, kind, entityCount);
+        if (res.isEmpty()) {
+            statistics.remove(kind);
+        } else {
+            statistics.put(kind, Collections.unmodifiableMap(res));
+        }
+        statisticsKinds.add(kind);
+    }
+
+    /**
+     * Counts a written entity of the given kind. After STATISTICS_MIN_WRITES
+     * and a tenth of the kind have been written, the statistics of the kind
+     * are outdated, and they are collected again by its next filtered query.
+     */
+    private void countWrite(String kind) {
+        AtomicLong left = statisticsWrites.get(kind);
+        if (left != null && left.decrementAndGet() == 0) {
+            statisticsKinds.remove(kind);
+        }
+    }
+
+    /**
+     * Collects the statistics of the kind of the given filter, if they haven't
+     * been collected since the database has been opened, or they are
+     * outdated. It's called before the filter is planned, so the planner has
+     * statistics without a refresh.
+     */
+    private void collectMissingStatistics(StatementCache statements, Filter filter) {
+        if (filter.getFilterItem() != null && !statisticsKinds.contains(filter.getKind())) {
+            refreshStatistics(statements, filter.getKind());
+        }
+    }
+
+    /**
+     * Returns the collected statistics of the attributes of the given kind.
+     *
+     * @param kind The kind.
+     *
+     * @return The statistics by attribute name. Empty if they haven't been
+     * collected.
+     */
+    public Map<String, AttributeStatistics> getStatistics(String kind) {
+        Map<String, AttributeStatistics> res = statistics.get(kind);
+        if (res == null) {
+            return Collections.emptyMap();
+        }
+        return res;
+    }
+
+    private Map<String, AttributeStatistics> collectStatistics(StatementCache statements, String kind,
+            long entityCount) {
+        List<Object> params = new ArrayList<>();
+        params.add(kind);
+
+        // the counts by name, then by type
+        Map<String, long[][]> counts = new TreeMap<>();
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare("SELECT name, type, COUNT(*), COUNT(DISTINCT valueKey), MIN(longValue),"
+                    + " MAX(longValue) FROM Attribute WHERE entityKind=? GROUP BY name, type");
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                long[][] byType = counts.get(rs.getString(1));
+                if (byType == null) {
+                    byType = new long[AttributeDTO.EType.values().length][];
+                    counts.put(rs.getString(1), byType);
+                }
+                byType[rs.getInt(2)] = new long[]{rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6)};
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+
+        Map<String, AttributeStatistics> res = new HashMap<>();
+        for (Map.Entry<String, long[][]> entry : counts.entrySet()) {
+            long[] longs = entry.getValue()[AttributeDTO.EType.LONG.getType()];
+            long[] booleans = entry.getValue()[AttributeDTO.EType.BOOLEAN.getType()];
+            long[] strings = entry.getValue()[AttributeDTO.EType.STRING.getType()];
+            long[] histogram = new long[0];
+            if (longs != null) {
+                histogram = collectHistogram(statements, kind, entry.getKey(), longs[2], longs[3]);
+            }
+            res.put(entry.getKey(), new AttributeStatistics(kind, entry.getKey(), entityCount,
+                    longs == null ? 0 : longs[0], longs == null ? 0 : longs[1],
+                    longs == null ? 0 : longs[2], longs == null ? 0 : longs[3], histogram,
+                    booleans == null ? 0 : booleans[0],
+                    strings == null ? 0 : strings[0], strings == null ? 0 : strings[1]));
+        }
+        return res;
+    }
+
+    private long[] collectHistogram(StatementCache statements, String kind, String name, long min, long max) {
+        long[] res = new long[HISTOGRAM_SIZE];
+        double width = ((double) max - min + 1) / HISTOGRAM_SIZE;
+
+        List<Object> params = new ArrayList<>();
+        params.add((double) min);
+        params.add(width);
+        params.add(kind);
+        params.add(name);
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = statements.prepare("SELECT b, COUNT(*) FROM (SELECT CAST(FLOOR((CAST(longValue AS DOUBLE)"
+                    + " - CAST(? AS DOUBLE)) / CAST(? AS DOUBLE)) AS INT) AS b FROM Attribute"
+                    + " WHERE entityKind=? AND name=? AND type=" + AttributeDTO.EType.LONG.getType() + ") t"
+                    + " GROUP BY b");
+            setParams(ps, params);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                // the rounding of the doubles can put the largest values
+                // after the last bucket
+                int bucket = Math.max(0, Math.min(HISTOGRAM_SIZE - 1, rs.getInt(1)));
+                res[bucket] += rs.getLong(2);
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(rs);
+            statements.release(ps);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the next batch of the candidate ids of the given filter in
+     * ascending order. The entities of the ids must be matched against the
+     * filter.
+     *
+     * @param filter The filter.
+     * @param afterId Only ids greater than this are returned.
+     * @param size The maximum number of returned ids.
+     *
+     * @return The candidate ids, or an empty list if there are no more.
+     */
+    public List<Long> queryKeyBatch(Filter filter, long afterId, int size) {
+        assertClosed();
+
+        List<Long> res = new ArrayList<>();
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            List<Object> params = new ArrayList<>();
+            String sql = planner.getIdQuery(filter, true, ">?", params)
+                    + " ORDER BY entityId FETCH FIRST " + size + " ROWS ONLY";
+            params.add(afterId);
+            queryIds(reader, sql, params, res);
+        } finally {
+            releaseReader(reader);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the next batch of the ids of the given kind in ascending order.
+     *
+     * @param kind The kind of the entities.
+     * @param afterId Only ids greater than this are returned.
+     * @param size The maximum number of returned ids.
+     *
+     * @return The ids, or an empty list if there are no more.
+     */
+    public List<Long> queryAllKeyBatch(String kind, long afterId, int size) {
+        assertClosed();
+
+        List<Object> params = new ArrayList<>();
+        params.add(kind);
+        params.add(afterId);
+
+        List<Long> res = new ArrayList<>();
+        StatementCache reader = borrowReader();
+        try {
+            queryIds(reader, "SELECT id FROM Entity WHERE kind=? AND id>? ORDER BY id FETCH FIRST "
+                    + size + " ROWS ONLY", params, res);
+        } finally {
+            releaseReader(reader);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the ids of the entities matched by the given filter. The ids of
+     * an exact filter are returned by its id query. Otherwise the candidates
+     * are loaded with the attributes of the filter only, and matched.
+     *
+     * @param filter The filter.
+     *
+     * @return The ids of the matching entities.
+     */
+    public Set<Long> queryKeys(Filter filter) {
+        assertClosed();
+
+        StatementCache reader = borrowReader();
+        try {
+            collectMissingStatistics(reader, filter);
+            Set<Long> res = new TreeSet<>();
+            if (filter.isExact()) {
+                List<Object> params = new ArrayList<>();
+                queryIds(reader, planner.getIdQuery(filter, false, null, params), params, res);
+                return res;
+            }
+
+            if (planner.isKindScan(filter)) {
+                for (Entity e : query(reader, filter)) {
+                    res.add(e.getId());
+                }
+                return res;
+            }
+
+            List<Object> params = new ArrayList<>();
+            Set<Long> ids = new TreeSet<>();
+            queryIds(reader, planner.getIdQuery(filter, false, null, params), params, ids);
+            Projection load = new Projection(false, filter.getAttributeNames());
+            for (Entity e : getAll(reader, ids, load).values()) {
+                if (filter.match(e)) {
+                    res.add(e.getId());
+                }
+            }
+            return res;
+        } finally {
+            releaseReader(reader);
+        }
+    }
+
+    private List<AttributeDTO> getAttributes(long entityId) throws DatabaseException {
+        List<AttributeDTO> res = new ArrayList<>();
+
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = writer.prepare("SELECT * FROM Attribute WHERE entityId=?");
+            ps.setLong(1, entityId);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                res.add(createAttributeFromResultSet(rs));
+            }
+        } catch (SQLException ex) {
+            throw new DatabaseException(ex);
+        } finally {
+            close(rs);
+            writer.release(ps);
+        }
+        return res;
+    }
+
+    private AttributeDTO createAttributeFromResultSet(ResultSet rs) throws SQLException {
+        AttributeDTO res = new AttributeDTO();
         res.setId(rs.getLong("id"));
         res.setEntityId(rs.getLong("entityId"));
         res.setName(rs.getString("name"));
@@ -569,6 +1960,55 @@ class RelationalDB {
         return res;
     }
 
+    private static void close(ResultSet rs) {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (SQLException ex) {
+                Logger.getLogger(RelationalDB.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    public CacheStats getStatementCacheStats() {
+        List<StatementCache> caches = readers.getConnections();
+        caches.add(writer);
+        long hitCount = 0;
+        long missCount = 0;
+        long evictionCount = 0;
+        long size = 0;
+        for (StatementCache cache : caches) {
+            hitCount += cache.getHitCount();
+            missCount += cache.getMissCount();
+            evictionCount += cache.getEvictionCount();
+            size += cache.getSize();
+        }
+        return new CacheStats(hitCount, missCount, evictionCount, size);
+    }
+
+    public synchronized List<String> checkIndexes() throws DatabaseException {
+        assertClosed();
+        return Schema.checkIndexes(conn);
+    }
+
+    public synchronized void repairIndexes() throws DatabaseException {
+        assertClosed();
+        Schema.repairIndexes(conn);
+    }
+
+    public synchronized void dropTrigramIndex(String kind, String name) throws DatabaseException {
+        assertClosed();
+        if (transactionDepth > 0) {
+            throw new IllegalStateException("A trigram index can't be dropped in a transaction.");
+        }
+
+        try {
+            gramIndex.drop(conn, kind, name);
+        } catch (SQLException ex) {
+            throw new DatabaseException("Can't drop the trigram index. Reason: " + ex.getMessage(), ex);
+        }
+    }
+
     public boolean isClosed() {
         try {
             return conn.isClosed();
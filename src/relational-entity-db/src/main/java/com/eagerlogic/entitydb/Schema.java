@@ -0,0 +1,495 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates and migrates the relational schema of an entity database.
+ *
+ * The schema version is stored in the Meta table. Databases created before the
+ * Meta table existed are treated as version 1. Every migration step is applied
+ * in the same JDBC transaction as the version update, so a failed migration
+ * leaves the database at the previous version.
+ *
+ * @author dipacs
+ */
+final class Schema {
+
+    /**
+     * The schema version which is created or migrated to by this class.
+     */
+    static final int VERSION = 9;
+
+    /**
+     * The maximum number of characters of an attribute value which is stored in
+     * the indexed valueKey column. Derby can't store index records larger than
+     * half of a page, so the full value can't be indexed.
+     */
+    static final int VALUE_KEY_LENGTH = 1000;
+
+    private static final String VERSION_NAME = "schemaVersion";
+
+    private static final IndexDef[] INDEXES = new IndexDef[]{
+        new IndexDef(2, "IX_ATTRIBUTE_ENTITYID", "Attribute", "entityId"),
+        // Derby only probes an IN list on the first column of an index
+        new IndexDef(5, "IX_ATTRIBUTEGRAM_GRAM", "AttributeGram", "gram, entityKind, name"),
+        new IndexDef(5, "IX_ATTRIBUTEGRAM_ENTITYID", "AttributeGram", "entityId, name"),
+        new IndexDef(6, "IX_ATTRIBUTE_LOWERKEY", "Attribute", "entityKind, name, type, lowerKey"),
+        // the ids follow the values, so the pages ordered by id or by a value
+        // are read in the order of the index. Derby can't scan an index
+        // backwards, so the descending pages have their own indexes.
+        new IndexDef(9, "IX_ENTITY_KIND_ID", "Entity", "kind, id"),
+        new IndexDef(9, "IX_ENTITY_KIND_ID_DESC", "Entity", "kind, id DESC"),
+        new IndexDef(9, "IX_ATTRIBUTE_VALUE_ID", "Attribute", "entityKind, name, type, valueKey, entityId"),
+        new IndexDef(9, "IX_ATTRIBUTE_VALUE_ID_DESC", "Attribute",
+                "entityKind, name, type, valueKey DESC, entityId DESC"),
+        new IndexDef(9, "IX_ATTRIBUTE_LONGVALUE_ID", "Attribute", "entityKind, name, type, longValue, entityId"),
+        new IndexDef(9, "IX_ATTRIBUTE_LONGVALUE_ID_DESC", "Attribute",
+                "entityKind, name, type, longValue DESC, entityId DESC")
+    };
+
+    private Schema() {
+    }
+
+    /**
+     * Brings the schema of the given database up to date. Creates the tables
+     * if the database is empty.
+     *
+     * @param conn The connection to the database.
+     *
+     * @throws DatabaseException If the migration fails, or the database has
+     * been created by a newer version.
+     */
+    static void migrate(Connection conn) throws DatabaseException {
+        Statement stmt = null;
+        boolean autoCommit = true;
+        try {
+            autoCommit = conn.getAutoCommit();
+            int version = getVersion(conn);
+            if (version > VERSION) {
+                throw new DatabaseException("The database schema version is " + version
+                        + " but only version " + VERSION + " is supported.");
+            }
+            if (version == VERSION) {
+                return;
+            }
+
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+            for (int v = version + 1; v <= VERSION; v++) {
+                Logger.getLogger(Schema.class.getName()).log(Level.INFO, "Migrating database schema to version {0}.", v);
+                migrateTo(stmt, v);
+                setVersion(conn, v);
+                conn.commit();
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex);
+            try {
+                conn.rollback();
+            } catch (SQLException ex1) {
+                Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+            throw new DatabaseException("Migrating database schema failed.", ex);
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ex) {
+                    Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            try {
+                conn.setAutoCommit(autoCommit);
+            } catch (SQLException ex) {
+                Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static void migrateTo(Statement stmt, int version) throws SQLException {
+        switch (version) {
+            case 1:
+                stmt.execute("CREATE TABLE Entity ("
+                        + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
+                        + "kind VARCHAR(4096) NOT NULL,"
+                        + "value BLOB)");
+                stmt.execute("CREATE TABLE Attribute ("
+                        + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
+                        + "entityId BIGINT NOT NULL,"
+                        + "entityKind VARCHAR(4096) NOT NULL,"
+                        + "name VARCHAR(128) NOT NULL,"
+                        + "type INT NOT NULL,"
+                        + "value VARCHAR(32000) NOT NULL)");
+                break;
+            case 2:
+                stmt.execute("CREATE TABLE Meta ("
+                        + "name VARCHAR(128) NOT NULL PRIMARY KEY,"
+                        + "value VARCHAR(4096))");
+                stmt.execute("ALTER TABLE Attribute ADD COLUMN valueKey VARCHAR(" + VALUE_KEY_LENGTH + ")");
+                stmt.execute("UPDATE Attribute SET valueKey = CASE WHEN LENGTH(value) > " + VALUE_KEY_LENGTH
+                        + " THEN SUBSTR(value, 1, " + VALUE_KEY_LENGTH + ") ELSE value END");
+                stmt.execute("ALTER TABLE Attribute ALTER COLUMN valueKey NOT NULL");
+                createIndexes(stmt, version);
+                break;
+            case 3:
+                stmt.execute("ALTER TABLE Attribute ADD COLUMN longValue BIGINT");
+                stmt.execute("UPDATE Attribute SET longValue = CAST(value AS BIGINT) WHERE type="
+                        + RelationalDB.AttributeDTO.EType.LONG.getType());
+                createIndexes(stmt, version);
+                break;
+            case 4:
+                stmt.execute("ALTER TABLE Entity ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+                break;
+            case 5:
+                stmt.execute("CREATE TABLE AttributeGram ("
+                        + "entityId BIGINT NOT NULL,"
+                        + "entityKind VARCHAR(4096) NOT NULL,"
+                        + "name VARCHAR(128) NOT NULL,"
+                        + "gram VARCHAR(" + GramIndex.GRAM_LENGTH + ") NOT NULL)");
+                stmt.execute("CREATE TABLE GramAttribute ("
+                        + "entityKind VARCHAR(4096) NOT NULL,"
+                        + "name VARCHAR(128) NOT NULL)");
+                createIndexes(stmt, version);
+                break;
+            case 6:
+                stmt.execute("ALTER TABLE Attribute ADD COLUMN lowerKey VARCHAR(" + VALUE_KEY_LENGTH + ")");
+                fillLowerKeys(stmt.getConnection());
+                createIndexes(stmt, version);
+                break;
+            case 7:
+                stmt.execute("ALTER TABLE GramAttribute ADD COLUMN stale SMALLINT NOT NULL DEFAULT 0");
+                break;
+            case 8:
+                // the lowercase keys and the grams are case folded, so they
+                // are rebuilt
+                fillLowerKeys(stmt.getConnection());
+                stmt.execute("UPDATE GramAttribute SET stale=1");
+                break;
+            case 9:
+                // replaced by the indexes which end with the id
+                dropIndexes(stmt, "Entity", "IX_ENTITY_KIND");
+                dropIndexes(stmt, "Attribute", "IX_ATTRIBUTE_VALUE", "IX_ATTRIBUTE_LONGVALUE");
+                createIndexes(stmt, version);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown schema version: " + version);
+        }
+    }
+
+    /**
+     * Fills the lowerKey column of the string attributes. It's filled in Java,
+     * because the writes fold the case of the values like the case
+     * insensitive comparisons of String, and the LOWER function of Derby
+     * doesn't.
+     */
+    private static void fillLowerKeys(Connection conn) throws SQLException {
+        Statement select = null;
+        PreparedStatement update = null;
+        ResultSet rs = null;
+        try {
+            select = conn.createStatement();
+            update = conn.prepareStatement("UPDATE Attribute SET lowerKey=? WHERE id=?");
+            rs = select.executeQuery("SELECT id, value FROM Attribute WHERE type="
+                    + RelationalDB.AttributeDTO.EType.STRING.getType());
+            int count = 0;
+            while (rs.next()) {
+                update.setString(1, toLowerKey(rs.getString(2)));
+                update.setLong(2, rs.getLong(1));
+                update.addBatch();
+                if (++count % 1000 == 0) {
+                    update.executeBatch();
+                }
+            }
+            update.executeBatch();
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (select != null) {
+                select.close();
+            }
+            if (update != null) {
+                update.close();
+            }
+        }
+    }
+
+    private static void createIndexes(Statement stmt, int version) throws SQLException {
+        for (IndexDef index : INDEXES) {
+            if (index.getVersion() == version) {
+                stmt.execute(index.getCreateSql());
+            }
+        }
+    }
+
+    /**
+     * Drops the given indexes of the given table which exist.
+     */
+    private static void dropIndexes(Statement stmt, String table, String... names) throws SQLException {
+        Set<String> existing = getIndexNames(stmt.getConnection(), table);
+        for (String name : names) {
+            if (existing.contains(name)) {
+                stmt.execute("DROP INDEX " + name);
+            }
+        }
+    }
+
+    private static int getVersion(Connection conn) throws SQLException {
+        if (!isTableExists(conn, "META")) {
+            return isTableExists(conn, "ENTITY") ? 1 : 0;
+        }
+
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SELECT value FROM Meta WHERE name='" + VERSION_NAME + "'");
+            if (rs.next()) {
+                return Integer.parseInt(rs.getString(1));
+            }
+            return 1;
+        } finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    private static void setVersion(Connection conn, int version) throws SQLException {
+        if (!isTableExists(conn, "META")) {
+            return;
+        }
+
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            int updated = stmt.executeUpdate("UPDATE Meta SET value='" + version + "' WHERE name='" + VERSION_NAME + "'");
+            if (updated < 1) {
+                stmt.execute("INSERT INTO Meta (name, value) VALUES ('" + VERSION_NAME + "', '" + version + "')");
+            }
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    private static boolean isTableExists(Connection conn, String tableName) throws SQLException {
+        ResultSet rs = conn.getMetaData().getTables(null, null, tableName, new String[]{"TABLE"});
+        try {
+            return rs.next();
+        } finally {
+            rs.close();
+        }
+    }
+
+    private static Set<String> getIndexNames(Connection conn, String tableName) throws SQLException {
+        Set<String> res = new HashSet<>();
+        ResultSet rs = conn.getMetaData().getIndexInfo(null, null, tableName.toUpperCase(), false, false);
+        try {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                if (name != null) {
+                    res.add(name.toUpperCase());
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        return res;
+    }
+
+    /**
+     * Checks the indexes of the database. Reports the missing indexes, and the
+     * tables whose indexes are inconsistent with the table data.
+     *
+     * @param conn The connection to the database.
+     *
+     * @return The list of the found problems. Empty if every index is healthy.
+     *
+     * @throws DatabaseException If the check can't be executed.
+     */
+    static List<String> checkIndexes(Connection conn) throws DatabaseException {
+        List<String> res = new ArrayList<>();
+        try {
+            for (String table : getIndexedTables()) {
+                Set<String> existing = getIndexNames(conn, table);
+                for (IndexDef index : INDEXES) {
+                    if (index.getTable().equals(table) && !existing.contains(index.getName())) {
+                        res.add("Missing index: " + index.getName() + " on table " + table + ".");
+                    }
+                }
+                String problem = checkTable(conn, table);
+                if (problem != null) {
+                    res.add("Inconsistent indexes on table " + table + ": " + problem);
+                }
+            }
+        } catch (SQLException ex) {
+            throw new DatabaseException("Checking indexes failed.", ex);
+        }
+        return res;
+    }
+
+    /**
+     * Recreates the missing indexes, and rebuilds the indexes of the tables
+     * which are reported as inconsistent by the Derby consistency checker.
+     *
+     * @param conn The connection to the database.
+     *
+     * @throws DatabaseException If the repair fails.
+     */
+    static void repairIndexes(Connection conn) throws DatabaseException {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            for (String table : getIndexedTables()) {
+                Set<String> existing = getIndexNames(conn, table);
+                boolean rebuild = checkTable(conn, table) != null;
+                for (IndexDef index : INDEXES) {
+                    if (!index.getTable().equals(table)) {
+                        continue;
+                    }
+                    if (existing.contains(index.getName())) {
+                        if (!rebuild) {
+                            continue;
+                        }
+                        stmt.execute("DROP INDEX " + index.getName());
+                    }
+                    Logger.getLogger(Schema.class.getName()).log(Level.INFO, "Creating index {0}.", index.getName());
+                    stmt.execute(index.getCreateSql());
+                }
+            }
+        } catch (SQLException ex) {
+            throw new DatabaseException("Repairing indexes failed.", ex);
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ex) {
+                    Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    private static String checkTable(Connection conn, String table) {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.executeQuery("VALUES SYSCS_UTIL.SYSCS_CHECK_TABLE(CURRENT SCHEMA, '" + table.toUpperCase() + "')").close();
+            return null;
+        } catch (SQLException ex) {
+            return ex.getMessage();
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException ex) {
+                    Logger.getLogger(Schema.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    private static Set<String> getIndexedTables() {
+        Set<String> res = new HashSet<>();
+        for (IndexDef index : INDEXES) {
+            res.add(index.getTable());
+        }
+        return res;
+    }
+
+    /**
+     * Returns the part of the given attribute value which is stored in the
+     * indexed valueKey column.
+     *
+     * @param value The attribute value.
+     *
+     * @return The indexed prefix of the value.
+     */
+    static String toValueKey(String value) {
+        if (value.length() > VALUE_KEY_LENGTH) {
+            return value.substring(0, VALUE_KEY_LENGTH);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the part of the given string attribute value which is stored in
+     * the indexed lowerKey column. The case insensitive operators compare
+     * against it.
+     *
+     * @param value The attribute value.
+     *
+     * @return The indexed prefix of the case folded value.
+     */
+    static String toLowerKey(String value) {
+        return toValueKey(foldCase(value));
+    }
+
+    /**
+     * Folds the case of the given value the way equalsIgnoreCase and
+     * regionMatches compare the characters, so two values are equal ignoring
+     * case exactly if their folded values are equal. Unlike toLowerCase, it
+     * maps every character to one character, so the folded value has the same
+     * length as the original.
+     *
+     * @param value The value.
+     *
+     * @return The case folded value.
+     */
+    static String foldCase(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ) {
+            int c = value.codePointAt(i);
+            sb.appendCodePoint(Character.toLowerCase(Character.toUpperCase(c)));
+            i += Character.charCount(c);
+        }
+        return sb.toString();
+    }
+
+    private static final class IndexDef {
+
+        private final int version;
+        private final String name;
+        private final String table;
+        private final String columns;
+
+        public IndexDef(int version, String name, String table, String columns) {
+            this.version = version;
+            this.name = name;
+            this.table = table;
+            this.columns = columns;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public String getCreateSql() {
+            return "CREATE INDEX " + name + " ON " + table + " (" + columns + ")";
+        }
+
+    }
+
+}
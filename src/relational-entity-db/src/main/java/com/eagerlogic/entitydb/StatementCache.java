@@ -0,0 +1,151 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, least recently used cache of the prepared statements of one
+ * connection. The cached statements are owned by the cache, so the callers
+ * must not close them, only the result sets created by them.
+ *
+ * Preparing a statement can evict and close an other cached statement, so a
+ * caller must finish reading a result set before it prepares the next
+ * statement.
+ *
+ * This class is not thread-safe. A cache and its connection can be used by
+ * only one thread at a time.
+ *
+ * @author dipacs
+ */
+final class StatementCache {
+
+    private final Connection conn;
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    public StatementCache(Connection conn, int maxSize) {
+        this.conn = conn;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL.
+     *
+     * @param sql The SQL of the statement.
+     *
+     * @return The cached statement, or a new one if the SQL isn't cached.
+     *
+     * @throws SQLException If the statement can't be prepared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, false);
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL which returns the
+     * generated keys.
+     *
+     * @param sql The SQL of the statement.
+     *
+     * @return The cached statement, or a new one if the SQL isn't cached.
+     *
+     * @throws SQLException If the statement can't be prepared.
+     */
+    public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        return prepare(sql, true);
+    }
+
+    private PreparedStatement prepare(String sql, boolean returnKeys) throws SQLException {
+        String key = (returnKeys ? "K:" : "N:") + sql;
+        PreparedStatement res = statements.get(key);
+        if (res != null) {
+            hitCount++;
+            return res;
+        }
+
+        missCount++;
+        if (returnKeys) {
+            res = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        } else {
+            res = conn.prepareStatement(sql);
+        }
+
+        if (maxSize > 0) {
+            statements.put(key, res);
+            evict();
+        }
+        return res;
+    }
+
+    /**
+     * Releases a statement returned by one of the prepare methods. Closes the
+     * statement if it isn't held by the cache.
+     *
+     * @param ps The statement.
+     */
+    public void release(PreparedStatement ps) {
+        if (ps != null && maxSize <= 0) {
+            close(ps);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+        while (statements.size() > maxSize && it.hasNext()) {
+            PreparedStatement ps = it.next().getValue();
+            it.remove();
+            evictionCount++;
+            close(ps);
+        }
+    }
+
+    /**
+     * Closes every cached statement.
+     */
+    public void clear() {
+        for (PreparedStatement ps : statements.values()) {
+            close(ps);
+        }
+        statements.clear();
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public int getSize() {
+        return statements.size();
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private static void close(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(StatementCache.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+}
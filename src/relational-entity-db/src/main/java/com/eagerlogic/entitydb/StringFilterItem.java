@@ -1,5 +1,13 @@
 package com.eagerlogic.entitydb;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  *
  * @author dipacs
@@ -11,12 +19,19 @@ public final class StringFilterItem extends AFilterItem {
 		GREATER,
 		EQUALS,
 		NOT_EQUALS,
-		CONTAINS
+		CONTAINS,
+		STARTS_WITH,
+		EQUALS_IGNORE_CASE,
+		IN
 	}
 	
 	private final String attributeName;
 	private final EOperator operator;
 	private final String referenceValue;
+	/**
+	 * The sorted distinct values of the IN operator.
+	 */
+	private final List<String> referenceValues;
 
 	public StringFilterItem(String attributeName, EOperator operator, String referenceValue) {
 		if (attributeName == null) {
@@ -25,12 +40,41 @@ public final class StringFilterItem extends AFilterItem {
 		if (operator == null) {
 			throw new NullPointerException("The operator parameter can not be null.");
 		}
+		if (operator == EOperator.IN) {
+			throw new IllegalArgumentException("The IN operator needs a collection of reference values.");
+		}
 		this.attributeName = attributeName;
 		this.operator = operator;
 		if (referenceValue == null) {
 			throw new NullPointerException("The referenceValue can not be null. Use NullFilterItem instead.");
 		}
 		this.referenceValue = referenceValue;
+		this.referenceValues = null;
+	}
+
+	/**
+	 * Creates an IN filter item, which matches the entities whose attribute
+	 * is one of the given values.
+	 *
+	 * @param attributeName The name of the attribute.
+	 * @param referenceValues The values.
+	 */
+	public StringFilterItem(String attributeName, Collection<String> referenceValues) {
+		if (attributeName == null) {
+			throw new NullPointerException("The attributeName parameter can not be null.");
+		}
+		if (referenceValues == null) {
+			throw new NullPointerException("The referenceValues parameter can not be null.");
+		}
+		for (String value : referenceValues) {
+			if (value == null) {
+				throw new NullPointerException("The referenceValues can not contain null. Use NullFilterItem instead.");
+			}
+		}
+		this.attributeName = attributeName;
+		this.operator = EOperator.IN;
+		this.referenceValue = null;
+		this.referenceValues = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(referenceValues)));
 	}
 
 	public String getAttributeName() {
@@ -41,26 +85,76 @@ public final class StringFilterItem extends AFilterItem {
 		return operator;
 	}
 
+	/**
+	 * Returns the reference value of the operator.
+	 *
+	 * @return The value, or null if the operator is IN.
+	 */
 	public String getReferenceValue() {
 		return referenceValue;
 	}
 
+	/**
+	 * Returns the values of the IN operator.
+	 *
+	 * @return The sorted distinct values, or null if the operator isn't IN.
+	 */
+	public List<String> getReferenceValues() {
+		return referenceValues;
+	}
+
     @Override
-    String getCondition() {
+    String getCondition(List<Object> params) {
         String res = "(type=" + RelationalDB.AttributeDTO.EType.STRING.getType()
-                + " AND name='" + attributeName.replace("'", "''") 
-                + "' AND ";
-        
+                + " AND name=? AND ";
+        params.add(attributeName);
+        if (operator == EOperator.IN) {
+            return getInCondition(res, params);
+        }
+        // the indexed valueKey column holds a prefix of the value, so it's
+        // used to narrow the range, and the value column decides. Derby pads
+        // the shorter value with spaces when it compares two values, so the
+        // lengths are compared too, and the ranges are widened to contain
+        // every value which is in the range by compareTo.
         if (operator == EOperator.CONTAINS) {
-            res += "LOWER(value) LIKE '%" + referenceValue.toLowerCase().replace("'", "''").replace("%", "\\%") + "%'";
+            // the values which are longer than the lowerKey column are
+            // decided by the predicate
+            res += "(lowerKey LIKE ? ESCAPE '\\' OR LENGTH(value)>?)";
+            params.add("%" + escapeLike(Schema.foldCase(referenceValue)) + "%");
+            params.add(Schema.VALUE_KEY_LENGTH);
         } else if (operator == EOperator.EQUALS) {
-            res += "value='" + referenceValue.replace("'", "''") + "'";
+            res += "valueKey=? AND value=? AND LENGTH(value)=?";
+            params.add(Schema.toValueKey(referenceValue));
+            params.add(referenceValue);
+            params.add(referenceValue.length());
         } else if (operator == EOperator.GREATER) {
-            res += "value>'" + referenceValue.replace("'", "''") + "'";
+            String bound = getGreaterBound();
+            if (bound == null) {
+                res += "1=1";
+            } else {
+                res += "valueKey>=? AND value>?";
+                params.add(Schema.toValueKey(bound));
+                params.add(bound);
+            }
         } else if (operator == EOperator.NOT_EQUALS) {
-            res += "value<>'" + referenceValue.replace("'", "''") + "'";
+            res += "(value<>? OR LENGTH(value)<>?)";
+            params.add(referenceValue);
+            params.add(referenceValue.length());
         } else if (operator == EOperator.SMALLER) {
-            res += "value<'" + referenceValue.replace("'", "''") + "'";
+            String bound = getSmallerBound();
+            res += "valueKey<=? AND value<=?";
+            params.add(Schema.toValueKey(bound));
+            params.add(bound);
+        } else if (operator == EOperator.STARTS_WITH) {
+            // Derby scans the index range of a LIKE pattern which starts with
+            // a literal prefix
+            res += "lowerKey LIKE ? ESCAPE '\\'";
+            params.add(escapeLike(Schema.toLowerKey(referenceValue)) + "%");
+        } else if (operator == EOperator.EQUALS_IGNORE_CASE) {
+            // the long references are decided by the predicate, see isExact
+            res += "lowerKey=? AND LENGTH(value)=?";
+            params.add(Schema.toLowerKey(referenceValue));
+            params.add(referenceValue.length());
         } else {
             throw new RuntimeException("Unknown StringFilterItem operator: " + operator.name());
         }
@@ -69,27 +163,193 @@ public final class StringFilterItem extends AFilterItem {
         return res;
     }
 
+    /**
+     * Returns the value which is smaller by Derby than every value which is
+     * greater than the reference by compareTo. Derby pads the values with
+     * spaces, so the characters which are smaller than a space at the end of
+     * the reference are cut.
+     *
+     * @return The bound, or null if every value can be greater.
+     */
+    private String getGreaterBound() {
+        for (int i = referenceValue.length() - 1; i >= 0; i--) {
+            if (referenceValue.charAt(i) > ' ') {
+                return referenceValue.substring(0, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value which is greater or equal by Derby than every value
+     * which is smaller than the reference by compareTo. If the reference
+     * contains a character which is smaller than a space, it's cut there and
+     * closed by the largest character.
+     */
+    private String getSmallerBound() {
+        for (int i = 0; i < referenceValue.length(); i++) {
+            if (referenceValue.charAt(i) < ' ') {
+                return referenceValue.substring(0, i) + '\uFFFF';
+            }
+        }
+        return referenceValue;
+    }
+
+    private String getInCondition(String res, List<Object> params) {
+        if (referenceValues.size() > MAX_IN_VALUES) {
+            return res + "1=1)";
+        }
+        List<String> keys = new ArrayList<>();
+        for (String value : referenceValues) {
+            keys.add(Schema.toValueKey(value));
+        }
+        res += getInCondition("valueKey", keys, params);
+        if (hasLongReferenceValue()) {
+            // the keys of the long values are prefixes, so the values decide
+            res += " AND " + getInCondition("value", referenceValues, params);
+        }
+        return res + ")";
+    }
+
+    private boolean hasLongReferenceValue() {
+        for (String value : referenceValues) {
+            if (value.length() >= Schema.VALUE_KEY_LENGTH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
-    boolean match(Entity entity) {
-        Object o = entity.getAttribute(attributeName);
-        if (!(o instanceof String)) {
-            return false;
+    String getLookupQuery(String kind, String alias, List<Object> params) {
+        if (operator != EOperator.IN || referenceValues.isEmpty() || referenceValues.size() > MAX_IN_VALUES
+                || hasLongReferenceValue()) {
+            return null;
         }
-        String s = (String) o;
-        
+
+        String res = "SELECT " + alias + ".entityId FROM "
+                + getValuesTable("VARCHAR(" + Schema.VALUE_KEY_LENGTH + ")", referenceValues, params)
+                + " v" + alias + ", Attribute " + alias + " WHERE " + alias + ".entityKind=? AND " + alias + ".name=? AND "
+                + alias + ".type=" + RelationalDB.AttributeDTO.EType.STRING.getType()
+                + " AND " + alias + ".valueKey=v" + alias + ".x";
+        params.add(kind);
+        params.add(attributeName);
+        return res;
+    }
+
+    @Override
+    boolean isExact() {
+        if (operator == EOperator.EQUALS || operator == EOperator.NOT_EQUALS) {
+            return true;
+        }
+        // the lowerKey column holds a prefix of the case folded value, so the
+        // predicate decides if the reference doesn't fit in it
+        if (operator == EOperator.STARTS_WITH) {
+            return referenceValue.length() <= Schema.VALUE_KEY_LENGTH;
+        }
+        if (operator == EOperator.EQUALS_IGNORE_CASE) {
+            return referenceValue.length() < Schema.VALUE_KEY_LENGTH;
+        }
+        // the IN lists and the ranges are compared with the padding of Derby,
+        // and CONTAINS selects the long values too
+        return false;
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    @Override
+    void addAttributeNames(Set<String> names) {
+        names.add(attributeName);
+    }
+
+    @Override
+    double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
         if (operator == EOperator.CONTAINS) {
-            return s.toLowerCase().contains(referenceValue.toLowerCase());
+            // CONTAINS can't use the value index, so it's never chosen to
+            // drive a query. The planner estimates the items which use the
+            // trigram index itself.
+            return 1.0;
+        }
+        if (statistics == null) {
+            if (operator == EOperator.EQUALS || operator == EOperator.EQUALS_IGNORE_CASE) {
+                return 0.01;
+            } else if (operator == EOperator.IN) {
+                return Math.min(1.0, referenceValues.size() * 0.01);
+            } else if (operator == EOperator.NOT_EQUALS) {
+                return 0.9;
+            } else if (operator == EOperator.STARTS_WITH) {
+                return 0.1;
+            }
+            return 0.3;
+        }
+
+        AttributeStatistics stats = statistics.get(attributeName);
+        if (stats == null || stats.getStringCount() == 0) {
+            return 0;
+        }
+        double equal = (double) stats.getStringCount() / Math.max(1, stats.getStringDistinctCount());
+        if (operator == EOperator.EQUALS || operator == EOperator.EQUALS_IGNORE_CASE) {
+            return stats.getRatio(equal);
+        } else if (operator == EOperator.IN) {
+            return stats.getRatio(equal * referenceValues.size());
+        } else if (operator == EOperator.NOT_EQUALS) {
+            return stats.getRatio(stats.getStringCount() - equal);
+        } else if (operator == EOperator.STARTS_WITH) {
+            // the distinct values aren't known by prefix, so it's guessed
+            return stats.getRatio(Math.max(equal, stats.getStringCount() / 10.0));
+        }
+        return stats.getRatio(stats.getStringCount() / 3.0);
+    }
+
+    @Override
+    APredicate compile() {
+        if (operator == EOperator.CONTAINS) {
+            return new APredicate.StringContains(attributeName, referenceValue);
         } else if (operator == EOperator.EQUALS) {
-            return s.equals(referenceValue);
+            return new APredicate.StringEquals(attributeName, referenceValue);
         } else if (operator == EOperator.GREATER) {
-            return s.compareTo(referenceValue) > 0;
+            return new APredicate.StringGreater(attributeName, referenceValue);
         } else if (operator == EOperator.NOT_EQUALS) {
-            return !s.equals(referenceValue);
+            return new APredicate.StringNotEquals(attributeName, referenceValue);
         } else if (operator == EOperator.SMALLER) {
-            return s.compareTo(referenceValue) < 0;
+            return new APredicate.StringSmaller(attributeName, referenceValue);
+        } else if (operator == EOperator.STARTS_WITH) {
+            return new APredicate.StringStartsWith(attributeName, referenceValue);
+        } else if (operator == EOperator.EQUALS_IGNORE_CASE) {
+            return new APredicate.StringEqualsIgnoreCase(attributeName, referenceValue);
+        } else if (operator == EOperator.IN) {
+            return new APredicate.StringIn(attributeName, referenceValues);
         } else {
             throw new RuntimeException("Unknown StringFilterItem operator: " + operator.name());
         }
     }
 
+    @Override
+    public int hashCode() {
+        int hash = attributeName.hashCode();
+        hash = 31 * hash + operator.hashCode();
+        hash = 31 * hash + (referenceValue == null ? 0 : referenceValue.hashCode());
+        hash = 31 * hash + (referenceValues == null ? 0 : referenceValues.hashCode());
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof StringFilterItem)) {
+            return false;
+        }
+        StringFilterItem other = (StringFilterItem) obj;
+        if (operator == EOperator.IN) {
+            return attributeName.equals(other.attributeName) && operator == other.operator
+                    && referenceValues.equals(other.referenceValues);
+        }
+        return attributeName.equals(other.attributeName) && operator == other.operator
+                && referenceValue.equals(other.referenceValue);
+    }
+
 }
@@ -0,0 +1,88 @@
+package com.eagerlogic.entitydb;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The base class of the tests which need a database. Every test gets a new
+ * database in a temporary directory.
+ *
+ * @author dipacs
+ */
+public abstract class ADatabaseTest {
+
+    static {
+        // keeps the log of Derby out of the working directory
+        System.setProperty("derby.stream.error.file", new File("target", "derby.log").getPath());
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    protected EntityDB edb;
+    protected DB db;
+
+    /**
+     * Returns the path of the database of the test.
+     */
+    protected String getPath() {
+        return new File(folder.getRoot(), "db").getAbsolutePath();
+    }
+
+    /**
+     * Opens the database of the test, and creates it if it doesn't exist.
+     */
+    protected DB open(EntityDBConfig config) throws Exception {
+        // closing a database shuts down Derby, which deregisters its driver,
+        // so it's loaded again
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        edb = EntityDB.connect(getPath(), config);
+        db = edb.getDB();
+        return db;
+    }
+
+    protected DB open() throws Exception {
+        return open(new EntityDBConfig());
+    }
+
+    /**
+     * Closes the database of the test, and opens it again with the given
+     * settings.
+     */
+    protected DB reopen(EntityDBConfig config) throws Exception {
+        close();
+        return open(config);
+    }
+
+    protected void close() {
+        if (edb != null && !edb.isClosed()) {
+            edb.close();
+        }
+        edb = null;
+        db = null;
+    }
+
+    @After
+    public void closeDatabase() {
+        close();
+    }
+
+    protected static Entity newEntity(String kind, Object... attributes) {
+        Entity res = new Entity(kind);
+        for (int i = 0; i < attributes.length; i += 2) {
+            String name = (String) attributes[i];
+            Object value = attributes[i + 1];
+            if (value instanceof Long) {
+                res.putAttribute(name, (Long) value);
+            } else if (value instanceof Boolean) {
+                res.putAttribute(name, (Boolean) value);
+            } else {
+                res.putAttribute(name, (String) value);
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the aggregate functions against the values computed in Java, with
+ * the exact filters, which are aggregated by the SQL, and the inexact ones,
+ * whose entities are loaded.
+ *
+ * @author dipacs
+ */
+public class AggregateTest extends ADatabaseTest {
+
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        String[] teams = {"red", "blue", "green"};
+        for (int i = 0; i < 40; i++) {
+            Entity e = newEntity("A", "team", teams[i % 3], "active", i % 4 != 0);
+            if (i % 5 != 0) {
+                // large values, so the sums don't fit in an int
+                e.putAttribute("points", (long) (i - 20) * 100000000L + i);
+            } else if (i % 10 == 0) {
+                // a string of the same name is left out
+                e.putAttribute("points", "1000");
+            }
+            entities.add(e);
+        }
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testExactFilter() {
+        Filter filter = new Filter("A", new BooleanFilterItem("active", true));
+        checkAll(filter);
+        checkAll(new Filter("A", null));
+    }
+
+    @Test
+    public void testInexactFilter() {
+        // the long CONTAINS reference can't be decided by the SQL
+        char[] reference = new char[Schema.VALUE_KEY_LENGTH + 1];
+        Arrays.fill(reference, 'x');
+        Filter filter = new Filter("A", new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                new StringFilterItem("team", StringFilterItem.EOperator.CONTAINS, new String(reference)),
+                new StringFilterItem("team", StringFilterItem.EOperator.EQUALS, "red")));
+        checkAll(filter);
+    }
+
+    @Test
+    public void testNoValues() {
+        Filter filter = new Filter("A", new StringFilterItem("team", StringFilterItem.EOperator.EQUALS, "none"));
+        assertEquals(0L, db.aggregate(filter, "points", EAggregate.COUNT));
+        for (EAggregate aggregate : new EAggregate[]{EAggregate.SUM, EAggregate.MIN, EAggregate.MAX, EAggregate.AVG}) {
+            assertNull(db.aggregate(filter, "points", aggregate));
+        }
+        assertEquals(0, db.aggregate(filter, "points", EAggregate.SUM, "team").size());
+        assertNull(db.aggregate(new Filter("A", null), "missing", EAggregate.MAX));
+    }
+
+    @Test
+    public void testAverage() {
+        db.put(newEntity("B", "n", 1L));
+        db.put(newEntity("B", "n", 2L));
+        assertEquals(1.5, db.aggregate(new Filter("B", null), "n", EAggregate.AVG).doubleValue(), 0);
+    }
+
+    private void checkAll(Filter filter) {
+        for (EAggregate aggregate : EAggregate.values()) {
+            String message = aggregate.name();
+            Number actual = db.aggregate(filter, "points", aggregate);
+            check(message, compute(filter, aggregate, null).get(null), actual);
+
+            Map<Object, Number> expected = compute(filter, aggregate, "team");
+            Map<Object, Number> groups = db.aggregate(filter, "points", aggregate, "team");
+            assertEquals(message, expected.keySet(), groups.keySet());
+            for (Object key : expected.keySet()) {
+                check(message + " " + key, expected.get(key), groups.get(key));
+            }
+        }
+    }
+
+    private static void check(String message, Number expected, Number actual) {
+        if (expected instanceof Double) {
+            assertEquals(message, expected.doubleValue(), actual.doubleValue(), 1e-6);
+        } else {
+            assertEquals(message, expected, actual);
+        }
+    }
+
+    /**
+     * Computes the aggregate of the points in Java, by the given group
+     * attribute, or in one group with the null key.
+     */
+    private Map<Object, Number> compute(Filter filter, EAggregate aggregate, String groupBy) {
+        Map<Object, List<Long>> values = new HashMap<>();
+        for (Entity e : entities) {
+            Object points = e.getAttribute("points");
+            if (!filter.match(e) || !(points instanceof Long)) {
+                continue;
+            }
+            Object key = groupBy == null ? null : e.getAttribute(groupBy);
+            if (!values.containsKey(key)) {
+                values.put(key, new ArrayList<Long>());
+            }
+            values.get(key).add((Long) points);
+        }
+
+        Map<Object, Number> res = new HashMap<>();
+        for (Map.Entry<Object, List<Long>> entry : values.entrySet()) {
+            List<Long> list = entry.getValue();
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long value : list) {
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            Number result;
+            switch (aggregate) {
+                case COUNT:
+                    result = (long) list.size();
+                    break;
+                case SUM:
+                    result = sum;
+                    break;
+                case MIN:
+                    result = min;
+                    break;
+                case MAX:
+                    result = max;
+                    break;
+                default:
+                    result = (double) sum / list.size();
+            }
+            res.put(entry.getKey(), result);
+        }
+        return res;
+    }
+
+}
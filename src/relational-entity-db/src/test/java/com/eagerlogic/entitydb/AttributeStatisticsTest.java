@@ -0,0 +1,118 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the collected statistics, and the selectivities which are estimated
+ * from them, against the real ratios of the matched entities.
+ *
+ * @author dipacs
+ */
+public class AttributeStatisticsTest extends ADatabaseTest {
+
+    private static final String KIND = "S";
+    private static final double TOLERANCE = 0.05;
+
+    private Map<String, AttributeStatistics> statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Entity e = newEntity(KIND, "uniform", (long) i, "status", i % 5 == 0 ? "closed" : "open " + (i % 5));
+            // most values are small, and a few are spread up to 1000
+            e.putAttribute("skewed", i < 180 ? (long) (i % 10) : (long) (i - 180) * 50 + 50);
+            if (i % 2 == 0) {
+                e.putAttribute("flag", i % 4 == 0);
+            }
+            entities.add(e);
+        }
+        // an entity without any of the attributes
+        entities.add(new Entity(KIND));
+        db.putAll(entities);
+        edb.refreshStatistics(KIND);
+        statistics = edb.getStatistics(KIND);
+    }
+
+    @Test
+    public void testCollected() {
+        AttributeStatistics uniform = statistics.get("uniform");
+        assertEquals(201, uniform.getEntityCount());
+        assertEquals(200, uniform.getCount());
+        assertEquals(200, uniform.getLongDistinctCount());
+        assertEquals(0, uniform.getMinLong());
+        assertEquals(199, uniform.getMaxLong());
+        long sum = 0;
+        for (long count : uniform.getLongHistogram()) {
+            sum += count;
+        }
+        assertEquals(200, sum);
+
+        AttributeStatistics status = statistics.get("status");
+        assertEquals(200, status.getStringCount());
+        assertEquals(5, status.getStringDistinctCount());
+        assertEquals(0, status.getLongCount());
+        assertArrayEquals(new long[0], status.getLongHistogram());
+
+        assertEquals(100, statistics.get("flag").getBooleanCount());
+        assertNull(statistics.get("missing"));
+    }
+
+    @Test
+    public void testLongEstimates() {
+        for (long reference : new long[]{-5, 0, 17, 100, 150, 199, 250}) {
+            check(new LongFilterItem("uniform", LongFilterItem.EOperator.GREATER, reference));
+            check(new LongFilterItem("uniform", LongFilterItem.EOperator.SMALLER, reference));
+            check(new LongFilterItem("uniform", LongFilterItem.EOperator.EQUALS, reference));
+        }
+        check(new LongFilterItem("uniform", LongFilterItem.EOperator.NOT_EQUALS, 5));
+    }
+
+    @Test
+    public void testSkewedHistogram() {
+        // the histogram sees that few values are large, which the range
+        // between the smallest and the largest value wouldn't show
+        LongFilterItem large = new LongFilterItem("skewed", LongFilterItem.EOperator.GREATER, 60);
+        check(large);
+        assertTrue(large.estimateSelectivity(statistics) < 0.15);
+        check(new LongFilterItem("skewed", LongFilterItem.EOperator.SMALLER, 500));
+    }
+
+    @Test
+    public void testOtherEstimates() {
+        check(new StringFilterItem("status", StringFilterItem.EOperator.NOT_EQUALS, "closed"));
+        check(new StringFilterItem("status", StringFilterItem.EOperator.EQUALS, "open 3"));
+        check(new BooleanFilterItem("flag", true));
+        check(new NullFilterItem("flag", NullFilterItem.EOperator.NOT_NULL));
+
+        // an attribute which the kind doesn't have matches nothing
+        assertEquals(0, new LongFilterItem("missing", LongFilterItem.EOperator.GREATER, 0)
+                .estimateSelectivity(statistics), 0);
+        assertEquals(0, new LongFilterItem("status", LongFilterItem.EOperator.GREATER, 0)
+                .estimateSelectivity(statistics), 0);
+    }
+
+    /**
+     * Checks that the estimated selectivity of the given item is close to
+     * the real one.
+     */
+    private void check(AFilterItem item) {
+        double estimated = item.estimateSelectivity(statistics);
+        double actual = actual(item);
+        assertEquals(item.toString(), actual, estimated, TOLERANCE);
+    }
+
+    private double actual(AFilterItem item) {
+        return (double) db.count(new Filter(KIND, item)) / db.countAll(KIND);
+    }
+
+}
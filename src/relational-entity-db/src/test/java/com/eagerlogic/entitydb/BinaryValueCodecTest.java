@@ -0,0 +1,155 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the round-trips of the values through the binary codec and the
+ * database, and the reading of the Java serialized values of the earlier
+ * versions.
+ *
+ * @author dipacs
+ */
+public class BinaryValueCodecTest extends ADatabaseTest {
+
+    @Test
+    public void testRoundTrip() {
+        EntityValue nested = new EntityValue();
+        nested.put("deep", "yes");
+        EntityValue value = new EntityValue();
+        value.put("null", null);
+        value.put("true", true);
+        value.put("false", false);
+        value.put("byte", (byte) -7);
+        value.put("short", (short) -300);
+        value.put("char", 'ő');
+        value.put("int", Integer.MIN_VALUE);
+        value.put("long", Long.MAX_VALUE);
+        value.put("float", 1.5f);
+        value.put("double", -3.25);
+        value.put("string", "héllo 世界");
+        value.put("empty", "");
+        value.put("bytes", new byte[]{1, 2, 3});
+        value.put("list", Arrays.asList(1L, "x", null, Arrays.asList(2, 3)));
+        value.put("nested", nested);
+        value.put("date", new Date(1234567L));
+
+        byte[] data = BinaryValueCodec.INSTANCE.encode(value);
+        assertEquals('E', data[0]);
+        EntityValue res = BinaryValueCodec.INSTANCE.read(data);
+
+        assertEquals(value.getNames(), res.getNames());
+        for (String name : value.getNames()) {
+            if (!name.equals("bytes") && !name.equals("nested")) {
+                assertEquals(name, value.get(name), res.get(name));
+            }
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) res.get("bytes"));
+        assertEquals("yes", ((EntityValue) res.get("nested")).get("deep"));
+        assertEquals(Byte.class, res.get("byte").getClass());
+        assertEquals(Short.class, res.get("short").getClass());
+        assertEquals(Integer.class, ((List<?>) ((List<?>) res.get("list")).get(3)).get(0).getClass());
+    }
+
+    @Test
+    public void testSubclassRoundTrip() {
+        LegacyValue value = new LegacyValue("old");
+        byte[] data = BinaryValueCodec.INSTANCE.encode(value);
+        assertTrue(AValueCodec.isJavaSerialized(data));
+
+        EntityValue res = BinaryValueCodec.INSTANCE.read(data);
+        assertEquals(LegacyValue.class, res.getClass());
+        assertEquals("old", ((LegacyValue) res).getText());
+    }
+
+    @Test
+    public void testStoredRoundTrip() throws Exception {
+        open();
+        EntityValue value = new EntityValue();
+        value.put("text", "stored");
+        value.put("number", 42);
+        Entity e = new Entity("V");
+        e.setValue(value);
+        db.put(e);
+
+        Entity res = db.get(e.getId());
+        assertEquals("stored", res.getValue().get("text"));
+        assertEquals(42, (int) res.getValue().get("number"));
+
+        Entity empty = new Entity("V");
+        db.put(empty);
+        assertNull(db.get(empty.getId()).getValue());
+    }
+
+    @Test
+    public void testLegacyValue() throws Exception {
+        open();
+        Entity e = newEntity("V", "name", "legacy");
+        db.put(e);
+
+        // stores the value like the earlier versions did
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new LegacyValue("serialized"));
+        out.close();
+        byte[] data = bytes.toByteArray();
+        assertEquals(0xAC, data[0] & 0xFF);
+        assertEquals(0xED, data[1] & 0xFF);
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            PreparedStatement ps = conn.prepareStatement("UPDATE Entity SET value=? WHERE id=?");
+            ps.setBytes(1, data);
+            ps.setLong(2, e.getId());
+            assertEquals(1, ps.executeUpdate());
+            ps.close();
+        } finally {
+            conn.close();
+        }
+
+        Entity res = db.get(e.getId());
+        assertEquals("serialized", ((LegacyValue) res.getValue()).getText());
+
+        // it's stored again unchanged if only the attributes are changed
+        res.putAttribute("name", "changed");
+        db.put(res);
+        assertEquals("serialized", ((LegacyValue) db.get(e.getId()).getValue()).getText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownData() {
+        BinaryValueCodec.INSTANCE.read(new byte[]{'X', 1, 0});
+    }
+
+    /**
+     * A value class of an application, which has been stored with Java
+     * serialization.
+     */
+    public static class LegacyValue extends EntityValue implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+
+        public LegacyValue(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+    }
+
+}
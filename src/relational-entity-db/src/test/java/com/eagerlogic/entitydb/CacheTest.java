@@ -0,0 +1,149 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the entity cache and the query cache are invalidated by the
+ * writes, and that they don't keep the state of the transactions.
+ *
+ * @author dipacs
+ */
+public class CacheTest extends ADatabaseTest {
+
+    private final Filter adults = new Filter("C", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 17));
+
+    private Entity stored;
+
+    @Before
+    public void setUp() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setEntityCacheSize(100);
+        config.setQueryCacheSize(100);
+        open(config);
+        stored = newEntity("C", "age", 20L);
+        db.put(stored);
+    }
+
+    @Test
+    public void testEntityCache() throws Exception {
+        db.get(stored.getId());
+        long hits = edb.getEntityCacheStats().getHitCount();
+        Entity cached = db.get(stored.getId());
+        assertEquals(hits + 1, edb.getEntityCacheStats().getHitCount());
+
+        // the cache returns copies
+        cached.putAttribute("age", 99L);
+        assertEquals(20L, (long) db.get(stored.getId()).getLongAttribute("age"));
+
+        stored.putAttribute("age", 21L);
+        db.put(stored);
+        assertEquals(21L, (long) db.get(stored.getId()).getLongAttribute("age"));
+        assertEquals(21L, (long) db.getAll(Collections.singletonList(stored.getId())).get(stored.getId())
+                .getLongAttribute("age"));
+
+        db.delete(stored.getId());
+        assertNull(db.get(stored.getId()));
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        assertEquals(Collections.singleton(stored.getId()), db.queryKeys(adults));
+        long hits = edb.getQueryCacheStats().getHitCount();
+        assertEquals(Collections.singleton(stored.getId()), db.queryKeys(adults));
+        assertEquals(1, db.count(adults));
+        assertTrue(edb.getQueryCacheStats().getHitCount() > hits);
+
+        Entity other = newEntity("C", "age", 30L);
+        db.put(other);
+        assertEquals(2, db.queryKeys(adults).size());
+        assertEquals(2, db.query(adults).size());
+
+        other.putAttribute("age", 10L);
+        db.put(other);
+        assertEquals(Collections.singleton(stored.getId()), db.queryKeys(adults));
+
+        db.delete(stored.getId());
+        assertEquals(0, db.count(adults));
+        assertEquals(false, db.exists(adults));
+    }
+
+    @Test
+    public void testCleanPut() throws Exception {
+        db.queryKeys(adults);
+        db.get(stored.getId());
+
+        // nothing is written for the clean entities, so the caches are kept
+        db.put(stored);
+        db.putAll(Arrays.asList(stored, db.get(stored.getId())));
+        long queryHits = edb.getQueryCacheStats().getHitCount();
+        long entityHits = edb.getEntityCacheStats().getHitCount();
+        assertEquals(Collections.singleton(stored.getId()), db.queryKeys(adults));
+        db.get(stored.getId());
+        assertEquals(queryHits + 1, edb.getQueryCacheStats().getHitCount());
+        assertEquals(entityHits + 1, edb.getEntityCacheStats().getHitCount());
+
+        stored.putAttribute("age", 10L);
+        db.putAll(Arrays.asList(stored));
+        queryHits = edb.getQueryCacheStats().getHitCount();
+        assertEquals(0, db.queryKeys(adults).size());
+        assertEquals(queryHits, edb.getQueryCacheStats().getHitCount());
+    }
+
+    @Test
+    public void testRolledBackTransaction() throws Exception {
+        // fills both caches
+        db.get(stored.getId());
+        db.queryKeys(adults);
+
+        final Entity inserted = newEntity("C", "age", 40L);
+        try {
+            new ATransaction<Void>(db) {
+
+                @Override
+                protected Void onExecute(DB db) throws TransactionException {
+                    stored.putAttribute("age", 5L);
+                    db.put(stored);
+                    db.put(inserted);
+                    // the transaction sees its own writes, not the caches
+                    assertEquals(5L, (long) db.get(stored.getId()).getLongAttribute("age"));
+                    assertEquals(Collections.singleton(inserted.getId()), db.queryKeys(adults));
+                    assertEquals(1, db.count(adults));
+                    throw new TransactionException("rollback");
+                }
+
+            }.execute();
+        } catch (TransactionException ex) {
+            assertEquals("rollback", ex.getMessage());
+        }
+
+        assertEquals(20L, (long) db.get(stored.getId()).getLongAttribute("age"));
+        assertEquals(Collections.singleton(stored.getId()), db.queryKeys(adults));
+    }
+
+    @Test
+    public void testCommittedTransaction() throws Exception {
+        db.get(stored.getId());
+        db.queryKeys(adults);
+
+        new ATransaction<Void>(db) {
+
+            @Override
+            protected Void onExecute(DB db) {
+                stored.putAttribute("age", 5L);
+                db.put(stored);
+                return null;
+            }
+
+        }.execute();
+
+        assertEquals(5L, (long) db.get(stored.getId()).getLongAttribute("age"));
+        assertEquals(0, db.queryKeys(adults).size());
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the pool of the reader connections, and the reads which run on
+ * them concurrently.
+ *
+ * @author dipacs
+ */
+public class ConnectionPoolTest extends ADatabaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setReaderPoolSize(2);
+        open(config);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        final ConnectionPool pool = new ConnectionPool("jdbc:derby:" + getPath(), 2, 4);
+        try {
+            StatementCache first = pool.borrow();
+            StatementCache second = pool.borrow();
+            assertEquals(2, pool.getConnections().size());
+
+            // the third borrower waits for a released connection
+            final CountDownLatch started = new CountDownLatch(1);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<StatementCache> third = executor.submit(new Callable<StatementCache>() {
+
+                @Override
+                public StatementCache call() {
+                    started.countDown();
+                    return pool.borrow();
+                }
+
+            });
+            started.await();
+            Thread.sleep(100);
+            assertFalse(third.isDone());
+
+            pool.release(second);
+            assertSame(second, third.get(10, TimeUnit.SECONDS));
+            assertEquals(2, pool.getConnections().size());
+            executor.shutdown();
+
+            // the last released connection is reused first
+            pool.release(first);
+            pool.release(second);
+            assertSame(second, pool.borrow());
+            pool.release(second);
+        } finally {
+            pool.close();
+        }
+        for (StatementCache cache : pool.getConnections()) {
+            assertTrue(cache.getConnection().isClosed());
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            entities.add(newEntity("R", "n", (long) i));
+        }
+        db.putAll(entities);
+
+        // more readers than connections, so some of them wait
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                final long bound = i * 5;
+                results.add(executor.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() {
+                        Filter filter = new Filter("R", new LongFilterItem("n", LongFilterItem.EOperator.SMALLER, bound));
+                        return db.count(filter) + db.query(filter).size();
+                    }
+
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(Long.valueOf(i * 10), results.get(i).get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an update rewrites only the attribute rows which have changed.
+ * The attribute rows are compared by their ids on the closed database.
+ *
+ * @author dipacs
+ */
+public class DiffUpdateTest extends ADatabaseTest {
+
+    @Test
+    public void testChangedRows() throws Exception {
+        open();
+        Entity entity = newEntity("D", "same", "x", "changed", 1L, "retyped", 5L, "removed", true);
+        db.put(entity);
+        long id = entity.getId();
+        Map<String, Object[]> before = readRows(id);
+        open();
+
+        entity = db.get(id);
+        entity.putAttribute("changed", 2L);
+        entity.putAttribute("retyped", "five");
+        entity.putAttribute("removed", (Boolean) null);
+        entity.putAttribute("added", "new");
+        db.put(entity);
+
+        // the typed columns of the retyped row are filtered correctly
+        assertEquals(0, db.count(new Filter("D", new LongFilterItem("retyped", LongFilterItem.EOperator.EQUALS, 5))));
+        assertEquals(1, db.count(new Filter("D", new StringFilterItem("retyped", StringFilterItem.EOperator.EQUALS, "five"))));
+        Map<String, Object[]> after = readRows(id);
+
+        assertEquals(before.get("same")[0], after.get("same")[0]);
+        // the changed rows are updated in place
+        assertEquals(before.get("changed")[0], after.get("changed")[0]);
+        assertEquals(2L, after.get("changed")[2]);
+        assertEquals(before.get("retyped")[0], after.get("retyped")[0]);
+        assertEquals(RelationalDB.AttributeDTO.EType.STRING.getType(), after.get("retyped")[1]);
+        assertNull(after.get("retyped")[2]);
+        assertFalse(after.containsKey("removed"));
+        assertTrue(after.containsKey("added"));
+        assertEquals(4, after.size());
+    }
+
+    @Test
+    public void testUnknownAttributesKept() throws Exception {
+        open();
+        Entity stored = newEntity("D", "a", 1L, "b", 2L);
+        db.put(stored);
+        long id = stored.getId();
+
+        // a projection knows only some attributes, so the others are kept
+        Projection projection = new Projection(false, "a");
+        Entity partial = db.query(new Filter("D", null), projection).get(0);
+        partial.putAttribute("a", 10L);
+        db.put(partial);
+
+        Entity loaded = db.get(id);
+        assertEquals(Long.valueOf(10), loaded.getLongAttribute("a"));
+        assertEquals(Long.valueOf(2), loaded.getLongAttribute("b"));
+        Map<String, Object[]> rows = readRows(id);
+        assertEquals(2, rows.size());
+    }
+
+    /**
+     * Closes the database, and reads the id, the type and the long value of
+     * the attribute rows of the given entity by their names.
+     */
+    private Map<String, Object[]> readRows(long entityId) throws Exception {
+        close();
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            PreparedStatement ps = conn.prepareStatement("SELECT name, id, type, longValue FROM Attribute WHERE entityId=?");
+            ps.setLong(1, entityId);
+            ResultSet rs = ps.executeQuery();
+            Map<String, Object[]> res = new HashMap<>();
+            while (rs.next()) {
+                long longValue = rs.getLong(4);
+                Long value = rs.wasNull() ? null : longValue;
+                res.put(rs.getString(1), new Object[]{rs.getLong(2), rs.getInt(3), value});
+            }
+            rs.close();
+            ps.close();
+            return res;
+        } finally {
+            conn.close();
+        }
+    }
+
+}
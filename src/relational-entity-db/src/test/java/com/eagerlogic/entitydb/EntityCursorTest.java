@@ -0,0 +1,113 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the cursors, which load the results in small batches.
+ *
+ * @author dipacs
+ */
+public class EntityCursorTest extends ADatabaseTest {
+
+    private static final int BATCH_SIZE = 4;
+
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setCursorBatchSize(BATCH_SIZE);
+        open(config);
+        for (int i = 0; i < 30; i++) {
+            // only the last few entities contain "end", in a partial batch
+            entities.add(newEntity("C", "n", (long) i, "text", i < 25 ? "item " + i : "the end " + i));
+        }
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testSameAsQuery() {
+        Filter[] filters = {
+            new Filter("C", new LongFilterItem("n", LongFilterItem.EOperator.GREATER, 6)),
+            new Filter("C", new StringFilterItem("text", StringFilterItem.EOperator.CONTAINS, "END")),
+            new Filter("C", new LongFilterItem("n", LongFilterItem.EOperator.SMALLER, 0))
+        };
+        for (Filter filter : filters) {
+            List<Long> expected = new ArrayList<>();
+            for (Entity e : db.query(filter)) {
+                expected.add(e.getId());
+            }
+            assertEquals(expected, readIds(db.iterate(filter)));
+        }
+
+        List<Long> all = new ArrayList<>();
+        for (Entity e : entities) {
+            all.add(e.getId());
+        }
+        assertEquals(all, readIds(db.iterateAll("C")));
+    }
+
+    @Test
+    public void testWritesDuringIteration() {
+        EntityCursor cursor = db.iterateAll("C");
+        try {
+            assertEquals(entities.get(0).getId(), cursor.next().getId());
+
+            // the deleted entity of a later batch isn't returned, but the
+            // new entity is, because its id is after the position
+            db.delete(entities.get(20).getId());
+            Entity added = newEntity("C", "n", 100L);
+            db.put(added);
+
+            List<Long> rest = readIds(cursor);
+            assertEquals(entities.size() - 1, rest.size());
+            assertFalse(rest.contains(entities.get(20).getId()));
+            assertEquals(added.getId(), (long) rest.get(rest.size() - 1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testClosed() {
+        EntityCursor cursor = db.iterateAll("C");
+        assertTrue(cursor.hasNext());
+        cursor.close();
+        try {
+            cursor.hasNext();
+            fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        cursor = db.iterate(new Filter("C", new LongFilterItem("n", LongFilterItem.EOperator.EQUALS, 3)));
+        assertEquals(Long.valueOf(3), cursor.next().getLongAttribute("n"));
+        try {
+            cursor.next();
+            fail();
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+    }
+
+    private static List<Long> readIds(EntityCursor cursor) {
+        List<Long> res = new ArrayList<>();
+        try {
+            while (cursor.hasNext()) {
+                res.add(cursor.next().getId());
+            }
+        } finally {
+            cursor.close();
+        }
+        return res;
+    }
+
+}
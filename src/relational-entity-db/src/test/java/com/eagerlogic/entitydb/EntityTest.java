@@ -0,0 +1,176 @@
+package com.eagerlogic.entitydb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the serialization and the dirty tracking of the entities.
+ *
+ * @author dipacs
+ */
+public class EntityTest extends ADatabaseTest {
+
+    /**
+     * An entity of kind "S" with the id 1 and the attributes name="John" and
+     * age=42, as it was serialized by the first version of the class, which
+     * didn't have the stored state.
+     */
+    private static final String BASELINE_STREAM = "aced00057372001e636f6d2e65616765726c6f6769632e656e7469747964622e456e746974798a54bfdc5556e2930200044a000269644c000a6174747269627574657374000f4c6a6176612f7574696c2f4d61703b4c00046b696e647400124c6a6176612f6c616e672f537472696e673b5b000576616c75657400025b4278700000000000000001737200116a6176612e7574696c2e486173684d61700507dac1c31660d103000246000a6c6f6164466163746f724900097468726573686f6c6478703f4000000000000c770800000010000000027400046e616d657400044a6f686e7400036167657372000e6a6176612e6c616e672e4c6f6e673b8be490cc8f23df0200014a000576616c7565787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b0200007870000000000000002a787400015370";
+
+    @Test
+    public void testBaselineStream() throws Exception {
+        open();
+        Entity stored = newEntity("S", "name", "Old", "gone", true);
+        db.put(stored);
+        assertEquals(1, stored.getId());
+
+        Entity e = (Entity) deserialize(parseHex(BASELINE_STREAM));
+        assertEquals(1, e.getId());
+        assertEquals("S", e.getKind());
+        assertEquals("John", e.getStringAttribute("name"));
+        assertEquals(Long.valueOf(42), e.getLongAttribute("age"));
+        // the stored state is unknown, so the whole entity is written
+        assertFalse(e.isTracked());
+        assertTrue(e.isValueDirty());
+
+        db.put(e);
+        Entity loaded = db.get(1);
+        assertEquals("John", loaded.getStringAttribute("name"));
+        assertEquals(Long.valueOf(42), loaded.getLongAttribute("age"));
+        assertNull(loaded.getBooleanAttribute("gone"));
+        assertEquals(0, db.count(new Filter("S", new BooleanFilterItem("gone", true))));
+    }
+
+    @Test
+    public void testStoredStateRoundTrip() throws Exception {
+        open();
+        db.put(newEntity("S", "name", "John"));
+        Entity e = (Entity) deserialize(serialize(db.get(1)));
+        assertTrue(e.isTracked());
+        assertFalse(e.isDirty());
+
+        e.putAttribute("name", "Mary");
+        e = (Entity) deserialize(serialize(e));
+        assertEquals(1, e.getDirtyAttributes().size());
+        assertFalse(e.isValueDirty());
+        db.put(e);
+        assertEquals("Mary", db.get(1).getStringAttribute("name"));
+    }
+
+    @Test
+    public void testDirtyState() {
+        Entity e = newEntity("S", "name", "John", "age", 42L);
+        assertFalse(e.isTracked());
+        assertTrue(e.isDirty());
+
+        e.markClean();
+        assertFalse(e.isDirty());
+        // setting the same value doesn't make it dirty
+        e.putAttribute("name", new String("John"));
+        assertFalse(e.isDirty());
+
+        e.putAttribute("age", 43L);
+        e.putAttribute("age", 42L);
+        assertFalse(e.isDirty());
+
+        e.putAttribute("age", (Long) null);
+        e.putAttribute("city", "Pest");
+        assertEquals(new HashSet<>(Arrays.asList("age", "city")), e.getDirtyAttributes());
+        assertFalse(e.isValueDirty());
+
+        e.markClean();
+        e.setValue(new EntityValue());
+        assertTrue(e.getDirtyAttributes().isEmpty());
+        assertTrue(e.isValueDirty());
+    }
+
+    @Test
+    public void testPartialWrites() throws Exception {
+        final AtomicInteger encoded = new AtomicInteger();
+        EntityDBConfig config = new EntityDBConfig();
+        config.setValueCodec(new AValueCodec() {
+
+            @Override
+            public byte[] encode(EntityValue value) {
+                encoded.incrementAndGet();
+                return BinaryValueCodec.INSTANCE.encode(value);
+            }
+
+            @Override
+            public EntityValue decode(byte[] data) {
+                return BinaryValueCodec.INSTANCE.decode(data);
+            }
+
+        });
+        open(config);
+
+        Entity e = newEntity("S", "x", 1L, "y", 1L);
+        EntityValue value = new EntityValue();
+        value.put("note", "first");
+        e.setValue(value);
+        db.put(e);
+        assertEquals(1, encoded.get());
+
+        // two copies change different attributes, and both changes are kept,
+        // because only the dirty attributes are written
+        Entity first = db.get(e.getId());
+        Entity second = db.get(e.getId());
+        first.putAttribute("x", 2L);
+        second.putAttribute("y", 3L);
+        db.put(first);
+        db.put(second);
+        // a clean copy writes nothing
+        db.put(db.get(e.getId()));
+        assertEquals(1, encoded.get());
+
+        Entity loaded = db.get(e.getId());
+        assertEquals(Long.valueOf(2), loaded.getLongAttribute("x"));
+        assertEquals(Long.valueOf(3), loaded.getLongAttribute("y"));
+        assertEquals("first", loaded.getValue().get("note"));
+
+        // the value of the other copy isn't overwritten by an attribute change
+        loaded.getValue().put("note", "second");
+        loaded.setValue(loaded.getValue());
+        db.put(loaded);
+        first.putAttribute("x", 4L);
+        db.put(first);
+        assertEquals(2, encoded.get());
+        assertEquals("second", db.get(e.getId()).getValue().get("note"));
+    }
+
+    private static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(o);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] parseHex(String hex) {
+        byte[] res = new byte[hex.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return res;
+    }
+
+}
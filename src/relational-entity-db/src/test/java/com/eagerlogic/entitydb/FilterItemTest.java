@@ -0,0 +1,145 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the edge cases of the IN, STARTS_WITH and EQUALS_IGNORE_CASE
+ * operators through every query of the database.
+ *
+ * @author dipacs
+ */
+public class FilterItemTest extends ADatabaseTest {
+
+    private static final String BASE = repeat('a', Schema.VALUE_KEY_LENGTH);
+
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        String[] names = {"John", "JOHNNY", "jo%n", "jo_n", "jo\\n", "Mary",
+            BASE, BASE + "XyZ", BASE + "xyz", BASE + "xq", repeat('a', Schema.VALUE_KEY_LENGTH - 1), "B" + BASE};
+        for (int i = 0; i < names.length; i++) {
+            entities.add(newEntity("F", "name", names[i], "n", (long) i));
+        }
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testLongIn() {
+        check(new LongFilterItem("n", Collections.<Long>emptyList()));
+        check(new LongFilterItem("n", Arrays.asList(3L, 1L, 3L, 100L)), 1, 3);
+
+        List<Long> many = new ArrayList<>();
+        for (long i = 0; i < AFilterItem.MAX_IN_VALUES + 10; i += 2) {
+            many.add(i);
+        }
+        check(new LongFilterItem("n", many), 0, 2, 4, 6, 8, 10);
+    }
+
+    @Test
+    public void testStringIn() {
+        check(new StringFilterItem("name", Collections.<String>emptyList()));
+        check(new StringFilterItem("name", Arrays.asList("Mary", "John", "Mary", "john")), 0, 5);
+
+        // the long values are decided by the whole value, not by the key
+        check(new StringFilterItem("name", Arrays.asList(BASE + "xyz", "Mary")), 5, 8);
+        check(new StringFilterItem("name", Arrays.asList(BASE)), 6);
+
+        List<String> many = new ArrayList<>();
+        for (int i = 0; i < AFilterItem.MAX_IN_VALUES + 10; i++) {
+            many.add("x" + i);
+        }
+        many.add("JOHNNY");
+        check(new StringFilterItem("name", many), 1);
+    }
+
+    @Test
+    public void testInWithOtherItems() {
+        check(new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                new StringFilterItem("name", Arrays.asList("John", "Mary", "jo%n")),
+                new LongFilterItem("n", LongFilterItem.EOperator.GREATER, 0)), 2, 5);
+        check(new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                new LongFilterItem("n", Arrays.asList(1L, 11L)),
+                new StringFilterItem("name", Arrays.asList("Mary"))), 1, 5, 11);
+    }
+
+    @Test
+    public void testStartsWith() {
+        check(startsWith("JO"), 0, 1, 2, 3, 4);
+        check(startsWith("john"), 0, 1);
+        check(startsWith(""), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11);
+
+        // the special characters of LIKE are literals
+        check(startsWith("jo%"), 2);
+        check(startsWith("jo_"), 3);
+        check(startsWith("jo\\"), 4);
+        check(startsWith("%"));
+    }
+
+    @Test
+    public void testLongStartsWith() {
+        check(startsWith(BASE.toUpperCase() + "XY"), 7, 8);
+        check(startsWith(BASE.toUpperCase()), 6, 7, 8, 9);
+        check(startsWith(repeat('A', Schema.VALUE_KEY_LENGTH - 1)), 6, 7, 8, 9, 10);
+    }
+
+    @Test
+    public void testEqualsIgnoreCase() {
+        check(equalsIgnoreCase("john"), 0);
+        check(equalsIgnoreCase("JOHNNY"), 1);
+        check(equalsIgnoreCase("JO_N"), 3);
+        check(equalsIgnoreCase("jo"));
+    }
+
+    @Test
+    public void testLongEqualsIgnoreCase() {
+        check(equalsIgnoreCase(BASE.toUpperCase()), 6);
+        check(equalsIgnoreCase(BASE + "XYZ"), 7, 8);
+        check(equalsIgnoreCase(repeat('A', Schema.VALUE_KEY_LENGTH - 1)), 10);
+    }
+
+    private static StringFilterItem startsWith(String value) {
+        return new StringFilterItem("name", StringFilterItem.EOperator.STARTS_WITH, value);
+    }
+
+    private static StringFilterItem equalsIgnoreCase(String value) {
+        return new StringFilterItem("name", StringFilterItem.EOperator.EQUALS_IGNORE_CASE, value);
+    }
+
+    /**
+     * Checks that every query of the database matches the entities with the
+     * given indexes.
+     */
+    private void check(AFilterItem item, int... indexes) {
+        Filter filter = new Filter("F", item);
+        Set<Long> expected = new HashSet<>();
+        for (int index : indexes) {
+            expected.add(entities.get(index).getId());
+        }
+
+        assertEquals(expected, new HashSet<>(db.queryKeys(filter)));
+        Set<Long> ids = new HashSet<>();
+        for (Entity e : db.query(filter)) {
+            ids.add(e.getId());
+        }
+        assertEquals(expected, ids);
+        assertEquals(expected.size(), db.count(filter));
+        assertEquals(!expected.isEmpty(), db.exists(filter));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] res = new char[count];
+        Arrays.fill(res, c);
+        return new String(res);
+    }
+
+}
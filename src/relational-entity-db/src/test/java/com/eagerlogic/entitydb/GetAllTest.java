@@ -0,0 +1,85 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bulk reads of DB.getAll.
+ *
+ * @author dipacs
+ */
+public class GetAllTest extends ADatabaseTest {
+
+    @Test
+    public void testManyChunks() throws Exception {
+        open();
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < RelationalDB.MAX_IN_SIZE * 2 + 3; i++) {
+            Entity e = newEntity(i % 2 == 0 ? "A" : "B", "n", (long) i, "even", i % 2 == 0);
+            if (i % 3 == 0) {
+                e.setValue(new EntityValue());
+            }
+            entities.add(e);
+        }
+        db.putAll(entities);
+
+        // the ids are asked in reverse order, with duplicates
+        List<Long> ids = new ArrayList<>();
+        for (Entity e : entities) {
+            ids.add(e.getId());
+        }
+        Collections.reverse(ids);
+        ids.addAll(ids.subList(0, 10));
+
+        Map<Long, Entity> loaded = db.getAll(ids);
+        assertEquals(entities.size(), loaded.size());
+        int index = entities.size() - 1;
+        for (Map.Entry<Long, Entity> entry : loaded.entrySet()) {
+            Entity expected = entities.get(index--);
+            Entity actual = entry.getValue();
+            assertEquals(expected.getId(), entry.getKey().longValue());
+            assertEquals(expected.getKind(), actual.getKind());
+            assertEquals(expected.getLongAttribute("n"), actual.getLongAttribute("n"));
+            assertEquals(expected.getBooleanAttribute("even"), actual.getBooleanAttribute("even"));
+            assertEquals(expected.getValue() != null, actual.getValue() != null);
+        }
+    }
+
+    @Test
+    public void testMissingIds() throws Exception {
+        open();
+        Entity kept = newEntity("A", "name", "kept");
+        Entity deleted = newEntity("A", "name", "deleted");
+        db.putAll(Arrays.asList(kept, deleted));
+        db.delete(deleted.getId());
+
+        Map<Long, Entity> loaded = db.getAll(Arrays.asList(deleted.getId(), 12345L, kept.getId()));
+        assertEquals(1, loaded.size());
+        assertEquals("kept", loaded.get(kept.getId()).getStringAttribute("name"));
+        assertNull(loaded.get(deleted.getId()));
+        assertTrue(db.getAll(Collections.<Long>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testSameAsGet() throws Exception {
+        open();
+        Entity e = newEntity("C", "name", "x", "n", 3L, "flag", false);
+        e.putAttribute("missing", (String) null);
+        db.put(e);
+
+        Entity single = db.get(e.getId());
+        Entity bulk = db.getAll(Collections.singleton(e.getId())).get(e.getId());
+        assertEquals(single.getAttributeNames(), bulk.getAttributeNames());
+        for (String name : single.getAttributeNames()) {
+            assertEquals(name, single.getAttribute(name), bulk.getAttribute(name));
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the lifecycle of a trigram index: the index which is left out of
+ * the settings is kept stale, it's rebuilt when it's configured again, and
+ * it can be dropped only if it isn't configured.
+ *
+ * @author dipacs
+ */
+public class GramIndexTest extends ADatabaseTest {
+
+    private final Filter contains = new Filter("T", new StringFilterItem("text",
+            StringFilterItem.EOperator.CONTAINS, "LPH"));
+
+    @Before
+    public void setUp() throws Exception {
+        open(indexed());
+        db.put(newEntity("T", "text", "alpha"));
+        assertEquals(1, db.count(contains));
+    }
+
+    @Test
+    public void testStaleAndRebuild() throws Exception {
+        reopen(new EntityDBConfig());
+        // the index isn't maintained, but the queries are still correct
+        db.put(newEntity("T", "text", "Ralph"));
+        assertEquals(2, db.count(contains));
+        close();
+        assertEquals(1, queryInt("SELECT MAX(stale) FROM GramAttribute"));
+
+        open(indexed());
+        assertEquals(2, db.count(contains));
+        db.put(newEntity("T", "text", "delphi"));
+        assertEquals(3, db.count(contains));
+        close();
+        assertEquals(0, queryInt("SELECT MAX(stale) FROM GramAttribute"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDropConfigured() throws Exception {
+        edb.dropTrigramIndex("T", "text");
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        reopen(new EntityDBConfig());
+        edb.dropTrigramIndex("T", "text");
+        assertEquals(1, db.count(contains));
+        close();
+        assertEquals(0, queryInt("SELECT COUNT(*) FROM GramAttribute"));
+        assertEquals(0, queryInt("SELECT COUNT(*) FROM AttributeGram"));
+    }
+
+    private static EntityDBConfig indexed() {
+        EntityDBConfig config = new EntityDBConfig();
+        config.addTrigramIndex("T", "text");
+        return config;
+    }
+
+    /**
+     * Runs the given query on the closed database, and returns the first
+     * column of its first row.
+     */
+    private int queryInt(String sql) throws Exception {
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(sql);
+            try {
+                rs.next();
+                return rs.getInt(1);
+            } finally {
+                rs.close();
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.eagerlogic.entitydb;
+
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the lazy loading of the values. The decodes are counted by a codec,
+ * so the tests see when a value is read.
+ *
+ * @author dipacs
+ */
+public class LazyValueTest extends ADatabaseTest {
+
+    private int decodes = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setLazyValues(true);
+        config.setValueCodec(new AValueCodec() {
+
+            @Override
+            public byte[] encode(EntityValue value) {
+                return BinaryValueCodec.INSTANCE.encode(value);
+            }
+
+            @Override
+            public EntityValue decode(byte[] data) {
+                decodes++;
+                return BinaryValueCodec.INSTANCE.decode(data);
+            }
+
+        });
+        open(config);
+
+        for (int i = 0; i < 5; i++) {
+            Entity e = newEntity("L", "n", (long) i);
+            EntityValue value = new EntityValue();
+            value.put("text", "value " + i);
+            e.setValue(value);
+            db.put(e);
+        }
+        db.put(newEntity("L", "n", 5L));
+    }
+
+    @Test
+    public void testDecodedOnce() {
+        List<Entity> entities = db.queryAll("L");
+        assertEquals(6, entities.size());
+        assertEquals(0, decodes);
+
+        Entity e = entities.get(2);
+        EntityValue value = e.getValue();
+        assertEquals("value 2", value.get("text"));
+        assertSame(value, e.getValue());
+        assertEquals(1, decodes);
+
+        // an entity without a value doesn't decode anything
+        assertNull(entities.get(5).getValue());
+        assertEquals(1, decodes);
+    }
+
+    @Test
+    public void testWriteWithoutDecoding() {
+        Entity e = db.queryAll("L").get(1);
+        e.putAttribute("n", 10L);
+        db.put(e);
+        assertEquals(0, decodes);
+
+        // the value which has never been read is kept
+        Entity loaded = db.get(e.getId());
+        assertEquals(Long.valueOf(10), loaded.getLongAttribute("n"));
+        assertEquals("value 1", loaded.getValue().get("text"));
+        assertEquals(1, decodes);
+    }
+
+    @Test
+    public void testReadAtFirstAccess() {
+        Entity first = db.queryAll("L").get(3);
+        Entity second = db.get(first.getId());
+
+        EntityValue value = new EntityValue();
+        value.put("text", "changed");
+        second.setValue(value);
+        db.put(second);
+        // the value is read at the first access, so it's the newer one
+        assertEquals("changed", first.getValue().get("text"));
+
+        Entity deleted = db.queryAll("L").get(4);
+        db.delete(deleted.getId());
+        assertNull(deleted.getValue());
+    }
+
+}
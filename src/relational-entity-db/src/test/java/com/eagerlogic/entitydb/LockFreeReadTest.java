@@ -0,0 +1,128 @@
+package com.eagerlogic.entitydb;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the lock-free read mode: a running transaction doesn't block the
+ * readers of other entities, and the readers never see half of an update.
+ *
+ * @author dipacs
+ */
+public class LockFreeReadTest extends ADatabaseTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setLockFreeReads(true);
+        open(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testReadDuringTransaction() throws Exception {
+        final Entity changed = newEntity("T", "n", 1L);
+        final Entity other = newEntity("O", "n", 2L);
+        db.put(changed);
+        db.put(other);
+
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Void> transaction = executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                new ATransaction<Void>(db) {
+
+                    @Override
+                    protected Void onExecute(DB db) {
+                        changed.putAttribute("n", 3L);
+                        db.put(changed);
+                        written.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        return null;
+                    }
+
+                }.execute();
+                return null;
+            }
+
+        });
+
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        // the transaction holds the write lock, but the read doesn't wait
+        Future<Long> read = executor.submit(new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return db.get(other.getId()).getLongAttribute("n");
+            }
+
+        });
+        assertEquals(Long.valueOf(2), read.get(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        transaction.get(10, TimeUnit.SECONDS);
+        assertEquals(Long.valueOf(3), db.get(changed.getId()).getLongAttribute("n"));
+    }
+
+    @Test
+    public void testNoPartialUpdate() throws Exception {
+        final Entity entity = newEntity("P", "a", 0L, "b", 0L);
+        db.put(entity);
+        final long id = entity.getId();
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Future<Integer> reader = executor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                int reads = 0;
+                while (!done.get()) {
+                    Entity e = db.get(id);
+                    // both attributes are written by every update
+                    assertEquals(e.getLongAttribute("a"), e.getLongAttribute("b"));
+                    reads++;
+                }
+                return reads;
+            }
+
+        });
+
+        for (long i = 1; i <= 200; i++) {
+            entity.putAttribute("a", i);
+            entity.putAttribute("b", i);
+            if (i % 3 == 0) {
+                // a new attribute is inserted, and removed later
+                entity.putAttribute("c" + i, i);
+            }
+            entity.putAttribute("c" + (i - 1), (Long) null);
+            db.put(entity);
+        }
+        done.set(true);
+        assertTrue(reader.get(30, TimeUnit.SECONDS) > 0);
+        assertEquals(Long.valueOf(200), db.get(id).getLongAttribute("b"));
+    }
+
+}
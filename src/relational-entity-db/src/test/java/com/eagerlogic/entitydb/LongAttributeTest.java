@@ -0,0 +1,106 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the typed storage of the long attributes: the values are compared as
+ * numbers by the SQL, and not as their text.
+ *
+ * @author dipacs
+ */
+public class LongAttributeTest extends ADatabaseTest {
+
+    private static final long[] VALUES = {Long.MIN_VALUE, -1000, -9, -1, 0, 1, 9, 10, 99, 100, 1000,
+        Long.MAX_VALUE};
+
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        for (long value : VALUES) {
+            entities.add(newEntity("N", "points", value));
+        }
+        // a string of the same name isn't a long
+        entities.add(newEntity("N", "points", "5"));
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testRanges() {
+        for (long reference : VALUES) {
+            for (LongFilterItem.EOperator operator : new LongFilterItem.EOperator[]{
+                LongFilterItem.EOperator.GREATER, LongFilterItem.EOperator.SMALLER,
+                LongFilterItem.EOperator.EQUALS, LongFilterItem.EOperator.NOT_EQUALS}) {
+                int expected = 0;
+                for (long value : VALUES) {
+                    if (matches(operator, value, reference)) {
+                        expected++;
+                    }
+                }
+                Filter filter = new Filter("N", new LongFilterItem("points", operator, reference));
+                String message = operator + " " + reference;
+                assertEquals(message, expected, db.count(filter));
+                assertEquals(message, expected, db.query(filter).size());
+                assertEquals(message, expected, db.queryKeys(filter).size());
+            }
+        }
+    }
+
+    @Test
+    public void testBetween() {
+        Filter filter = new Filter("N", new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                new LongFilterItem("points", LongFilterItem.EOperator.GREATER, 9),
+                new LongFilterItem("points", LongFilterItem.EOperator.SMALLER, 1000)));
+        List<Long> points = new ArrayList<>();
+        for (Entity e : db.query(filter)) {
+            points.add(e.getLongAttribute("points"));
+        }
+        assertEquals(3, points.size());
+        assertTrue(points.contains(10L) && points.contains(99L) && points.contains(100L));
+    }
+
+    @Test
+    public void testStoredColumn() throws Exception {
+        long id = entities.get(1).getId();
+        close();
+
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            PreparedStatement ps = conn.prepareStatement("SELECT type, longValue FROM Attribute WHERE entityId=?");
+            ps.setLong(1, id);
+            ResultSet rs = ps.executeQuery();
+            assertTrue(rs.next());
+            assertEquals(RelationalDB.AttributeDTO.EType.LONG.getType(), rs.getInt(1));
+            assertEquals(-1000L, rs.getLong(2));
+            rs.close();
+            ps.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static boolean matches(LongFilterItem.EOperator operator, long value, long reference) {
+        switch (operator) {
+            case GREATER:
+                return value > reference;
+            case SMALLER:
+                return value < reference;
+            case EQUALS:
+                return value == reference;
+            default:
+                return value != reference;
+        }
+    }
+
+}
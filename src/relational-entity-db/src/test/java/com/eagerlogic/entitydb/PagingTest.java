@@ -0,0 +1,279 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the keyset paging of the queries, ordered by id and by attributes.
+ *
+ * @author dipacs
+ */
+public class PagingTest extends ADatabaseTest {
+
+    private static final int PAGE_SIZE = 7;
+
+    private final Filter even = new Filter("G", new BooleanFilterItem("even", true));
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        for (int i = 0; i < 60; i++) {
+            // the order values repeat, so the ids break the ties
+            Entity e = newEntity("G", "even", i % 2 == 0, "name", "n" + (i % 13));
+            if (i % 10 != 0) {
+                e.putAttribute("rank", (long) (i % 9) - 4);
+            }
+            entities.add(e);
+        }
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testById() {
+        List<Long> expected = new ArrayList<>();
+        for (Entity e : entities) {
+            if (even.match(e)) {
+                expected.add(e.getId());
+            }
+        }
+        assertEquals(expected, page(new QueryOptions()));
+    }
+
+    @Test
+    public void testByLong() {
+        QueryOptions options = new QueryOptions();
+        options.setOrderBy("rank", QueryOptions.EOrderType.LONG);
+        assertEquals(expected("rank", false), page(options));
+    }
+
+    @Test
+    public void testByLongDescending() {
+        QueryOptions options = new QueryOptions();
+        options.setOrderBy("rank", QueryOptions.EOrderType.LONG);
+        options.setDescending(true);
+        assertEquals(expected("rank", true), page(options));
+    }
+
+    @Test
+    public void testByString() {
+        QueryOptions options = new QueryOptions();
+        options.setOrderBy("name", QueryOptions.EOrderType.STRING);
+        assertEquals(expected("name", false), page(options));
+    }
+
+    @Test
+    public void testByStringDescending() {
+        QueryOptions options = new QueryOptions();
+        options.setOrderBy("name", QueryOptions.EOrderType.STRING);
+        options.setDescending(true);
+        assertEquals(expected("name", true), page(options));
+    }
+
+    @Test
+    public void testKeys() {
+        QueryOptions options = new QueryOptions();
+        options.setLimit(PAGE_SIZE);
+        options.setAfter(entities.get(10).getId(), null);
+        List<Long> expected = new ArrayList<>();
+        for (Entity e : entities.subList(11, entities.size())) {
+            if (even.match(e) && expected.size() < PAGE_SIZE) {
+                expected.add(e.getId());
+            }
+        }
+        assertEquals(expected, new ArrayList<>(db.queryKeys(even, options)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingAfterValue() {
+        QueryOptions options = new QueryOptions();
+        options.setOrderBy("rank", QueryOptions.EOrderType.LONG);
+        options.setAfter(entities.get(0).getId(), null);
+        db.query(even, options);
+    }
+
+    @Test
+    public void testPageCostIsFlat() throws Exception {
+        populate("S", 200);
+        populate("L", 2000);
+
+        QueryOptions byId = new QueryOptions();
+        QueryOptions byRank = new QueryOptions();
+        byRank.setOrderBy("rank", QueryOptions.EOrderType.LONG);
+        QueryOptions byName = new QueryOptions();
+        byName.setOrderBy("name", QueryOptions.EOrderType.STRING);
+        byName.setDescending(true);
+        for (QueryOptions options : new QueryOptions[]{byId, byRank, byName}) {
+            // a page from the middle of each kind
+            long small = countVisitedRows("S", options, 100);
+            long large = countVisitedRows("L", options, 1000);
+            assertTrue(small + " rows of the small kind, " + large + " rows of the large one", large < 2 * small);
+        }
+    }
+
+    /**
+     * Adds entities to the given kind, whose order attributes have the same
+     * distribution in every kind.
+     */
+    private void populate(String kind, int count) {
+        List<Entity> added = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            added.add(newEntity(kind, "even", i % 2 == 0, "rank", (long) (i * 10 / count),
+                    "name", "n" + (i * 10 / count)));
+        }
+        db.putAll(added);
+    }
+
+    /**
+     * Runs the queries of a page of the even entities of the given kind, which
+     * starts after the entity at the given index, and returns the number of
+     * the rows which have been visited by Derby.
+     */
+    private long countVisitedRows(String kind, QueryOptions options, int index) throws Exception {
+        Filter filter = new Filter(kind, new BooleanFilterItem("even", true));
+        Entity after = db.queryAll(kind).get(index);
+        Object afterValue = options.getOrderBy() == null ? null : after.getAttribute(options.getOrderBy());
+        QueryPlanner planner = new QueryPlanner(Collections.<String, Map<String, AttributeStatistics>>emptyMap(),
+                new GramIndex(Collections.<String, Set<String>>emptyMap()));
+        assertTrue(planner.isOrderScan(filter));
+
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            long res = 0;
+            int rows = 0;
+            if (afterValue != null) {
+                List<Object> params = new ArrayList<>();
+                String sql = planner.getTieQuery(filter, options, after.getId(), afterValue, PAGE_SIZE, params);
+                rows += runQuery(conn, sql, params);
+                res += countVisitedRows(conn);
+            }
+            if (rows < PAGE_SIZE) {
+                List<Object> params = new ArrayList<>();
+                String sql = planner.getPageQuery(filter, options, true, after.getId(), afterValue,
+                        PAGE_SIZE - rows, params);
+                rows += runQuery(conn, sql, params);
+                res += countVisitedRows(conn);
+            }
+            assertEquals(PAGE_SIZE, rows);
+            return res;
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Runs the given query with the runtime statistics of Derby, and returns
+     * the number of its rows.
+     */
+    private static int runQuery(Connection conn, String sql, List<Object> params) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+        stmt.close();
+        PreparedStatement ps = conn.prepareStatement(sql);
+        try {
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
+            }
+            ResultSet rs = ps.executeQuery();
+            int res = 0;
+            while (rs.next()) {
+                res++;
+            }
+            rs.close();
+            return res;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**
+     * Returns the number of the rows which have been visited by the last
+     * query, which must have been read in the order of an index.
+     */
+    private static long countVisitedRows(Connection conn) throws Exception {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()");
+            rs.next();
+            String plan = rs.getString(1);
+            rs.close();
+            assertFalse(plan, plan.contains("Sort ResultSet"));
+            long res = 0;
+            Matcher m = Pattern.compile("Number of rows visited=(\\d+)").matcher(plan);
+            while (m.find()) {
+                res += Long.parseLong(m.group(1));
+            }
+            return res;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Reads every page of the even entities with the given options, and
+     * returns the ids in the order of the pages.
+     */
+    private List<Long> page(QueryOptions options) {
+        options.setLimit(PAGE_SIZE);
+        List<Long> res = new ArrayList<>();
+        while (true) {
+            List<Entity> page = db.query(even, options);
+            for (Entity e : page) {
+                res.add(e.getId());
+            }
+            if (page.size() < PAGE_SIZE) {
+                return res;
+            }
+            options.setAfter(page.get(page.size() - 1));
+        }
+    }
+
+    /**
+     * Returns the ids of the even entities which have the given attribute,
+     * ordered by it, then by id.
+     */
+    private List<Long> expected(final String orderBy, final boolean descending) {
+        List<Entity> matching = new ArrayList<>();
+        for (Entity e : entities) {
+            if (even.match(e) && e.getAttribute(orderBy) != null) {
+                matching.add(e);
+            }
+        }
+        Collections.sort(matching, new Comparator<Entity>() {
+
+            @Override
+            public int compare(Entity a, Entity b) {
+                Comparable<Object> value = a.getAttribute(orderBy);
+                int res = value.compareTo(b.getAttribute(orderBy));
+                if (res == 0) {
+                    res = Long.compare(a.getId(), b.getId());
+                }
+                return descending ? -res : res;
+            }
+
+        });
+
+        List<Long> res = new ArrayList<>();
+        for (Entity e : matching) {
+            res.add(e.getId());
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the compiled predicates of the filters: the order in which the
+ * children of the groups are checked, the short-circuiting, and the
+ * specialized predicates of the items. The order is recorded by items which
+ * log their checks.
+ *
+ * @author dipacs
+ */
+public class PredicateTest {
+
+    private final List<String> checks = new ArrayList<>();
+    private int compiles = 0;
+    private final Entity entity = new Entity("K");
+
+    @Test
+    public void testAndOrder() {
+        Filter filter = new Filter("K", new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                item("common", 0.9, true), item("rare", 0.01, true), item("half", 0.5, true)));
+        assertTrue(filter.match(entity));
+        // the most selective child is checked first
+        assertEquals(Arrays.asList("rare", "half", "common"), checks);
+    }
+
+    @Test
+    public void testAndShortCircuit() {
+        Filter filter = new Filter("K", new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                item("common", 0.9, true), item("rare", 0.01, false), item("half", 0.5, true)));
+        assertFalse(filter.match(entity));
+        assertEquals(Arrays.asList("rare"), checks);
+    }
+
+    @Test
+    public void testOrShortCircuit() {
+        // an OR group keeps the order of its children
+        Filter filter = new Filter("K", new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                item("first", 0.9, false), item("second", 0.01, true), item("third", 0.5, true)));
+        assertTrue(filter.match(entity));
+        assertEquals(Arrays.asList("first", "second"), checks);
+    }
+
+    @Test
+    public void testFlattenedGroups() {
+        // the nested AND is merged, so its children are ordered with the
+        // others, while the nested OR is checked as one child
+        Filter filter = new Filter("K", new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                item("a", 0.5, true),
+                new FilterGroupItem(FilterGroupItem.EOperator.AND, item("b", 0.9, true), item("c", 0.01, true)),
+                new FilterGroupItem(FilterGroupItem.EOperator.OR, item("d", 0.2, false), item("e", 0.1, true))));
+        assertTrue(filter.match(entity));
+        assertEquals(Arrays.asList("c", "d", "e", "a", "b"), checks);
+    }
+
+    @Test
+    public void testCompiledOnce() {
+        Filter filter = new Filter("K", new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                item("x", 0.5, false), item("y", 0.5, false)));
+        assertEquals(2, compiles);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(filter.match(entity));
+        }
+        assertEquals(2, compiles);
+        assertEquals(200, checks.size());
+        // an entity of an other kind isn't checked at all
+        assertFalse(filter.match(new Entity("L")));
+        assertEquals(200, checks.size());
+    }
+
+    @Test
+    public void testItemPredicates() {
+        Entity e = new Entity("K");
+        e.putAttribute("n", 5L);
+        e.putAttribute("s", "Straße İstanbul");
+        e.putAttribute("text", "5");
+
+        assertTrue(new LongFilterItem("n", LongFilterItem.EOperator.EQUALS, 5).compile().match(e));
+        // a string isn't a long, even if it looks like one
+        assertFalse(new LongFilterItem("text", LongFilterItem.EOperator.EQUALS, 5).compile().match(e));
+        assertFalse(new LongFilterItem("text", LongFilterItem.EOperator.NOT_EQUALS, 5).compile().match(e));
+        assertTrue(new LongFilterItem("n", Arrays.asList(1L, 5L, 9L)).compile().match(e));
+        assertFalse(new LongFilterItem("n", Arrays.asList(4L, 6L)).compile().match(e));
+
+        // the reference of CONTAINS is folded once, when it's compiled, and
+        // every character is folded to one character
+        assertTrue(new StringFilterItem("s", StringFilterItem.EOperator.CONTAINS, "ISTANBUL").compile().match(e));
+        assertFalse(new StringFilterItem("s", StringFilterItem.EOperator.CONTAINS, "STRASSE").compile().match(e));
+        assertTrue(new StringFilterItem("s", StringFilterItem.EOperator.STARTS_WITH, "sTRA").compile().match(e));
+        assertFalse(new StringFilterItem("s", StringFilterItem.EOperator.STARTS_WITH, "traße").compile().match(e));
+        assertFalse(new StringFilterItem("missing", StringFilterItem.EOperator.NOT_EQUALS, "x").compile().match(e));
+        assertTrue(new NullFilterItem("n", NullFilterItem.EOperator.NOT_NULL).compile().match(e));
+        assertFalse(new BooleanFilterItem("n", true).compile().match(e));
+    }
+
+    /**
+     * Returns an item which logs its checks with the given name, and returns
+     * the given result.
+     */
+    private AFilterItem item(final String name, final double selectivity, final boolean result) {
+        return new AFilterItem() {
+
+            @Override
+            String getCondition(List<Object> params) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            APredicate compile() {
+                compiles++;
+                return new APredicate() {
+
+                    @Override
+                    boolean match(Entity entity) {
+                        checks.add(name);
+                        return result;
+                    }
+
+                };
+            }
+
+            @Override
+            void addAttributeNames(Set<String> names) {
+            }
+
+            @Override
+            double estimateSelectivity(Map<String, AttributeStatistics> statistics) {
+                return selectivity;
+            }
+
+        };
+    }
+
+}
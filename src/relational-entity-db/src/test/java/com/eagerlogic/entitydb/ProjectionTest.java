@@ -0,0 +1,78 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the projection queries, which read only the selected attributes.
+ *
+ * @author dipacs
+ */
+public class ProjectionTest extends ADatabaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        for (int i = 0; i < 10; i++) {
+            Entity e = newEntity("P", "name", "user " + i, "age", (long) (20 + i), "admin", i == 3,
+                    "bio", "a long text " + i);
+            EntityValue value = new EntityValue();
+            value.put("index", (long) i);
+            e.setValue(value);
+            db.put(e);
+        }
+    }
+
+    @Test
+    public void testSelectedAttributes() {
+        // the filter reads an attribute which isn't selected
+        Filter filter = new Filter("P", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 25));
+        List<Entity> entities = db.query(filter, new Projection(false, "name", "missing"));
+        assertEquals(4, entities.size());
+        for (Entity e : entities) {
+            assertEquals(Collections.singleton("name"), e.getAttributeNames());
+            assertTrue(e.getStringAttribute("name").compareTo("user 6") >= 0);
+        }
+
+        entities = db.query(new Filter("P", new BooleanFilterItem("admin", true)), new Projection(false));
+        assertEquals(1, entities.size());
+        assertTrue(entities.get(0).getAttributeNames().isEmpty());
+    }
+
+    @Test
+    public void testValue() {
+        Filter filter = new Filter("P", new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "user 7"));
+        Entity withValue = db.query(filter, new Projection(true, "age")).get(0);
+        assertEquals(Long.valueOf(7), withValue.getValue().<Long>get("index"));
+        assertEquals(Collections.singleton("age"), withValue.getAttributeNames());
+
+        // the value which isn't selected is read when it's accessed
+        Entity withoutValue = db.query(filter, new Projection(false, "age")).get(0);
+        assertEquals(Long.valueOf(7), withoutValue.getValue().<Long>get("index"));
+    }
+
+    @Test
+    public void testStorePartial() {
+        Filter filter = new Filter("P", new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "user 2"));
+        Entity partial = db.query(filter, new Projection(false, "age", "bio")).get(0);
+        partial.putAttribute("age", 99L);
+        partial.putAttribute("bio", (String) null);
+        partial.putAttribute("city", "Szeged");
+        db.put(partial);
+
+        Entity loaded = db.get(partial.getId());
+        assertEquals(Long.valueOf(99), loaded.getLongAttribute("age"));
+        assertNull(loaded.getStringAttribute("bio"));
+        assertEquals("Szeged", loaded.getStringAttribute("city"));
+        // the attributes and the value which weren't read are kept
+        assertEquals("user 2", loaded.getStringAttribute("name"));
+        assertEquals(Boolean.FALSE, loaded.getBooleanAttribute("admin"));
+        assertEquals(Long.valueOf(2), loaded.getValue().<Long>get("index"));
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the batch writes of DB.putAll.
+ *
+ * @author dipacs
+ */
+public class PutAllTest extends ADatabaseTest {
+
+    @Test
+    public void testSmallStatementCache() throws Exception {
+        // the statements of the attribute batch and of the grams evict each
+        // other from a cache of one statement
+        EntityDBConfig config = new EntityDBConfig();
+        config.setStatementCacheSize(1);
+        config.addTrigramIndex("P", "name");
+        open(config);
+
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            entities.add(newEntity("P", "name", "item " + i, "n", (long) i));
+        }
+        final List<LogRecord> errors = new ArrayList<>();
+        Handler handler = new Handler() {
+
+            @Override
+            public void publish(LogRecord record) {
+                errors.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+
+        };
+        Logger logger = Logger.getLogger(RelationalDB.class.getName());
+        logger.addHandler(handler);
+        try {
+            db.putAll(entities);
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        assertEquals(0, errors.size());
+        assertEquals(10, db.countAll("P"));
+        assertEquals(10, db.count(new Filter("P", new StringFilterItem("name",
+                StringFilterItem.EOperator.CONTAINS, "ITEM"))));
+        assertEquals("item 3", db.get(entities.get(3).getId()).getStringAttribute("name"));
+    }
+
+    @Test
+    public void testFailedChunk() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.setBatchCommitSize(3);
+        open(config);
+
+        List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            entities.add(newEntity("C", "n", (long) i));
+        }
+        // the name is longer than the column, so the second chunk fails
+        char[] name = new char[200];
+        Arrays.fill(name, 'x');
+        entities.get(4).putAttribute(new String(name), 1L);
+        try {
+            db.putAll(entities);
+            fail();
+        } catch (RuntimeException ex) {
+            // expected
+        }
+
+        // the first chunk has been committed, the rest got no id
+        assertEquals(3, db.countAll("C"));
+        for (int i = 0; i < entities.size(); i++) {
+            Entity e = entities.get(i);
+            if (i < 3) {
+                assertEquals(Long.valueOf(i), db.get(e.getId()).getLongAttribute("n"));
+            } else {
+                assertEquals(-1, e.getId());
+            }
+        }
+
+        // the failed entities are inserted again after the fix
+        entities.get(4).putAttribute(new String(name), (Long) null);
+        db.putAll(entities);
+        assertEquals(8, db.countAll("C"));
+    }
+
+    @Test
+    public void testNewAndExisting() throws Exception {
+        open();
+        Entity existing = newEntity("M", "name", "old");
+        db.put(existing);
+        long id = existing.getId();
+
+        existing.putAttribute("name", "new");
+        Entity added = newEntity("M", "name", "added");
+        db.putAll(Arrays.asList(existing, added));
+
+        assertEquals(id, existing.getId());
+        assertTrue(added.getId() > -1 && added.getId() != id);
+        assertEquals("new", db.get(id).getStringAttribute("name"));
+        assertEquals("added", db.get(added.getId()).getStringAttribute("name"));
+        assertEquals(2, db.countAll("M"));
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that count, exists, queryKeys and query agree with each other, and
+ * with the match of the filter, on random filters over entities which have
+ * random subsets of the attributes.
+ *
+ * @author dipacs
+ */
+public class QueryAgreementTest extends ADatabaseTest {
+
+    private static final String[] STRINGS = {"", "a", "A", "ab", "abc", "b ", "B", "Ab", "xyz"};
+
+    private final Random random = new Random(20150315);
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        for (int i = 0; i < 80; i++) {
+            Entity e = new Entity("Q");
+            // some entities have no attribute at all
+            if (random.nextInt(4) > 0) {
+                e.putAttribute("n", (long) random.nextInt(10) - 3);
+            }
+            if (random.nextInt(3) > 0) {
+                e.putAttribute("s", STRINGS[random.nextInt(STRINGS.length)]);
+            }
+            if (random.nextBoolean()) {
+                e.putAttribute("b", random.nextBoolean());
+            }
+            if (random.nextInt(5) == 0) {
+                // an attribute with an other type under the same name
+                e.putAttribute("n", "5");
+            }
+            entities.add(e);
+        }
+        db.putAll(entities);
+        // an entity of an other kind is never matched
+        db.put(newEntity("R", "n", 1L, "s", "a", "b", true));
+    }
+
+    @Test
+    public void testRandomFilters() {
+        checkRandomFilters(200);
+    }
+
+    @Test
+    public void testRandomFiltersWithStatistics() {
+        // the statistics change the plans, but not the results
+        edb.refreshStatistics();
+        checkRandomFilters(200);
+    }
+
+    @Test
+    public void testNoItem() {
+        check(new Filter("Q", null));
+        check(new Filter("R", null));
+        check(new Filter("missing", null));
+    }
+
+    private void checkRandomFilters(int count) {
+        for (int i = 0; i < count; i++) {
+            check(new Filter("Q", randomItem(0)));
+        }
+    }
+
+    private void check(Filter filter) {
+        Set<Long> expected = new HashSet<>();
+        for (Entity e : entities) {
+            if (filter.match(e)) {
+                expected.add(e.getId());
+            }
+        }
+        if (!"Q".equals(filter.getKind())) {
+            expected.clear();
+            for (Entity e : db.queryAll(filter.getKind())) {
+                expected.add(e.getId());
+            }
+        }
+
+        String message = String.valueOf(filter.getFilterItem());
+        assertEquals(message, expected, new HashSet<>(db.queryKeys(filter)));
+        Set<Long> queried = new HashSet<>();
+        for (Entity e : db.query(filter)) {
+            queried.add(e.getId());
+        }
+        assertEquals(message, expected, queried);
+        assertEquals(message, expected.size(), db.count(filter));
+        assertEquals(message, !expected.isEmpty(), db.exists(filter));
+    }
+
+    private AFilterItem randomItem(int depth) {
+        int choice = random.nextInt(depth < 2 ? 8 : 6);
+        switch (choice) {
+            case 0:
+                return new LongFilterItem("n", randomEnum(LongFilterItem.EOperator.values(),
+                        LongFilterItem.EOperator.IN), random.nextInt(10) - 4);
+            case 1:
+                return new LongFilterItem("n", Arrays.asList((long) random.nextInt(6) - 3, (long) random.nextInt(6)));
+            case 2:
+                return new StringFilterItem("s", randomEnum(StringFilterItem.EOperator.values(),
+                        StringFilterItem.EOperator.IN), STRINGS[random.nextInt(STRINGS.length)]);
+            case 3:
+                return new StringFilterItem("s", Arrays.asList(STRINGS[random.nextInt(STRINGS.length)], "b"));
+            case 4:
+                return new BooleanFilterItem("b", random.nextBoolean());
+            case 5:
+                return new NullFilterItem(random.nextBoolean() ? "n" : "s", NullFilterItem.EOperator.NOT_NULL);
+            default:
+                FilterGroupItem.EOperator operator = random.nextBoolean()
+                        ? FilterGroupItem.EOperator.AND : FilterGroupItem.EOperator.OR;
+                if (random.nextBoolean()) {
+                    return new FilterGroupItem(operator, randomItem(depth + 1), randomItem(depth + 1));
+                }
+                return new FilterGroupItem(operator, randomItem(depth + 1), randomItem(depth + 1),
+                        randomItem(depth + 1));
+        }
+    }
+
+    private <T extends Enum<T>> T randomEnum(T[] values, T excluded) {
+        while (true) {
+            T res = values[random.nextInt(values.length)];
+            if (res != excluded) {
+                return res;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the planned AND and OR queries against the in-memory match of the
+ * filters.
+ *
+ * @author dipacs
+ */
+public class QueryPlannerTest extends ADatabaseTest {
+
+    private static final String KIND = "P";
+
+    private final Random random = new Random(7);
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Test
+    public void testAndOr() throws Exception {
+        open();
+        populate();
+
+        Filter and = new Filter(KIND, new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                new LongFilterItem("n", LongFilterItem.EOperator.EQUALS, 3),
+                new BooleanFilterItem("b", true)));
+        check(and);
+
+        Filter or = new Filter(KIND, new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                new LongFilterItem("n", LongFilterItem.EOperator.SMALLER, 2),
+                new StringFilterItem("s", StringFilterItem.EOperator.EQUALS, "xsv4y")));
+        check(or);
+
+        // NOT_EQUALS doesn't match the entities without the attribute
+        Filter notEquals = new Filter(KIND, new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                new StringFilterItem("s", StringFilterItem.EOperator.NOT_EQUALS, "xsv1y"),
+                new NullFilterItem("m", NullFilterItem.EOperator.NOT_NULL)));
+        check(notEquals);
+
+        Filter nested = new Filter(KIND, new FilterGroupItem(FilterGroupItem.EOperator.AND,
+                new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                        new LongFilterItem("k", LongFilterItem.EOperator.EQUALS, 1),
+                        new LongFilterItem("k", LongFilterItem.EOperator.GREATER, 3)),
+                new FilterGroupItem(FilterGroupItem.EOperator.OR,
+                        new StringFilterItem("s", StringFilterItem.EOperator.CONTAINS, "SV2"),
+                        new BooleanFilterItem("b", false))));
+        check(nested);
+    }
+
+    @Test
+    public void testRandomFilters() throws Exception {
+        open();
+        populate();
+        for (int i = 0; i < 40; i++) {
+            check(new Filter(KIND, randomItem(3)));
+        }
+    }
+
+    @Test
+    public void testRandomFiltersWithTrigramIndex() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.addTrigramIndex(KIND, "s");
+        open(config);
+        populate();
+        for (int i = 0; i < 40; i++) {
+            check(new Filter(KIND, randomItem(3)));
+        }
+    }
+
+    @Test
+    public void testKindScan() throws Exception {
+        open();
+        populate();
+        edb.refreshStatistics(KIND);
+
+        // matches most of the kind, so the planner reads the whole kind
+        Filter filter = new Filter(KIND, new LongFilterItem("n", LongFilterItem.EOperator.SMALLER, 9));
+        QueryPlanner planner = new QueryPlanner(Collections.singletonMap(KIND, edb.getStatistics(KIND)),
+                new GramIndex(Collections.<String, Set<String>>emptyMap()));
+        assertEquals(true, planner.isKindScan(filter));
+        check(filter);
+    }
+
+    @Test
+    public void testNoFilterItem() throws Exception {
+        open();
+        populate();
+        Entity empty = new Entity(KIND);
+        db.put(empty);
+        entities.add(empty);
+
+        // the entity without attributes is matched by every query
+        Filter filter = new Filter(KIND, null);
+        check(filter);
+        assertEquals(db.countAll(KIND), db.count(filter));
+        assertEquals(true, db.queryKeys(filter).contains(empty.getId()));
+        int iterated = 0;
+        EntityCursor cursor = db.iterate(filter);
+        try {
+            while (cursor.hasNext()) {
+                cursor.next();
+                iterated++;
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(entities.size(), iterated);
+
+        QueryOptions options = new QueryOptions();
+        options.setLimit(entities.size());
+        assertEquals(entities.size(), db.query(filter, options).size());
+    }
+
+    private void populate() {
+        for (int i = 0; i < 200; i++) {
+            Entity e = newEntity(KIND, "n", (long) random.nextInt(10), "b", random.nextBoolean(),
+                    "k", (long) random.nextInt(5));
+            if (random.nextBoolean()) {
+                e.putAttribute("s", "xsv" + random.nextInt(10) + "y");
+            }
+            if (random.nextInt(3) == 0) {
+                e.putAttribute("m", "x");
+            }
+            entities.add(e);
+        }
+        db.putAll(entities);
+    }
+
+    private void check(Filter filter) {
+        Set<Long> expected = new TreeSet<>();
+        for (Entity e : entities) {
+            if (filter.match(e)) {
+                expected.add(e.getId());
+            }
+        }
+
+        assertEquals(expected, db.queryKeys(filter));
+        assertEquals(expected.size(), db.count(filter));
+        assertEquals(!expected.isEmpty(), db.exists(filter));
+        Set<Long> found = new TreeSet<>();
+        for (Entity e : db.query(filter)) {
+            found.add(e.getId());
+        }
+        assertEquals(expected, found);
+    }
+
+    private AFilterItem randomItem(int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return randomLeaf();
+        }
+        FilterGroupItem.EOperator operator = random.nextBoolean()
+                ? FilterGroupItem.EOperator.AND : FilterGroupItem.EOperator.OR;
+        return new FilterGroupItem(operator, randomItem(depth - 1), randomItem(depth - 1), randomItem(depth - 1));
+    }
+
+    private AFilterItem randomLeaf() {
+        switch (random.nextInt(6)) {
+            case 0:
+                return new LongFilterItem("n", LongFilterItem.EOperator.values()[random.nextInt(4)], random.nextInt(10));
+            case 1:
+                List<String> texts = Arrays.asList("Sv", "sV" + random.nextInt(10), "XSV" + random.nextInt(10),
+                        "xsv" + random.nextInt(10) + "y");
+                return new StringFilterItem("s", StringFilterItem.EOperator.values()[random.nextInt(7)],
+                        texts.get(random.nextInt(texts.size())));
+            case 2:
+                return new BooleanFilterItem("b", random.nextBoolean());
+            case 3:
+                return new NullFilterItem("m", NullFilterItem.EOperator.NOT_NULL);
+            case 4:
+                List<Long> values = new ArrayList<>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    values.add((long) random.nextInt(12));
+                }
+                return new LongFilterItem("k", values);
+            default:
+                return new LongFilterItem("k", LongFilterItem.EOperator.values()[random.nextInt(4)], random.nextInt(5));
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.eagerlogic.entitydb;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Locale;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the migration of a database created by the first version to the
+ * current schema.
+ *
+ * @author dipacs
+ */
+public class SchemaTest extends ADatabaseTest {
+
+    @Test
+    public void testMigrateFromVersion1() throws Exception {
+        createVersion1();
+
+        open();
+        assertEquals(String.valueOf(Schema.VERSION), querySchemaVersion());
+        assertEquals(Collections.<String>emptyList(), edb.checkIndexes());
+
+        // the typed long column is filled
+        assertEquals(2, db.count(new Filter("U", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 20))));
+        assertEquals(1, db.count(new Filter("U", new LongFilterItem("age", LongFilterItem.EOperator.SMALLER, 0))));
+
+        // the lowercase key column is filled
+        assertEquals(2, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.STARTS_WITH, "JOHN"))));
+        assertEquals(1, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.EQUALS_IGNORE_CASE, "john smith"))));
+        assertEquals(1, db.count(new Filter("U", new BooleanFilterItem("admin", true))));
+
+        // the migrated entities can be updated
+        Entity e = db.querySingleton(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.EQUALS, "Jane")));
+        e.putAttribute("age", 31L);
+        db.put(e);
+        assertEquals(3, db.count(new Filter("U", new LongFilterItem("age", LongFilterItem.EOperator.GREATER, 20))));
+    }
+
+    @Test
+    public void testMigratedTrigramIndex() throws Exception {
+        createVersion1();
+
+        EntityDBConfig config = new EntityDBConfig();
+        config.addTrigramIndex("U", "name");
+        open(config);
+        assertEquals(2, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.CONTAINS, "OHN"))));
+    }
+
+    @Test
+    public void testMigrateFromVersion7() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.addTrigramIndex("U", "name");
+        open(config);
+        db.put(newEntity("U", "name", "İstanbul"));
+        close();
+
+        // version 7 lowercased the keys and the grams with Locale.ROOT, which
+        // turns the dotted capital I in to two characters
+        String lower = "İstanbul".toLowerCase(Locale.ROOT);
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("UPDATE Meta SET value='7' WHERE name='schemaVersion'");
+            stmt.execute("UPDATE Attribute SET lowerKey='" + lower + "' WHERE name='name'");
+            stmt.execute("DELETE FROM AttributeGram");
+            for (int i = 0; i + GramIndex.GRAM_LENGTH <= lower.length(); i++) {
+                stmt.execute("INSERT INTO AttributeGram (entityId, entityKind, name, gram) VALUES (1, 'U', 'name', '"
+                        + lower.substring(i, i + GramIndex.GRAM_LENGTH) + "')");
+            }
+            stmt.close();
+        } finally {
+            conn.close();
+        }
+
+        open(config);
+        assertEquals(String.valueOf(Schema.VERSION), querySchemaVersion());
+        assertEquals(1, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.EQUALS_IGNORE_CASE, "ISTANBUL"))));
+        assertEquals(1, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.STARTS_WITH, "ist"))));
+        assertEquals(1, db.count(new Filter("U", new StringFilterItem("name",
+                StringFilterItem.EOperator.CONTAINS, "ISTAN"))));
+    }
+
+    @Test
+    public void testNewDatabase() throws Exception {
+        open();
+        assertTrue(edb.isNewDatabase());
+        assertEquals(String.valueOf(Schema.VERSION), querySchemaVersion());
+        assertEquals(Collections.<String>emptyList(), edb.checkIndexes());
+    }
+
+    /**
+     * Creates a database with the schema and the data of the first version,
+     * which had no Meta table and stored every attribute value as text.
+     */
+    private void createVersion1() throws Exception {
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath() + ";create=true");
+        try {
+            Statement stmt = conn.createStatement();
+            stmt.execute("CREATE TABLE Entity ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
+                    + "kind VARCHAR(4096) NOT NULL,"
+                    + "value BLOB)");
+            stmt.execute("CREATE TABLE Attribute ("
+                    + "id BIGINT NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),"
+                    + "entityId BIGINT NOT NULL,"
+                    + "entityKind VARCHAR(4096) NOT NULL,"
+                    + "name VARCHAR(128) NOT NULL,"
+                    + "type INT NOT NULL,"
+                    + "value VARCHAR(32000) NOT NULL)");
+            stmt.close();
+
+            insertVersion1(conn, 1, "John Smith", 42, true);
+            insertVersion1(conn, 2, "Johnny", 25, false);
+            insertVersion1(conn, 3, "Jane", -1, false);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void insertVersion1(Connection conn, long id, String name, long age, boolean admin)
+            throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("INSERT INTO Entity (kind) VALUES ('U')");
+        stmt.close();
+
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO Attribute (entityId, entityKind, name, type, value)"
+                + " VALUES (?, 'U', ?, ?, ?)");
+        try {
+            insertAttribute(ps, id, "name", RelationalDB.AttributeDTO.EType.STRING, name);
+            insertAttribute(ps, id, "age", RelationalDB.AttributeDTO.EType.LONG, String.valueOf(age));
+            insertAttribute(ps, id, "admin", RelationalDB.AttributeDTO.EType.BOOLEAN, String.valueOf(admin));
+        } finally {
+            ps.close();
+        }
+    }
+
+    private static void insertAttribute(PreparedStatement ps, long id, String name,
+            RelationalDB.AttributeDTO.EType type, String value) throws Exception {
+        ps.setLong(1, id);
+        ps.setString(2, name);
+        ps.setInt(3, type.getType());
+        ps.setString(4, value);
+        ps.execute();
+    }
+
+    private String querySchemaVersion() throws Exception {
+        Connection conn = DriverManager.getConnection("jdbc:derby:" + getPath());
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT value FROM Meta WHERE name='schemaVersion'");
+            try {
+                rs.next();
+                return rs.getString(1);
+            } finally {
+                rs.close();
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+}
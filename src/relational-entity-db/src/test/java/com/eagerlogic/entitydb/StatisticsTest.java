@@ -0,0 +1,89 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks when the statistics of a kind are collected, and how the planner
+ * uses them.
+ *
+ * @author dipacs
+ */
+public class StatisticsTest extends ADatabaseTest {
+
+    private static final String KIND = "T";
+
+    private final Filter small = new Filter(KIND, new LongFilterItem("n", LongFilterItem.EOperator.SMALLER, 30));
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        List<Entity> entities = new ArrayList<>();
+        for (long i = 0; i < 100; i++) {
+            entities.add(newEntity(KIND, "n", i));
+        }
+        db.putAll(entities);
+    }
+
+    @Test
+    public void testRecollectedAfterWrites() throws Exception {
+        assertEquals(0, edb.getStatistics(KIND).size());
+        assertEquals(30, db.count(small));
+        assertEquals(100, getEntityCount());
+        assertEquals(false, isKindScan(small));
+
+        // most of the new entities are matched, but the plan is kept until
+        // enough of the kind has been written
+        List<Entity> entities = new ArrayList<>();
+        for (long i = 0; i < 59; i++) {
+            entities.add(newEntity(KIND, "n", i % 5));
+        }
+        db.putAll(entities);
+        assertEquals(89, db.count(small));
+        assertEquals(100, getEntityCount());
+
+        db.put(newEntity(KIND, "n", 1L));
+        assertEquals(100, getEntityCount());
+        assertEquals(90, db.count(small));
+        assertEquals(160, getEntityCount());
+        assertEquals(true, isKindScan(small));
+    }
+
+    @Test
+    public void testRecollectedAfterDeletes() throws Exception {
+        assertEquals(30, db.count(small));
+        for (long id : db.queryKeys(new Filter(KIND, new LongFilterItem("n", LongFilterItem.EOperator.GREATER, 39)))) {
+            db.delete(id);
+        }
+        assertEquals(30, db.count(small));
+        assertEquals(40, getEntityCount());
+    }
+
+    @Test
+    public void testCleanPutIsNotCounted() throws Exception {
+        assertEquals(30, db.count(small));
+        List<Entity> entities = db.queryAll(KIND);
+        for (int i = 0; i < 2; i++) {
+            db.putAll(entities);
+        }
+        db.put(newEntity(KIND, "n", 1L));
+        assertEquals(31, db.count(small));
+        assertEquals(100, getEntityCount());
+    }
+
+    private long getEntityCount() {
+        return edb.getStatistics(KIND).get("n").getEntityCount();
+    }
+
+    private boolean isKindScan(Filter filter) {
+        QueryPlanner planner = new QueryPlanner(Collections.singletonMap(KIND, edb.getStatistics(KIND)),
+                new GramIndex(Collections.<String, Set<String>>emptyMap()));
+        return planner.isKindScan(filter);
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.eagerlogic.entitydb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the string operators select the same entities in the database
+ * as String does in memory. Derby pads the shorter value with spaces when it
+ * compares two values, and it lowercases by the locale of the database, so
+ * the queries which are answered by SQL only (queryKeys, count and exists)
+ * must agree with the ones which load the entities.
+ *
+ * @author dipacs
+ */
+public class StringOperatorTest extends ADatabaseTest {
+
+    private static final String[] VALUES = {"ab", "ab ", "x", "ab\t", "a", "AB", "Ab  ",
+        "İstanbul", "istanbul", "ISTANBUL", "straße", "STRASSE", "µm", "ΜM", ""};
+
+    private final List<Entity> entities = new ArrayList<>();
+
+    @Test
+    public void testTrailingSpaces() throws Exception {
+        open();
+        db.putAll(Arrays.asList(newEntity("S", "name", "ab"), newEntity("S", "name", "ab "),
+                newEntity("S", "name", "x")));
+
+        check(new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "ab"), 1);
+        check(new StringFilterItem("name", StringFilterItem.EOperator.EQUALS, "ab "), 2);
+        check(new StringFilterItem("name", StringFilterItem.EOperator.NOT_EQUALS, "ab"), 2, 3);
+        check(new StringFilterItem("name", Arrays.asList("ab", "x")), 1, 3);
+        check(new StringFilterItem("name", StringFilterItem.EOperator.GREATER, "ab"), 2, 3);
+        check(new StringFilterItem("name", StringFilterItem.EOperator.SMALLER, "ab "), 1);
+        check(new StringFilterItem("name", StringFilterItem.EOperator.EQUALS_IGNORE_CASE, "AB"), 1);
+    }
+
+    @Test
+    public void testAllOperators() throws Exception {
+        open();
+        putValues();
+        checkAll();
+    }
+
+    @Test
+    public void testTrigramIndex() throws Exception {
+        EntityDBConfig config = new EntityDBConfig();
+        config.addTrigramIndex("S", "name");
+        open(config);
+        putValues();
+        for (String reference : VALUES) {
+            checkMemory(new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, reference));
+        }
+        checkMemory(new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "TANB"));
+        checkMemory(new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "İST"));
+    }
+
+    private void putValues() {
+        for (String value : VALUES) {
+            entities.add(newEntity("S", "name", value));
+        }
+        db.putAll(entities);
+    }
+
+    /**
+     * Checks every operator with every value as the reference.
+     */
+    private void checkAll() {
+        for (String reference : VALUES) {
+            for (StringFilterItem.EOperator operator : StringFilterItem.EOperator.values()) {
+                if (operator != StringFilterItem.EOperator.IN) {
+                    checkMemory(new StringFilterItem("name", operator, reference));
+                }
+            }
+            checkMemory(new StringFilterItem("name", Arrays.asList(reference, "x")));
+        }
+        checkMemory(new StringFilterItem("name", StringFilterItem.EOperator.CONTAINS, "B "));
+        checkMemory(new StringFilterItem("name", StringFilterItem.EOperator.STARTS_WITH, "İs"));
+    }
+
+    /**
+     * Checks that the database matches the same entities as the given item
+     * does with the String methods.
+     */
+    private void checkMemory(StringFilterItem item) {
+        List<Long> expected = new ArrayList<>();
+        for (Entity e : entities) {
+            if (matches(item, e.getStringAttribute("name"))) {
+                expected.add(e.getId());
+            }
+        }
+        long[] ids = new long[expected.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = expected.get(i);
+        }
+        check(item, ids);
+    }
+
+    private static boolean matches(StringFilterItem item, String value) {
+        String reference = item.getReferenceValue();
+        switch (item.getOperator()) {
+            case EQUALS:
+                return value.equals(reference);
+            case NOT_EQUALS:
+                return !value.equals(reference);
+            case GREATER:
+                return value.compareTo(reference) > 0;
+            case SMALLER:
+                return value.compareTo(reference) < 0;
+            case CONTAINS:
+                for (int i = 0; i + reference.length() <= value.length(); i++) {
+                    if (value.regionMatches(true, i, reference, 0, reference.length())) {
+                        return true;
+                    }
+                }
+                return false;
+            case STARTS_WITH:
+                return value.regionMatches(true, 0, reference, 0, reference.length());
+            case EQUALS_IGNORE_CASE:
+                return value.equalsIgnoreCase(reference);
+            default:
+                return item.getReferenceValues().contains(value);
+        }
+    }
+
+    /**
+     * Checks that every query of the database matches the entities with the
+     * given ids.
+     */
+    private void check(StringFilterItem item, long... ids) {
+        Filter filter = new Filter("S", item);
+        Set<Long> expected = new HashSet<>();
+        for (long id : ids) {
+            expected.add(id);
+        }
+        String message = item.getOperator() + " '" + item.getReferenceValue() + "'";
+
+        assertEquals(message, expected, new HashSet<>(db.queryKeys(filter)));
+        Set<Long> loaded = new HashSet<>();
+        for (Entity e : db.query(filter)) {
+            loaded.add(e.getId());
+        }
+        assertEquals(message, expected, loaded);
+        assertEquals(message, expected.size(), db.count(filter));
+        assertEquals(message, !expected.isEmpty(), db.exists(filter));
+    }
+
+}
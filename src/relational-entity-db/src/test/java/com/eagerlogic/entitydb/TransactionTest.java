@@ -0,0 +1,202 @@
+package com.eagerlogic.entitydb;
+
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the transactions are committed and rolled back atomically,
+ * including the nested ones.
+ *
+ * @author dipacs
+ */
+public class TransactionTest extends ADatabaseTest {
+
+    private Entity stored;
+
+    @Before
+    public void setUp() throws Exception {
+        open();
+        stored = newEntity("T", "n", 1L);
+        db.put(stored);
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        final Entity inserted = newEntity("T", "n", 2L);
+        new ATransaction<Void>(db) {
+
+            @Override
+            protected Void onExecute(DB db) {
+                db.put(inserted);
+                stored.putAttribute("n", 3L);
+                db.put(stored);
+                // the transaction reads its own writes
+                assertEquals(2, db.countAll("T"));
+                return null;
+            }
+
+        }.execute();
+
+        assertEquals(2, db.countAll("T"));
+        assertEquals(3L, (long) db.get(stored.getId()).getLongAttribute("n"));
+        assertFalse(inserted.isDirty());
+        assertFalse(stored.isDirty());
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        final Entity inserted = newEntity("T", "n", 2L);
+        final Entity batch = newEntity("T", "n", 4L);
+        try {
+            new ATransaction<Void>(db) {
+
+                @Override
+                protected Void onExecute(DB db) throws TransactionException {
+                    db.put(inserted);
+                    db.putAll(Arrays.asList(batch));
+                    stored.putAttribute("n", 3L);
+                    db.put(stored);
+                    throw new TransactionException("rollback");
+                }
+
+            }.execute();
+            fail();
+        } catch (TransactionException ex) {
+            assertEquals("rollback", ex.getMessage());
+        }
+
+        assertEquals(1, db.countAll("T"));
+        assertEquals(1L, (long) db.get(stored.getId()).getLongAttribute("n"));
+        assertEquals(-1, inserted.getId());
+        assertEquals(-1, batch.getId());
+        assertTrue(stored.isDirty());
+
+        // the rolled back entities are written again by the next put
+        db.put(inserted);
+        db.put(stored);
+        assertEquals(2, db.countAll("T"));
+        assertEquals(3L, (long) db.get(stored.getId()).getLongAttribute("n"));
+    }
+
+    @Test
+    public void testRollbackDelete() throws Exception {
+        try {
+            new ATransaction<Void>(db) {
+
+                @Override
+                protected Void onExecute(DB db) {
+                    db.delete(stored.getId());
+                    assertNull(db.get(stored.getId()));
+                    throw new IllegalStateException("rollback");
+                }
+
+            }.execute();
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("rollback", ex.getMessage());
+        }
+
+        assertEquals(1L, (long) db.get(stored.getId()).getLongAttribute("n"));
+    }
+
+    @Test
+    public void testNestedCommit() throws Exception {
+        final Entity outer = newEntity("T", "n", 2L);
+        final Entity inner = newEntity("T", "n", 3L);
+        new ATransaction<Void>(db) {
+
+            @Override
+            protected Void onExecute(DB db) throws TransactionException {
+                db.put(outer);
+                new ATransaction<Void>(db) {
+
+                    @Override
+                    protected Void onExecute(DB db) {
+                        db.put(inner);
+                        return null;
+                    }
+
+                }.execute();
+                // the nested transaction is committed by the outer one
+                assertTrue(inner.isDirty());
+                return null;
+            }
+
+        }.execute();
+
+        assertEquals(3, db.countAll("T"));
+        assertFalse(inner.isDirty());
+    }
+
+    @Test
+    public void testNestedRollback() throws Exception {
+        final Entity outer = newEntity("T", "n", 2L);
+        final Entity inner = newEntity("T", "n", 3L);
+        try {
+            new ATransaction<Void>(db) {
+
+                @Override
+                protected Void onExecute(DB db) {
+                    db.put(outer);
+                    // the failure of the nested transaction is swallowed, but
+                    // it marks the outer one rollback-only
+                    new ATransaction<Void>(db) {
+
+                        @Override
+                        protected Void onExecute(DB db) throws TransactionException {
+                            db.put(inner);
+                            throw new TransactionException("inner");
+                        }
+
+                    }.executeSilent();
+                    return null;
+                }
+
+            }.execute();
+            fail();
+        } catch (TransactionException ex) {
+            // expected
+        }
+
+        assertEquals(1, db.countAll("T"));
+        assertEquals(-1, outer.getId());
+        assertEquals(-1, inner.getId());
+    }
+
+    @Test
+    public void testOuterRollback() throws Exception {
+        final Entity inner = newEntity("T", "n", 3L);
+        try {
+            new ATransaction<Void>(db) {
+
+                @Override
+                protected Void onExecute(DB db) throws TransactionException {
+                    new ATransaction<Void>(db) {
+
+                        @Override
+                        protected Void onExecute(DB db) {
+                            db.put(inner);
+                            return null;
+                        }
+
+                    }.execute();
+                    throw new TransactionException("outer");
+                }
+
+            }.execute();
+            fail();
+        } catch (TransactionException ex) {
+            assertEquals("outer", ex.getMessage());
+        }
+
+        assertEquals(1, db.countAll("T"));
+        assertEquals(-1, inner.getId());
+    }
+
+}